@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Keep one JobTracker proxy per user open between requests.  The RPC
+ * client only reuses a socket for the same UserGroupInformation
+ * object, so the cache also keeps the first UserGroupInformation it
+ * saw for each user.  A proxy is shared by all the requests of its
+ * user, is closed after templeton.jobtracker.idle-timeout without
+ * use, and is dropped when a call on it fails.
+ */
+public class JobTrackerCache implements JobTrackerCacheMBean {
+    private static final Log LOG = LogFactory.getLog(JobTrackerCache.class);
+
+    public static final String IDLE_TIMEOUT_NAME = "templeton.jobtracker.idle-timeout";
+
+    /**
+     * One open proxy.
+     */
+    public static class Connection {
+        private final String key;
+        private final JobSubmissionProtocol cnx;
+        private int inUse = 0;
+        private long lastUsed;
+        private boolean dropped = false;
+
+        private Connection(String key, JobSubmissionProtocol cnx) {
+            this.key = key;
+            this.cnx = cnx;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public JobSubmissionProtocol getProxy() {
+            return cnx;
+        }
+    }
+
+    private static volatile JobTrackerCache theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized JobTrackerCache getInstance(Configuration conf) {
+        if (theSingleton == null) {
+            theSingleton = new JobTrackerCache(conf.getLong(IDLE_TIMEOUT_NAME, 300000));
+            if (theSingleton.isEnabled())
+                theSingleton.start();
+        }
+        return theSingleton;
+    }
+
+    private final long idleTimeout;
+    private final Map<String, Connection> open = new HashMap<String, Connection>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long reconnects = 0;
+    private long evictions = 0;
+
+    public JobTrackerCache(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * The cache is off when the idle timeout is 0; every request
+     * then opens and closes its own proxy.
+     */
+    public boolean isEnabled() {
+        return idleTimeout > 0;
+    }
+
+    private void start() {
+        try {
+            MBeanUtil.registerMBean("Templeton", "JobTrackerCache", this);
+        } catch (Exception e) {
+            LOG.warn("Unable to register the job tracker cache mbean: " + e);
+        }
+
+        Thread evictor = new Thread("jobtracker-cache-evictor") {
+                public void run() {
+                    long interval = Math.max(1000, idleTimeout / 2);
+                    while (true) {
+                        try {
+                            Thread.sleep(interval);
+                            evictIdle();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            LOG.warn("job tracker cache eviction failed: " + e);
+                        }
+                    }
+                }
+            };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Check out the proxy for this user, opening one if needed.  Give
+     * it back with release.
+     */
+    public Connection get(UserGroupInformation ugi, InetSocketAddress addr,
+                          Configuration conf)
+        throws IOException
+    {
+        String key = ugi.getShortUserName() + "@" + addr;
+        synchronized (this) {
+            Connection c = open.get(key);
+            if (c != null) {
+                ++c.inUse;
+                ++hits;
+                return c;
+            }
+            ++misses;
+        }
+
+        // Connect without holding the lock, it can take a while.
+        Connection made = new Connection(key, open(ugi, addr, conf));
+        Connection res;
+        synchronized (this) {
+            res = open.get(key);
+            if (res == null) {
+                res = made;
+                open.put(key, res);
+                made = null;
+            }
+            ++res.inUse;
+        }
+        if (made != null)       // Another request connected first.
+            close(made.cnx);
+        return res;
+    }
+
+    /**
+     * Give back a proxy.  If the call on it failed it is dropped
+     * from the cache, and closed once nobody else uses it.
+     */
+    public void release(Connection c, boolean failed) {
+        boolean close = false;
+        synchronized (this) {
+            --c.inUse;
+            c.lastUsed = System.currentTimeMillis();
+            if (failed && ! c.dropped) {
+                c.dropped = true;
+                if (open.get(c.key) == c)
+                    open.remove(c.key);
+                ++reconnects;
+            }
+            close = c.dropped && c.inUse == 0;
+        }
+        if (close)
+            close(c.cnx);
+    }
+
+    /**
+     * Open the proxy for a cache miss.
+     */
+    protected JobSubmissionProtocol open(UserGroupInformation ugi,
+                                         InetSocketAddress addr,
+                                         Configuration conf)
+        throws IOException
+    {
+        return connect(ugi, addr, conf);
+    }
+
+    /**
+     * Close a proxy that left the cache.
+     */
+    protected void close(JobSubmissionProtocol cnx) {
+        RPC.stopProxy(cnx);
+    }
+
+    /**
+     * Open a new, uncached proxy.
+     */
+    public static JobSubmissionProtocol connect(UserGroupInformation ugi,
+                                                InetSocketAddress addr,
+                                                Configuration conf)
+        throws IOException
+    {
+        return (JobSubmissionProtocol)
+            RPC.getProxy(JobSubmissionProtocol.class,
+                         JobSubmissionProtocol.versionID,
+                         addr,
+                         ugi,
+                         conf,
+                         NetUtils.getSocketFactory(conf,
+                                                   JobSubmissionProtocol.class));
+    }
+
+    /**
+     * Close the proxies that have been idle longer than
+     * templeton.jobtracker.idle-timeout.
+     */
+    public void evictIdle() {
+        long oldest = System.currentTimeMillis() - idleTimeout;
+        List<Connection> stale = new ArrayList<Connection>();
+        synchronized (this) {
+            Iterator<Connection> it = open.values().iterator();
+            while (it.hasNext()) {
+                Connection c = it.next();
+                if (c.inUse == 0 && c.lastUsed < oldest) {
+                    it.remove();
+                    c.dropped = true;
+                    stale.add(c);
+                    ++evictions;
+                }
+            }
+        }
+        for (Connection c : stale)
+            close(c.cnx);
+        if (! stale.isEmpty())
+            LOG.debug("closed " + stale.size() + " idle job tracker connections");
+    }
+
+    //
+    // JobTrackerCacheMBean
+    //
+
+    public synchronized int getConnections() {
+        return open.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
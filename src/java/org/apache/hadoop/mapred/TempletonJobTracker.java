@@ -21,13 +21,19 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.ipc.RPC;
-import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.security.UserGroupInformation;
 
 /*
- * Communicate with the JobTracker as a specific user.
+ * Communicate with the JobTracker as a specific user.  The
+ * connection comes from the JobTrackerCache when it is enabled.
  */
 public class TempletonJobTracker {
+    private UserGroupInformation ugi;
+    private InetSocketAddress addr;
+    private Configuration conf;
+    private JobTrackerCache cache;
+    private JobTrackerCache.Connection cached;
     private JobSubmissionProtocol cnx;
 
     /**
@@ -38,14 +44,38 @@ public class TempletonJobTracker {
                                Configuration conf)
         throws IOException
     {
-        cnx = (JobSubmissionProtocol)
-            RPC.getProxy(JobSubmissionProtocol.class,
-                         JobSubmissionProtocol.versionID,
-                         addr,
-                         ugi,
-                         conf,
-                         NetUtils.getSocketFactory(conf,
-                                                   JobSubmissionProtocol.class));
+        this.ugi = ugi;
+        this.addr = addr;
+        this.conf = conf;
+        JobTrackerCache c = JobTrackerCache.getInstance(conf);
+        if (c.isEnabled())
+            cache = c;
+        connect();
+    }
+
+    private void connect()
+        throws IOException
+    {
+        if (cache == null) {
+            cnx = JobTrackerCache.connect(ugi, addr, conf);
+        } else {
+            cached = cache.get(ugi, addr, conf);
+            cnx = cached.getProxy();
+        }
+    }
+
+    // A cached connection that failed may be stale, eg. the
+    // JobTracker restarted.  Drop it and open a new one for a retry.
+    // Errors from the JobTracker itself are not retried.
+    private boolean reconnect(IOException e)
+        throws IOException
+    {
+        if (cache == null || e instanceof RemoteException)
+            return false;
+        cache.release(cached, true);
+        cached = null;
+        connect();
+        return true;
     }
 
     /**
@@ -56,7 +86,13 @@ public class TempletonJobTracker {
     public JobProfile getJobProfile(JobID jobid)
         throws IOException
     {
-        return cnx.getJobProfile(jobid);
+        try {
+            return cnx.getJobProfile(jobid);
+        } catch (IOException e) {
+            if (! reconnect(e))
+                throw e;
+            return cnx.getJobProfile(jobid);
+        }
     }
 
     /**
@@ -67,7 +103,13 @@ public class TempletonJobTracker {
     public JobStatus getJobStatus(JobID jobid)
         throws IOException
     {
-        return cnx.getJobStatus(jobid);
+        try {
+            return cnx.getJobStatus(jobid);
+        } catch (IOException e) {
+            if (! reconnect(e))
+                throw e;
+            return cnx.getJobStatus(jobid);
+        }
     }
 
 
@@ -77,7 +119,13 @@ public class TempletonJobTracker {
     public void killJob(JobID jobid)
         throws IOException
     {
-        cnx.killJob(jobid);
+        try {
+            cnx.killJob(jobid);
+        } catch (IOException e) {
+            if (! reconnect(e))
+                throw e;
+            cnx.killJob(jobid);
+        }
     }
 
     /**
@@ -86,13 +134,25 @@ public class TempletonJobTracker {
     public JobStatus[] getAllJobs()
         throws IOException
     {
-        return cnx.getAllJobs();
+        try {
+            return cnx.getAllJobs();
+        } catch (IOException e) {
+            if (! reconnect(e))
+                throw e;
+            return cnx.getAllJobs();
+        }
     }
 
     /**
-     * Close the connection to the Job Tracker.
+     * Close the connection to the Job Tracker.  A cached connection
+     * is given back to the cache and stays open.
      */
     public void close() {
-        RPC.stopProxy(cnx);
+        if (cache == null) {
+            RPC.stopProxy(cnx);
+        } else if (cached != null) {
+            cache.release(cached, false);
+            cached = null;
+        }
     }
 }
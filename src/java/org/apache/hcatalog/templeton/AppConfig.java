@@ -84,6 +84,7 @@ public class AppConfig extends Configuration {
     public static final String HADOOP_NAME         = "templeton.hadoop";
     public static final String HADOOP_CONF_DIR     = "templeton.hadoop.conf.dir";
     public static final String HCAT_NAME           = "templeton.hcat";
+    public static final String HCAT_BACKEND_NAME   = "templeton.hcat.backend";
     public static final String HIVE_ARCHIVE_NAME   = "templeton.hive.archive";
     public static final String HIVE_PATH_NAME      = "templeton.hive.path";
     public static final String HIVE_PROPS_NAME     = "templeton.hive.properties";
@@ -108,6 +109,9 @@ public class AppConfig extends Configuration {
     public static final String HADOOP_SPECULATIVE_NAME
         = "mapred.map.tasks.speculative.execution";
 
+    public static final String HCAT_BACKEND_EXEC      = "exec";
+    public static final String HCAT_BACKEND_METASTORE = "metastore";
+
     private static final Log LOG = LogFactory.getLog(AppConfig.class);
 
     public AppConfig() {
@@ -168,6 +172,7 @@ public class AppConfig extends Configuration {
     public String libJars()          { return get(LIB_JARS_NAME); }
     public String clusterHadoop()    { return get(HADOOP_NAME); }
     public String clusterHcat()      { return get(HCAT_NAME); }
+    public String hcatBackend()      { return get(HCAT_BACKEND_NAME, HCAT_BACKEND_EXEC); }
     public String pigPath()          { return get(PIG_PATH_NAME); }
     public String pigArchive()       { return get(PIG_ARCHIVE_NAME); }
     public String hivePath()         { return get(HIVE_PATH_NAME); }
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * One operation in a BatchDesc.  The operation name picks which of
+ * the other fields are used:
+ *
+ * createTable   - database, create
+ * dropTable     - database, table, ifExists
+ * renameTable   - database, table, rename
+ * addPartition  - database, table, partition, location, ifNotExists
+ * dropPartition - database, table, partition, ifExists
+ * addColumn     - database, table, column
+ * setProperty   - database, table, property
+ */
+@XmlRootElement
+public class BatchOperationDesc {
+    public static final String CREATE_TABLE   = "createTable";
+    public static final String DROP_TABLE     = "dropTable";
+    public static final String RENAME_TABLE   = "renameTable";
+    public static final String ADD_PARTITION  = "addPartition";
+    public static final String DROP_PARTITION = "dropPartition";
+    public static final String ADD_COLUMN     = "addColumn";
+    public static final String SET_PROPERTY   = "setProperty";
+
+    public String operation;
+    public String database;
+    public String table;
+    public TableDesc create;
+    public String rename;
+    public String partition;
+    public String location;
+    public boolean ifExists = false;
+    public boolean ifNotExists = false;
+    public ColumnDesc column;
+    public TablePropertyDesc property;
+
+    public BatchOperationDesc() {}
+
+    /**
+     * The table this operation works on.
+     */
+    public String targetTable() {
+        if (CREATE_TABLE.equals(operation) && create != null)
+            return create.table;
+        return table;
+    }
+
+    public String toString() {
+        return String.format("BatchOperationDesc(operation=%s, database=%s, table=%s)",
+                             operation, database, targetTable());
+    }
+}
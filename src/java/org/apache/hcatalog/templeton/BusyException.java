@@ -17,11 +17,34 @@
  */
 package org.apache.hcatalog.templeton;
 
+import javax.ws.rs.core.Response;
+
 /**
  * Simple "we are busy, try again" exception.
  */
 public class BusyException extends SimpleWebException {
+    // Seconds the client should wait before retrying, or 0 if unknown.
+    private int retryAfter = 0;
+
     public BusyException() {
         super(503, "Busy, please retry");
     }
+
+    /**
+     * Busy, and the client should wait this many seconds before
+     * retrying.  Sent as the Retry-After header.
+     */
+    public BusyException(int retryAfter) {
+        this();
+        this.retryAfter = retryAfter;
+    }
+
+    public Response getResponse() {
+        Response res = super.getResponse();
+        if (retryAfter > 0)
+            return Response.fromResponse(res)
+                .header("Retry-After", Integer.toString(retryAfter))
+                .build();
+        return res;
+    }
 }
@@ -63,6 +63,7 @@ public class CompleteDelegator extends TempletonDelegator {
         JobState state = null;
         try {
             state = new JobState(id, Main.getAppConfigInstance());
+            state.prefetch();
             if (state.getCompleteStatus() == null)
                 failed("Job not yet complete", null);
 
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+
+/**
+ * A bounded LRU cache of the json returned by the read only ddl
+ * calls, keyed by user, database, table and operation.  Entries
+ * expire after templeton.ddl.cache.ttl milliseconds, and are dropped
+ * early when this server runs a ddl call that changes the same
+ * database or table.  Changes made elsewhere are seen once the entry
+ * expires.
+ *
+ * Only successful responses are cached.  Every response handed out
+ * is a copy, so callers are free to change it.  The entity tag of an
+ * entry is computed once, when it is cached, so a conditional GET
+ * that hits the cache needs neither hcat nor any json work.
+ */
+public class DdlCache implements DdlCacheMBean {
+    private static final Log LOG = LogFactory.getLog(DdlCache.class);
+
+    public static final String CACHE_SIZE_NAME = "templeton.ddl.cache.size";
+    public static final String CACHE_TTL_NAME  = "templeton.ddl.cache.ttl";
+
+    private static volatile DdlCache theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized DdlCache getInstance(AppConfig appConf) {
+        if (theSingleton == null) {
+            theSingleton = new DdlCache(appConf.getInt(CACHE_SIZE_NAME, 1000),
+                                        appConf.getLong(CACHE_TTL_NAME, 10000));
+            try {
+                MBeanUtil.registerMBean("Templeton", "DdlCache", theSingleton);
+            } catch (Exception e) {
+                LOG.warn("Unable to register the ddl cache mbean: " + e);
+            }
+        }
+        return theSingleton;
+    }
+
+    // One cached response.
+    private static class CacheEntry {
+        String db;
+        String table;
+        int status;
+        Object entity;
+        String etag;
+        long expires;
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<String, CacheEntry> entries;
+    // Bumped by every invalidation, see startRead.
+    private long version = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public DdlCache(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > DdlCache.this.maxEntries) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Is the cache turned on?
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttl > 0;
+    }
+
+    /**
+     * The cache key.  db and table may be null for calls that are not
+     * about a single database or table.
+     */
+    public static String key(String user, String op, String db, String table,
+                             String detail)
+    {
+        return user + "\u0000" + op + "\u0000" + db + "\u0000" + table
+            + "\u0000" + detail;
+    }
+
+    /**
+     * Find a cached response, or null.
+     */
+    public Response get(String user, String op, String db, String table,
+                        String detail)
+    {
+        if (! isEnabled())
+            return null;
+
+        String key = key(user, op, db, table, detail);
+        CacheEntry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && e.expires <= System.currentTimeMillis()) {
+                entries.remove(key);
+                ++evictions;
+                e = null;
+            }
+            if (e == null) {
+                ++misses;
+                return null;
+            }
+            ++hits;
+        }
+        return build(e.status, copy(e.entity), e.etag);
+    }
+
+    /**
+     * Call before running the call whose response goes to put.
+     */
+    public synchronized long startRead() {
+        return version;
+    }
+
+    /**
+     * Cache a response if it is a success and return a copy of it
+     * with the caching headers set.  Streamed responses are not
+     * cached, and neither is one read before an invalidation since
+     * stamp, from startRead, as it may be out of date.
+     */
+    public Response put(String user, String op, String db, String table,
+                        String detail, long stamp, Response res)
+    {
+        if (! isEnabled()
+            || res.getStatus() != JsonBuilder.OK
+            || res.getEntity() instanceof StreamingOutput)
+            return res;
+
+        CacheEntry e = new CacheEntry();
+        e.db = db;
+        e.table = table;
+        e.status = res.getStatus();
+        e.entity = copy(res.getEntity());
+        e.etag = JsonBuilder.contentHash(e.entity);
+        e.expires = System.currentTimeMillis() + ttl;
+
+        synchronized (this) {
+            if (stamp == version)
+                entries.put(key(user, op, db, table, detail), e);
+        }
+        return build(e.status, res.getEntity(), e.etag);
+    }
+
+    /**
+     * Drop the entries of a table, and the entries about its
+     * database as a whole.  A null table drops every entry of the
+     * database.
+     */
+    public synchronized void invalidate(String db, String table) {
+        ++version;
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry e = it.next();
+            if (e.db == null
+                || (e.db.equals(db)
+                    && (table == null || e.table == null || e.table.equals(table)))) {
+                it.remove();
+                ++invalidations;
+            }
+        }
+    }
+
+    /**
+     * Drop every entry.
+     */
+    public synchronized void invalidateAll() {
+        ++version;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    private Response build(int status, Object entity, String etag) {
+        CacheControl cc = new CacheControl();
+        cc.setPrivate(true);
+        cc.setMaxAge((int) (ttl / 1000));
+        Response.ResponseBuilder rb = Response.status(status)
+            .entity(entity)
+            .type(MediaType.APPLICATION_JSON)
+            .cacheControl(cc);
+        if (etag != null)
+            rb.tag(new EntityTag(etag));
+        return rb.build();
+    }
+
+    /**
+     * Deep copy of a json object made of maps, lists and values.
+     */
+    public static Object copy(Object obj) {
+        if (obj instanceof Map) {
+            Map<Object, Object> res = new HashMap<Object, Object>();
+            for (Object o : ((Map) obj).entrySet()) {
+                Map.Entry e = (Map.Entry) o;
+                res.put(e.getKey(), copy(e.getValue()));
+            }
+            return res;
+        } else if (obj instanceof List) {
+            List<Object> res = new ArrayList<Object>();
+            for (Object o : (List) obj)
+                res.add(copy(o));
+            return res;
+        } else {
+            return obj;
+        }
+    }
+
+    //
+    // DdlCacheMBean
+    //
+
+    public synchronized int getSize() { return entries.size(); }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getInvalidations() { return invalidations; }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+/**
+ * JMX view of the ddl response cache.
+ */
+public interface DdlCacheMBean {
+    /** Number of cached responses. */
+    int getSize();
+
+    /** Requests answered from the cache. */
+    long getHits();
+
+    /** Requests that had to run the ddl call. */
+    long getMisses();
+
+    /** Entries dropped because the cache was full or they expired. */
+    long getEvictions();
+
+    /** Entries dropped because a ddl call changed their table. */
+    long getInvalidations();
+}
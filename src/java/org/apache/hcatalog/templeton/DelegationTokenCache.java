@@ -0,0 +1,418 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.delegation.AbstractDelegationTokenIdentifier;
+
+/**
+ * A per-user cache of the HDFS and metastore delegation tokens that
+ * SecureProxySupport hands to hcat.
+ *
+ * The tokens of a user, and the token file they are written to, form
+ * a generation.  A generation is reused until
+ * templeton.token.reuse-fraction of its lifetime has passed.  A
+ * background thread renews the tokens before that point, and fetches
+ * a new generation if renewing fails.  A replaced generation is kept
+ * for templeton.token.retire-grace milliseconds so that running hcat
+ * processes can still read their token file, then the file is
+ * deleted and the tokens cancelled.
+ *
+ * The tokens are requested with the Templeton server as the renewer
+ * so that the server can renew and cancel them.
+ */
+public class DelegationTokenCache {
+    private static final Log LOG = LogFactory.getLog(DelegationTokenCache.class);
+
+    public static final String REUSE_FRACTION_NAME = "templeton.token.reuse-fraction";
+    public static final String RENEW_CHECK_NAME    = "templeton.token.renew-check-interval";
+    public static final String RETIRE_GRACE_NAME   = "templeton.token.retire-grace";
+
+    public static final String HDFS_RENEW_INTERVAL_NAME
+        = "dfs.namenode.delegation.token.renew-interval";
+    public static final String HIVE_RENEW_INTERVAL_NAME
+        = "hive.cluster.delegation.token.renew-interval";
+
+    public static final String HCAT_SERVICE = "hcat";
+
+    private static volatile DelegationTokenCache theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized DelegationTokenCache getInstance(AppConfig appConf) {
+        if (theSingleton == null) {
+            theSingleton = new DelegationTokenCache(appConf);
+            theSingleton.start();
+        }
+        return theSingleton;
+    }
+
+    /**
+     * The tokens of one user and the file they are stored in.
+     */
+    public static class Generation {
+        final String user;
+        final Path tokenPath;
+        final Token<?> fsToken;
+        final Token<?> msToken;
+        volatile long expires;      // When the first token expires.
+        volatile long refreshAt;    // When to stop handing this out.
+        long retireAt;              // Set once replaced.
+
+        Generation(String user, Path tokenPath, Token<?> fsToken, Token<?> msToken) {
+            this.user = user;
+            this.tokenPath = tokenPath;
+            this.fsToken = fsToken;
+            this.msToken = msToken;
+        }
+
+        public Path getTokenPath() { return tokenPath; }
+    }
+
+    // Only used to read the dates out of a token.
+    private static class Identifier extends AbstractDelegationTokenIdentifier {
+        public Text getKind() { return new Text("templeton"); }
+    }
+
+    private final AppConfig appConf;
+    private final float reuseFraction;
+    private final long checkInterval;
+    private final long retireGrace;
+    private final long fsRenewInterval;
+    private final long msRenewInterval;
+
+    private final ConcurrentHashMap<String, Generation> current
+        = new ConcurrentHashMap<String, Generation>();
+    private final ConcurrentHashMap<String, Object> userLocks
+        = new ConcurrentHashMap<String, Object>();
+    private final LinkedList<Generation> retired = new LinkedList<Generation>();
+
+    private DelegationTokenCache(AppConfig appConf) {
+        this.appConf = appConf;
+        reuseFraction = appConf.getFloat(REUSE_FRACTION_NAME, 0.5f);
+        checkInterval = appConf.getLong(RENEW_CHECK_NAME, 60000);
+        retireGrace = appConf.getLong(RETIRE_GRACE_NAME, 600000);
+        fsRenewInterval = appConf.getLong(HDFS_RENEW_INTERVAL_NAME, 86400000L);
+        msRenewInterval = MetastoreClientPool.makeHiveConf(appConf)
+            .getLong(HIVE_RENEW_INTERVAL_NAME, 86400000L);
+    }
+
+    private void start() {
+        Thread renewer = new Thread("delegation-token-renewer") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(checkInterval);
+                            renewAll();
+                            retireAll(false);
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            LOG.warn("token renewal failed: " + e);
+                        }
+                    }
+                }
+            };
+        renewer.setDaemon(true);
+        renewer.start();
+    }
+
+    /**
+     * Get the current token generation of the user, fetching new
+     * tokens if there is none or the current one is too old.
+     */
+    public Generation get(String user)
+        throws IOException, InterruptedException, BusyException
+    {
+        Generation gen = current.get(user);
+        if (gen != null && System.currentTimeMillis() < gen.refreshAt)
+            return gen;
+
+        synchronized (userLock(user)) {
+            gen = current.get(user);
+            if (gen != null && System.currentTimeMillis() < gen.refreshAt)
+                return gen;
+            return replace(user, gen);
+        }
+    }
+
+    // Fetch a new generation and retire the old one.  Called with the
+    // user lock held.
+    private Generation replace(String user, Generation old)
+        throws IOException, InterruptedException, BusyException
+    {
+        Generation gen = fetch(user);
+        current.put(user, gen);
+        if (old != null) {
+            synchronized (retired) {
+                old.retireAt = System.currentTimeMillis() + retireGrace;
+                retired.add(old);
+            }
+        }
+        return gen;
+    }
+
+    private Object userLock(String user) {
+        Object lock = userLocks.get(user);
+        if (lock == null) {
+            userLocks.putIfAbsent(user, new Object());
+            lock = userLocks.get(user);
+        }
+        return lock;
+    }
+
+    // Fetch both tokens and write them to a new token file.
+    private Generation fetch(String user)
+        throws IOException, InterruptedException, BusyException
+    {
+        LOG.info("fetching delegation tokens for " + user);
+        Token<?> fsToken = getFSDelegationToken(user);
+        Token<?> msToken = new Token();
+        try {
+            msToken.decodeFromUrlString(getHcatDelegationToken(user));
+        } catch (BusyException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        msToken.setService(new Text(HCAT_SERVICE));
+
+        File t = File.createTempFile("templeton", null);
+        Path tokenPath = new Path(t.toURI());
+        writeProxyDelegationTokens(fsToken, msToken, user, tokenPath);
+
+        Generation gen = new Generation(user, tokenPath, fsToken, msToken);
+        long now = System.currentTimeMillis();
+        setExpires(gen, Math.min(expires(fsToken, now, fsRenewInterval),
+                                 expires(msToken, now, msRenewInterval)));
+        return gen;
+    }
+
+    private void setExpires(Generation gen, long expires) {
+        long now = System.currentTimeMillis();
+        gen.expires = expires;
+        gen.refreshAt = now + (long) ((expires - now) * reuseFraction);
+    }
+
+    // The expiry of a token, from its issue and max dates and the
+    // configured renew interval.
+    private static long expires(Token<?> token, long now, long renewInterval) {
+        try {
+            Identifier id = new Identifier();
+            id.readFields(new DataInputStream(new ByteArrayInputStream(token.getIdentifier())));
+            long issued = (id.getIssueDate() > 0) ? id.getIssueDate() : now;
+            long res = issued + renewInterval;
+            if (id.getMaxDate() > 0)
+                res = Math.min(res, id.getMaxDate());
+            return res;
+        } catch (IOException e) {
+            LOG.debug("unable to read token dates: " + e);
+            return now + renewInterval;
+        }
+    }
+
+    /**
+     * Renew the tokens of every generation that is close to its
+     * refresh point.  If renewing fails, or a token is past its max
+     * date, fetch a new generation instead.
+     */
+    public void renewAll() {
+        long horizon = System.currentTimeMillis() + 2 * checkInterval;
+        for (Generation gen : new ArrayList<Generation>(current.values())) {
+            if (gen.refreshAt > horizon)
+                continue;
+            synchronized (userLock(gen.user)) {
+                if (current.get(gen.user) != gen)
+                    continue;
+                try {
+                    long fsExpires = gen.fsToken.renew(appConf);
+                    long msExpires = renewHcatDelegationToken(gen.user, gen.msToken);
+                    long now = System.currentTimeMillis();
+                    long expires = Math.min(Math.min(fsExpires, msExpires),
+                                            Math.min(expires(gen.fsToken, now, Long.MAX_VALUE / 2),
+                                                     expires(gen.msToken, now, Long.MAX_VALUE / 2)));
+                    setExpires(gen, expires);
+                    if (gen.refreshAt > horizon)
+                        continue;
+                } catch (Exception e) {
+                    LOG.info("unable to renew delegation tokens for " + gen.user
+                             + ", fetching new ones: " + e);
+                } catch (BusyException e) {
+                    continue;
+                }
+
+                try {
+                    replace(gen.user, gen);
+                } catch (Exception e) {
+                    LOG.warn("unable to fetch delegation tokens for " + gen.user
+                             + ": " + e);
+                } catch (BusyException e) {
+                    // Try again next time.
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the token files and cancel the tokens of the replaced
+     * generations once their grace period is over.  With force, of
+     * every generation.
+     */
+    public void retireAll(boolean force) {
+        List<Generation> done = new ArrayList<Generation>();
+        long now = System.currentTimeMillis();
+        synchronized (retired) {
+            Iterator<Generation> it = retired.iterator();
+            while (it.hasNext()) {
+                Generation gen = it.next();
+                if (force || gen.retireAt <= now) {
+                    done.add(gen);
+                    it.remove();
+                }
+            }
+        }
+        if (force) {
+            for (Map.Entry<String, Generation> e : current.entrySet())
+                if (current.remove(e.getKey(), e.getValue()))
+                    done.add(e.getValue());
+        }
+
+        for (Generation gen : done) {
+            new File(gen.tokenPath.toUri()).delete();
+            if (now < gen.expires) {
+                try {
+                    gen.fsToken.cancel(appConf);
+                    cancelHcatDelegationToken(gen.user, gen.msToken);
+                } catch (Exception e) {
+                    LOG.debug("unable to cancel tokens for " + gen.user + ": " + e);
+                } catch (BusyException e) {
+                    LOG.debug("unable to cancel tokens for " + gen.user + ": " + e);
+                }
+            }
+        }
+    }
+
+    private static class TokenWrapper {
+        Token<?> token;
+    }
+
+    private Token<?> getFSDelegationToken(String user)
+        throws IOException, InterruptedException
+    {
+        LOG.info("user: " + user + " loginUser: " + UserGroupInformation.getLoginUser().getUserName());
+        final UserGroupInformation ugi = UgiFactory.getUgi(user);
+        final String renewer = UserGroupInformation.getLoginUser().getShortUserName();
+
+        final TokenWrapper twrapper = new TokenWrapper();
+        ugi.doAs(new PrivilegedExceptionAction<Object>() {
+            public Object run() throws IOException {
+                FileSystem fs = FileSystem.get(appConf);
+                twrapper.token = fs.getDelegationToken(renewer);
+                return null;
+            }
+        });
+        return twrapper.token;
+    }
+
+    private void writeProxyDelegationTokens(final Token<?> fsToken,
+                                            final Token<?> msToken,
+                                            String user,
+                                            final Path tokenPath)
+        throws IOException, InterruptedException
+    {
+        final UserGroupInformation ugi = UgiFactory.getUgi(user);
+        ugi.doAs(new PrivilegedExceptionAction<Object>() {
+            public Object run() throws IOException {
+                Credentials cred = new Credentials();
+                cred.addToken(fsToken.getService(), fsToken);
+                cred.addToken(msToken.getService(), msToken);
+                cred.writeTokenStorageFile(tokenPath, appConf);
+                return null;
+            }
+        });
+    }
+
+    private String getHcatDelegationToken(String user)
+        throws Exception, BusyException
+    {
+        MetastoreClientPool pool = MetastoreClientPool.getInstance(appConf);
+        HiveMetaStoreClient client = pool.borrowServer();
+        boolean failed = true;
+        try {
+            String owner = UgiFactory.getUgi(user).getShortUserName();
+            String renewer = UserGroupInformation.getLoginUser().getUserName();
+            String s = client.getDelegationToken(owner, renewer);
+            failed = false;
+            return s;
+        } finally {
+            pool.release(null, client, failed);
+        }
+    }
+
+    private long renewHcatDelegationToken(String user, Token<?> msToken)
+        throws Exception, BusyException
+    {
+        MetastoreClientPool pool = MetastoreClientPool.getInstance(appConf);
+        HiveMetaStoreClient client = pool.borrowServer();
+        boolean failed = true;
+        try {
+            long res = client.renewDelegationToken(msToken.encodeToUrlString());
+            failed = false;
+            return res;
+        } finally {
+            pool.release(null, client, failed);
+        }
+    }
+
+    private void cancelHcatDelegationToken(String user, Token<?> msToken)
+        throws Exception, BusyException
+    {
+        MetastoreClientPool pool = MetastoreClientPool.getInstance(appConf);
+        HiveMetaStoreClient client = pool.borrowServer();
+        boolean failed = true;
+        try {
+            client.cancelDelegationToken(msToken.encodeToUrlString());
+            failed = false;
+        } finally {
+            pool.release(null, client, failed);
+        }
+    }
+}
@@ -47,8 +47,9 @@ public class DeleteDelegator extends TempletonDelegator {
             JobID jobid = StatusDelegator.StringToJobID(id);
             if (jobid == null)
                 throw new BadParam("Invalid jobid: " + id);
-            tracker.killJob(jobid);
             state = new JobState(id, Main.getAppConfigInstance());
+            state.prefetch();
+            tracker.killJob(jobid);
             String childid = state.getChildId();
             if (childid != null)
                 tracker.killJob(StatusDelegator.StringToJobID(childid));
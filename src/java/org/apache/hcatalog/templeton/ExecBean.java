@@ -17,14 +17,27 @@
  */
 package org.apache.hcatalog.templeton;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * ExecBean - The results of an exec call.
+ *
+ * A large stdout may be left in its capture buffer, with stdout set
+ * to null, so that it can be parsed without first making a string.
+ * Use stdoutStream to read it, and fillStdout to get the string.
  */
 public class ExecBean {
     public String stdout;
     public String stderr;
     public int exitcode;
 
+    // The captured stdout, if it isn't in stdout yet.
+    private ExecBuffer stdoutBuffer;
+    private String encoding;
+    private boolean truncated;
+
     public ExecBean() {}
 
     /**
@@ -40,6 +53,79 @@ public class ExecBean {
         this.exitcode = exitcode;
     }
 
+    /**
+     * Create a new ExecBean that keeps stdout in its capture buffer.
+     */
+    public ExecBean(ExecBuffer stdout, String encoding, String stderr, int exitcode) {
+        this.stdoutBuffer = stdout;
+        this.encoding = encoding;
+        this.stderr = stderr;
+        this.exitcode = exitcode;
+    }
+
+    /**
+     * Read stdout, straight from the capture buffer if it is still
+     * there.
+     */
+    public InputStream stdoutStream()
+        throws IOException
+    {
+        if (stdoutBuffer != null)
+            return stdoutBuffer.getInputStream();
+        if (stdout == null)
+            return new ByteArrayInputStream(new byte[0]);
+        return new ByteArrayInputStream(stdout.getBytes("UTF-8"));
+    }
+
+    /**
+     * Is there any stdout?
+     */
+    public boolean hasStdout() {
+        if (stdoutBuffer != null)
+            return stdoutBuffer.size() > 0;
+        return stdout != null && stdout.length() > 0;
+    }
+
+    /**
+     * Was stdout cut short at templeton.exec.max-output-bytes?
+     */
+    public boolean isTruncated() {
+        return truncated
+            || (stdoutBuffer != null && stdoutBuffer.isTruncated());
+    }
+
+    /**
+     * Mark stdout as cut short, for output captured somewhere else,
+     * like an hcat worker.
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * Make sure stdout holds the output as a string, and release the
+     * capture buffer.
+     */
+    public ExecBean fillStdout()
+        throws IOException
+    {
+        if (stdoutBuffer != null) {
+            stdout = stdoutBuffer.toString(encoding);
+            release();
+        }
+        return this;
+    }
+
+    /**
+     * Release the capture buffer, if any.
+     */
+    public void release() {
+        if (stdoutBuffer != null) {
+            stdoutBuffer.release();
+            stdoutBuffer = null;
+        }
+    }
+
     public String toString() {
         return String.format("ExecBean(stdout=%s, stderr=%s, exitcode=%s)",
                              stdout, stderr, exitcode);
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Captures the output of a program.  The output is kept in fixed size
+ * chunks taken from a shared pool, so it never needs to be copied to
+ * grow.  Past spillBytes it goes to a temporary file instead.  Past
+ * maxBytes it is dropped and the buffer is marked as truncated.
+ *
+ * The output can be read back as a stream without copying it.  Only
+ * one thread may write at a time.  Call release when done, to give
+ * back the chunks and delete the file.
+ */
+public class ExecBuffer extends OutputStream {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // The most chunks kept in the pool between uses.
+    private static final int MAX_POOLED = 64;
+    private static final LinkedList<byte[]> pool = new LinkedList<byte[]>();
+
+    private final long spillBytes;
+    private final long maxBytes;
+
+    private List<byte[]> chunks = new ArrayList<byte[]>();
+    private int lastUsed = CHUNK_SIZE;  // Bytes used in the last chunk.
+    private File spillFile;
+    private OutputStream spill;
+    private long size = 0;
+    private boolean truncated = false;
+
+    /**
+     * Create a buffer.
+     *
+     * @param spillBytes  Bytes kept in memory before spilling to disk.
+     * @param maxBytes    Bytes kept in all, or -1 for no limit.
+     */
+    public ExecBuffer(long spillBytes, long maxBytes) {
+        this.spillBytes = spillBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (maxBytes >= 0 && size + len > maxBytes) {
+            truncated = true;
+            len = (int) Math.max(0, maxBytes - size);
+        }
+        if (len == 0)
+            return;
+
+        if (spill == null && size + len > spillBytes)
+            startSpill();
+        size += len;
+        if (spill != null) {
+            spill.write(b, off, len);
+            return;
+        }
+
+        while (len > 0) {
+            if (lastUsed == CHUNK_SIZE) {
+                chunks.add(takeChunk());
+                lastUsed = 0;
+            }
+            int n = Math.min(len, CHUNK_SIZE - lastUsed);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastUsed, n);
+            lastUsed += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Move everything to a temp file.
+    private void startSpill()
+        throws IOException
+    {
+        spillFile = File.createTempFile("templeton-exec", ".out");
+        spill = new BufferedOutputStream(new FileOutputStream(spillFile), CHUNK_SIZE);
+        for (int i = 0; i < chunks.size(); ++i)
+            spill.write(chunks.get(i), 0, chunkLength(i));
+        giveBackChunks();
+    }
+
+    public void flush()
+        throws IOException
+    {
+        if (spill != null)
+            spill.flush();
+    }
+
+    /**
+     * The number of bytes kept.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Was output dropped because there was more than maxBytes?
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Did the output go to disk?
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Read the output back.
+     */
+    public InputStream getInputStream()
+        throws IOException
+    {
+        if (spill != null) {
+            spill.flush();
+            return new BufferedInputStream(new FileInputStream(spillFile), CHUNK_SIZE);
+        }
+
+        List<InputStream> parts = new ArrayList<InputStream>();
+        for (int i = 0; i < chunks.size(); ++i)
+            parts.add(new ByteArrayInputStream(chunks.get(i), 0, chunkLength(i)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * The output as a string.
+     */
+    public String toString(String enc)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE));
+        Reader in = (enc == null)
+            ? new InputStreamReader(getInputStream())
+            : new InputStreamReader(getInputStream(), enc);
+        try {
+            char[] buf = new char[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                sb.append(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Give back the memory and delete the spill file.  The buffer is
+     * empty afterwards.
+     */
+    public void release() {
+        giveBackChunks();
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // Deleting it anyway
+            }
+            spillFile.delete();
+            spill = null;
+            spillFile = null;
+        }
+        size = 0;
+    }
+
+    private int chunkLength(int i) {
+        return (i == chunks.size() - 1) ? lastUsed : CHUNK_SIZE;
+    }
+
+    private void giveBackChunks() {
+        synchronized (pool) {
+            for (byte[] c : chunks)
+                if (pool.size() < MAX_POOLED)
+                    pool.add(c);
+        }
+        chunks.clear();
+        lastUsed = CHUNK_SIZE;
+    }
+
+    private static byte[] takeChunk() {
+        synchronized (pool) {
+            if (! pool.isEmpty())
+                return pool.removeFirst();
+        }
+        return new byte[CHUNK_SIZE];
+    }
+}
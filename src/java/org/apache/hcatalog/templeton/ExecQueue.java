@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for the processes run by ExecServiceImpl.  At
+ * most templeton.exec.max-procs processes run at once, and at most
+ * templeton.exec.max-procs-per-user for one user.  A request that
+ * can't run yet waits in a bounded queue for up to
+ * templeton.exec.max-queue-time milliseconds before it is turned
+ * away as busy.
+ *
+ * When a slot frees up it goes to the waiting request in the read
+ * lane before the write lane, then to the user with the fewest
+ * running processes, then to the oldest request.  So that a steady
+ * stream of reads can't starve the writes, at most READ_BURST read
+ * requests are let in ahead of a waiting write request.
+ */
+public class ExecQueue implements ExecQueueMBean {
+    public static final String MAX_PROCS_PER_USER_NAME
+        = "templeton.exec.max-procs-per-user";
+    public static final String MAX_QUEUE_NAME = "templeton.exec.max-queue";
+    public static final String MAX_QUEUE_TIME_NAME = "templeton.exec.max-queue-time";
+
+    /** The lane of cheap read only calls. */
+    public static final int READ = 0;
+
+    /** The lane of everything else. */
+    public static final int WRITE = 1;
+
+    /** Reads let in ahead of a waiting write before the write goes. */
+    public static final int READ_BURST = 4;
+
+    // Upper bounds of the wait histogram buckets, in milliseconds.
+    private static final long[] WAIT_BUCKETS = {10, 100, 1000, 10000};
+
+    // One waiting request.
+    private static class Waiter {
+        String user;
+        int lane;
+        long seq;
+        boolean admitted = false;
+    }
+
+    private final int maxProcs;
+    private final int maxPerUser;
+    private final int maxQueue;
+    private final long maxWait;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+    private final Map<String, Integer> runningByUser = new HashMap<String, Integer>();
+    private final Random random = new Random();
+    private int running = 0;
+    private long seq = 0;
+    private int readsAhead = 0;
+
+    // Stats, guarded by lock.
+    private int maxDepth = 0;
+    private long admitted = 0;
+    private long rejected = 0;
+    private long timeouts = 0;
+    private long[] waitHistogram = new long[WAIT_BUCKETS.length + 1];
+
+    /**
+     * Create a queue.
+     *
+     * @param maxProcs    Processes allowed to run at once.
+     * @param maxPerUser  Processes allowed to run at once for one user,
+     *                    0 for no limit.
+     * @param maxQueue    Requests allowed to wait at once.
+     * @param maxWait     Milliseconds a request may wait.
+     */
+    public ExecQueue(int maxProcs, int maxPerUser, int maxQueue, long maxWait) {
+        this.maxProcs = maxProcs;
+        this.maxPerUser = (maxPerUser <= 0) ? maxProcs : maxPerUser;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Wait for a slot to run a process.  Throws BusyException if the
+     * queue is full or no slot comes free in time.  Every successful
+     * call must be followed by a call to release.
+     */
+    public void acquire(String user, int lane)
+        throws BusyException, IOException
+    {
+        if (user == null)
+            user = "";
+        long start = System.currentTimeMillis();
+        long deadline = start + maxWait;
+
+        lock.lock();
+        try {
+            Waiter w = new Waiter();
+            w.user = user;
+            w.lane = lane;
+            w.seq = seq++;
+            waiting.add(w);
+            admit();
+
+            while (! w.admitted) {
+                if (waiting.size() > maxQueue) {
+                    waiting.remove(w);
+                    ++rejected;
+                    throw busy();
+                }
+                maxDepth = Math.max(maxDepth, waiting.size());
+
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    waiting.remove(w);
+                    ++timeouts;
+                    throw busy();
+                }
+                try {
+                    changed.await(left, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (! w.admitted) {
+                        waiting.remove(w);
+                        throw new IOException(e);
+                    }
+                }
+            }
+
+            ++admitted;
+            recordWait(System.currentTimeMillis() - start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back the slot of a finished process.
+     */
+    public void release(String user) {
+        if (user == null)
+            user = "";
+        lock.lock();
+        try {
+            --running;
+            Integer n = runningByUser.get(user);
+            if (n == null || n <= 1)
+                runningByUser.remove(user);
+            else
+                runningByUser.put(user, n - 1);
+            admit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand free slots to the best waiting requests.  Called with the
+    // lock held.
+    private void admit() {
+        boolean any = false;
+        while (running < maxProcs) {
+            Waiter best = null;
+            boolean writeWaiting = false;
+            for (Waiter w : waiting) {
+                if (running(w.user) >= maxPerUser)
+                    continue;
+                if (w.lane == WRITE)
+                    writeWaiting = true;
+                if (best == null || better(w, best))
+                    best = w;
+            }
+            if (best == null)
+                break;
+            if (best.lane == WRITE)
+                readsAhead = 0;
+            else if (writeWaiting)
+                ++readsAhead;
+
+            waiting.remove(best);
+            best.admitted = true;
+            ++running;
+            runningByUser.put(best.user, running(best.user) + 1);
+            any = true;
+        }
+        if (any)
+            changed.signalAll();
+    }
+
+    private boolean better(Waiter a, Waiter b) {
+        if (a.lane != b.lane) {
+            int first = (readsAhead < READ_BURST) ? READ : WRITE;
+            return a.lane == first;
+        }
+        int ra = running(a.user);
+        int rb = running(b.user);
+        if (ra != rb)
+            return ra < rb;
+        return a.seq < b.seq;
+    }
+
+    private int running(String user) {
+        Integer n = runningByUser.get(user);
+        return (n == null) ? 0 : n;
+    }
+
+    private void recordWait(long millis) {
+        int i = 0;
+        while (i < WAIT_BUCKETS.length && millis >= WAIT_BUCKETS[i])
+            ++i;
+        ++waitHistogram[i];
+    }
+
+    // Ask the client to come back after a random few seconds, so that
+    // the turned away clients don't all retry at once.
+    private BusyException busy() {
+        long wait = Math.max(1, maxWait / 1000);
+        return new BusyException((int) (wait + random.nextInt((int) wait + 1)));
+    }
+
+    //
+    // ExecQueueMBean
+    //
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmittedCount() {
+        lock.lock();
+        try {
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long[] getWaitHistogram() {
+        lock.lock();
+        try {
+            return waitHistogram.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
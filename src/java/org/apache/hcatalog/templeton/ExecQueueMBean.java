@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+/**
+ * JMX view of the exec admission queue.
+ */
+public interface ExecQueueMBean {
+    /** Processes running now. */
+    int getRunning();
+
+    /** Requests waiting for a slot now. */
+    int getQueueDepth();
+
+    /** Most requests ever waiting at once. */
+    int getMaxQueueDepth();
+
+    /** Requests given a slot. */
+    long getAdmittedCount();
+
+    /** Requests turned away because the queue was full. */
+    long getRejectedCount();
+
+    /** Requests turned away after waiting too long. */
+    long getTimeoutCount();
+
+    /**
+     * The number of admitted requests by time spent waiting: under
+     * 10ms, 100ms, 1s, 10s, and longer.
+     */
+    long[] getWaitHistogram();
+}
@@ -17,13 +17,12 @@
  */
 package org.apache.hcatalog.templeton;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteException;
@@ -31,6 +30,7 @@ import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics.util.MBeanUtil;
 
 /**
  * Execute a local program.  This is a singleton service that will
@@ -41,6 +41,8 @@ public class ExecServiceImpl implements ExecService {
     private static final Log LOG = LogFactory.getLog(ExecServiceImpl.class);
     private static AppConfig appConf = Main.getAppConfigInstance();
 
+    public static final String SPILL_BYTES_NAME = "templeton.exec.spill-bytes";
+
     private static volatile ExecServiceImpl theSingleton;
 
     /**
@@ -53,16 +55,33 @@ public class ExecServiceImpl implements ExecService {
         return theSingleton;
     }
 
-    private Semaphore avail;
+    private ExecQueue queue;
 
     private ExecServiceImpl() {
-        avail = new Semaphore(appConf.getInt(AppConfig.EXEC_MAX_PROCS_NAME, 16));
+        queue = new ExecQueue(appConf.getInt(AppConfig.EXEC_MAX_PROCS_NAME, 16),
+                              appConf.getInt(ExecQueue.MAX_PROCS_PER_USER_NAME, 0),
+                              appConf.getInt(ExecQueue.MAX_QUEUE_NAME, 64),
+                              appConf.getLong(ExecQueue.MAX_QUEUE_TIME_NAME, 10000));
+        try {
+            MBeanUtil.registerMBean("Templeton", "ExecQueue", queue);
+        } catch (Exception e) {
+            LOG.warn("Unable to register the exec queue mbean: " + e);
+        }
+    }
+
+    /**
+     * The queue that rate limits the exec calls.  Programs run some
+     * other way, like in an HcatWorkerPool, wait in it too.
+     */
+    public ExecQueue getQueue() {
+        return queue;
     }
 
     /**
      * Run the program synchronously as the given user. We rate limit
      * the number of processes that can simultaneously created for
-     * this instance.
+     * this instance, see ExecQueue.  A large stdout is left in its
+     * capture buffer, see ExecBean.
      *
      * @param user      A valid user
      * @param program   The program to run
@@ -73,21 +92,36 @@ public class ExecServiceImpl implements ExecService {
                         Map<String, String> env)
         throws NotAuthorizedException, BusyException, ExecuteException, IOException
     {
-        boolean aquired = false;
+        String user = (env == null) ? null : env.get("HADOOP_USER_NAME");
+        queue.acquire(user, lane(program, args));
         try {
-            aquired = avail.tryAcquire();
-            if (aquired) {
-                return runUnlimited(program, args, env);
-            } else {
-                throw new BusyException();
-            }
+            return runUnlimited(program, args, env);
         } finally {
-            if (aquired) {
-                avail.release();
-            }
+            queue.release(user);
         }
     }
 
+    // hcat statements that only read.
+    private static final Pattern READ_STATEMENT
+        = Pattern.compile("^\\s*(use|show|desc|describe)\\b.*",
+                          Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * The ExecQueue lane of a program.  hcat -e calls made only of
+     * use, show and describe statements are cheap reads; everything
+     * else is a write.
+     */
+    public static int lane(String program, List<String> args) {
+        if (program == null || ! program.equals(appConf.clusterHcat())
+            || args == null || args.size() < 2 || ! "-e".equals(args.get(0)))
+            return ExecQueue.WRITE;
+
+        for (String stmt : args.get(1).split(";"))
+            if (stmt.trim().length() > 0 && ! READ_STATEMENT.matcher(stmt).matches())
+                return ExecQueue.WRITE;
+        return ExecQueue.READ;
+    }
+
     /**
      * Run the program synchronously as the given user.  Warning:
      * CommandLine will trim the argument strings.
@@ -120,8 +154,9 @@ public class ExecServiceImpl implements ExecService {
 
         // Setup stdout and stderr
         int nbytes = appConf.getInt(AppConfig.EXEC_MAX_BYTES_NAME, -1);
-        ByteArrayOutputStream outStream = new MaxByteArrayOutputStream(nbytes);
-        ByteArrayOutputStream errStream = new MaxByteArrayOutputStream(nbytes);
+        long spill = appConf.getLong(SPILL_BYTES_NAME, 1024 * 1024);
+        ExecBuffer outStream = new ExecBuffer(spill, nbytes);
+        ExecBuffer errStream = new ExecBuffer(spill, nbytes);
         executor.setStreamHandler(new PumpStreamHandler(outStream, errStream));
 
         // Only run for N milliseconds
@@ -132,13 +167,24 @@ public class ExecServiceImpl implements ExecService {
         CommandLine cmd = makeCommandLine(program, args);
 
         LOG.info("Running: " + cmd);
-        ExecBean res = new ExecBean();
-        res.exitcode = executor.execute(cmd, execEnv(env));
         String enc = appConf.get(AppConfig.EXEC_ENCODING_NAME);
-        res.stdout = outStream.toString(enc);
-        res.stderr = errStream.toString(enc);
-
-        return res;
+        ExecBean res = null;
+        try {
+            int exitcode = executor.execute(cmd, execEnv(env));
+            res = new ExecBean(outStream, enc, errStream.toString(enc), exitcode);
+            if (outStream.isTruncated() || errStream.isTruncated())
+                LOG.warn("Output of " + program + " cut short at " + nbytes + " bytes");
+
+            // The output is only handed out as a stream if it's
+            // encoded the way json parsers expect.
+            if (enc != null && ! "UTF-8".equalsIgnoreCase(enc))
+                res.fillStdout();
+            return res;
+        } finally {
+            errStream.release();
+            if (res == null)
+                outStream.release();
+        }
     }
 
     private CommandLine makeCommandLine(String program,
@@ -17,12 +17,17 @@
  */
 package org.apache.hcatalog.templeton;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import javax.ws.rs.core.Response;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.lang.StringUtils;
@@ -40,23 +45,82 @@ import org.apache.hcatalog.templeton.tool.TempletonUtils;
  */
 public class HcatDelegator extends LauncherDelegator {
     private static final Log LOG = LogFactory.getLog(HcatDelegator.class);
+
+    public static final String STREAM_JSON_NAME = "templeton.ddl.stream-json";
+
     private ExecService execService;
+    private boolean streamJson;
 
     public HcatDelegator(AppConfig appConf, ExecService execService) {
         super(appConf);
         this.execService = execService;
+        this.streamJson = appConf.getBoolean(STREAM_JSON_NAME, false);
     }
 
     /**
-     * Run the local hcat executable.
+     * Run the local hcat executable.  Long statements are passed in a
+     * script file rather than on the command line.
      */
     public ExecBean run(String user, String exec, boolean format,
                         String group, String permissions)
         throws NotAuthorizedException, BusyException, ExecuteException, IOException
+    {
+        return runStatements(user, exec, format, group, permissions).fillStdout();
+    }
+
+    // Run hcat, leaving a large stdout in its capture buffer.
+    private ExecBean runStatements(String user, String exec, boolean format,
+                                   String group, String permissions)
+        throws NotAuthorizedException, BusyException, ExecuteException, IOException
+    {
+        if (exec == null || exec.length() <= MAX_EXEC_ARG_LENGTH)
+            return run(user, "-e", exec, format, group, permissions);
+
+        File f = writeScript(exec);
+        try {
+            return run(user, "-f", f.getPath(), format, group, permissions);
+        } finally {
+            f.delete();
+        }
+    }
+
+    // The longest statement passed with "-e".  Linux limits a single
+    // command line argument to 128k.
+    public static final int MAX_EXEC_ARG_LENGTH = 32 * 1024;
+
+    // Write statements to a temporary script file.
+    private File writeScript(String exec)
+        throws IOException
+    {
+        File f = File.createTempFile("templeton-ddl", ".hcat");
+        Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            out.write(exec);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    /**
+     * Run the local hcat executable on a script file.
+     */
+    public ExecBean runFile(String user, File script, boolean format,
+                            String group, String permissions)
+        throws NotAuthorizedException, BusyException, ExecuteException, IOException
+    {
+        return run(user, "-f", script.getPath(), format, group, permissions)
+            .fillStdout();
+    }
+
+    // Run hcat with either "-e statements" or "-f file".
+    private ExecBean run(String user, String flag, String source, boolean format,
+                         String group, String permissions)
+        throws NotAuthorizedException, BusyException, ExecuteException, IOException
     {
         SecureProxySupport proxy = new SecureProxySupport();
         try {
-            List<String> args = makeArgs(exec, format, group, permissions);
+            List<String> args = makeArgs(flag, source, format, group, permissions);
             proxy.open(user, appConf);
 
             // Setup the hadoop vars to specify the user.
@@ -73,11 +137,11 @@ public class HcatDelegator extends LauncherDelegator {
         }
     }
 
-    private List<String> makeArgs(String exec, boolean format,
+    private List<String> makeArgs(String flag, String source, boolean format,
                                   String group, String permissions) {
         ArrayList<String> args = new ArrayList<String>();
-        args.add("-e");
-        args.add(exec);
+        args.add(flag);
+        args.add(source);
         if (TempletonUtils.isset(group)) {
             args.add("-g");
             args.add(group);
@@ -110,8 +174,7 @@ public class HcatDelegator extends LauncherDelegator {
             exec = "desc database extended " + db + "; ";
 
         try {
-            String res = jsonRun(user, exec);
-            return JsonBuilder.create(res).build();
+            return jsonResult(user, exec).build();
         } catch (HcatException e) {
             if (e.execBean.stderr.indexOf("Error in semantic analysis") > -1) {
                 return JsonBuilder.create().
@@ -134,9 +197,7 @@ public class HcatDelegator extends LauncherDelegator {
     {
         String exec = String.format("show databases like '%s';", dbPattern);
         try {
-            String res = jsonRun(user, exec);
-            return JsonBuilder.create(res)
-                .build();
+            return jsonResult(user, exec).build();
         } catch (HcatException e) {
             throw new HcatException("unable to show databases for: " + dbPattern,
                                     e.execBean, exec);
@@ -163,7 +224,7 @@ public class HcatDelegator extends LauncherDelegator {
                                   makePropertiesStatement(desc.properties));
         exec += ";";
 
-        String res = jsonRun(user, exec, desc.group, desc.permissions);
+        Map res = jsonRun(user, exec, desc.group, desc.permissions);
         return JsonBuilder.create(res)
             .put("database", desc.database)
             .build();
@@ -186,7 +247,7 @@ public class HcatDelegator extends LauncherDelegator {
             exec += " " + option;
         exec += ";";
 
-        String res = jsonRun(user, exec, group, permissions);
+        Map res = jsonRun(user, exec, group, permissions);
         return JsonBuilder.create(res)
             .put("database", db)
             .build();
@@ -202,7 +263,7 @@ public class HcatDelegator extends LauncherDelegator {
         String exec = makeCreateTable(db, desc);
 
         try {
-            String res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
 
             return JsonBuilder.create(res)
                 .put("database", db)
@@ -231,7 +292,7 @@ public class HcatDelegator extends LauncherDelegator {
         exec += ";";
 
         try {
-            String res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
 
             return JsonBuilder.create(res)
                 .put("database", db)
@@ -249,6 +310,19 @@ public class HcatDelegator extends LauncherDelegator {
     public Response descTable(String user, String db, String table, boolean extended)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
+    {
+        return descTable(user, db, table, extended, streamJson);
+    }
+
+    /**
+     * Return a json description of the table.  The internal callers
+     * that read the description pass stream as false, to get a Map
+     * rather than a JsonStream.
+     */
+    protected Response descTable(String user, String db, String table,
+                                 boolean extended, boolean stream)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
     {
         String exec = "use " + db + "; ";
         if (extended)
@@ -256,8 +330,10 @@ public class HcatDelegator extends LauncherDelegator {
         else
             exec += "desc " + table + "; ";
         try {
-            String res = jsonRun(user, exec);
-            return JsonBuilder.create(res)
+            JsonBuilder jb = stream
+                ? jsonResult(user, exec)
+                : JsonBuilder.create(jsonRun(user, exec));
+            return jb
                 .put("database", db)
                 .put("table", table)
                 .build();
@@ -278,8 +354,7 @@ public class HcatDelegator extends LauncherDelegator {
         String exec = String.format("use %s; show tables like '%s';",
                                     db, tablePattern);
         try {
-            String res = jsonRun(user, exec);
-            return JsonBuilder.create(res)
+            return jsonResult(user, exec)
                 .put("database", db)
                 .build();
         } catch (HcatException e) {
@@ -299,7 +374,7 @@ public class HcatDelegator extends LauncherDelegator {
         String exec = String.format("use %s; show table extended like %s;",
                                     db, table);
         try {
-            String res = jsonRun(user, exec);
+            Map res = jsonRun(user, exec);
             JsonBuilder jb = JsonBuilder.create(singleTable(res, table))
                 .remove("tableName")
                 .put("database", db)
@@ -340,7 +415,7 @@ public class HcatDelegator extends LauncherDelegator {
     }
 
     // Make a create table statement
-    private String makeCreateTable(String db, TableDesc desc) {
+    String makeCreateTable(String db, TableDesc desc) {
         String exec = String.format("use %s; create", db);
 
         if (desc.external)
@@ -458,22 +533,102 @@ public class HcatDelegator extends LauncherDelegator {
         return res;
     }
 
+    // Make a drop table statement
+    String makeDropTable(String db, String table, boolean ifExists) {
+        String exec = String.format("use %s; drop table", db);
+        if (ifExists)
+            exec += " if exists";
+        exec += String.format(" %s;", table);
+        return exec;
+    }
+
+    // Make a rename table statement
+    String makeRenameTable(String db, String oldTable, String newTable) {
+        return String.format("use %s; alter table %s rename to %s;",
+                             db, oldTable, newTable);
+    }
+
+    // Make a set table property statement
+    String makeAddTableProperty(String db, String table, TablePropertyDesc desc) {
+        return String.format("use %s; alter table %s set tblproperties ('%s'='%s');",
+                             db, table, desc.name, desc.value);
+    }
+
+    // Make an add partition statement
+    String makeAddPartition(String db, String table, PartitionDesc desc) {
+        String exec = String.format("use %s; alter table %s add", db, table);
+        if (desc.ifNotExists)
+            exec += " if not exists";
+        exec += String.format(" partition (%s)", desc.partition);
+        if (TempletonUtils.isset(desc.location))
+            exec += String.format(" location '%s'", desc.location);
+        exec += ";";
+        return exec;
+    }
+
+    // Make an add statement for many partitions
+    String makeAddPartitions(String db, String table, PartitionListDesc desc) {
+        StringBuilder exec = new StringBuilder();
+        exec.append(String.format("use %s; alter table %s add", db, table));
+        if (desc.ifNotExists)
+            exec.append(" if not exists");
+        for (PartitionDesc p : desc.partitions) {
+            exec.append(String.format(" partition (%s)", p.partition));
+            if (TempletonUtils.isset(p.location))
+                exec.append(String.format(" location '%s'", p.location));
+        }
+        exec.append(";");
+        return exec.toString();
+    }
+
+    // Make a drop statement for many partitions
+    String makeDropPartitions(String db, String table, List<String> partitions,
+                              boolean ifExists) {
+        ArrayList<String> specs = new ArrayList<String>();
+        for (String p : partitions)
+            specs.add(String.format("partition (%s)", p));
+        String exec = String.format("use %s; alter table %s drop", db, table);
+        if (ifExists)
+            exec += " if exists";
+        exec += String.format(" %s;", StringUtils.join(specs, ", "));
+        return exec;
+    }
+
+    // Make a drop partition statement
+    String makeDropPartition(String db, String table, String partition,
+                             boolean ifExists) {
+        String exec = String.format("use %s; alter table %s drop", db, table);
+        if (ifExists)
+            exec += " if exists";
+        exec += String.format(" partition (%s);", partition);
+        return exec;
+    }
+
+    // Make an add column statement
+    String makeAddColumn(String db, String table, ColumnDesc desc) {
+        String exec = String.format("use %s; alter table %s add columns (%s %s",
+                                    db, table, desc.name, desc.type);
+        if (TempletonUtils.isset(desc.comment))
+            exec += String.format(" comment '%s'", desc.comment);
+        exec += ");";
+        return exec;
+    }
+
     // Pull out the first table from the "show extended" json.
-    private String singleTable(String json, String table)
+    private Map singleTable(Map obj, String table)
         throws IOException
     {
-        Map obj = JsonBuilder.jsonToMap(json);
         if (JsonBuilder.isError(obj))
-            return json;
+            return obj;
 
         List tables = (List) obj.get("tables");
         if (TempletonUtils.isset(tables))
-            return JsonBuilder.mapToJson(tables.get(0));
+            return (Map) tables.get(0);
         else {
             return JsonBuilder
                 .createError(String.format("Table %s does not exist", table),
-                             JsonBuilder.MISSING).
-                buildJson();
+                             JsonBuilder.MISSING)
+                .getMap();
         }
     }
 
@@ -486,13 +641,10 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec = String.format("use %s; drop table", db);
-        if (ifExists)
-            exec += " if exists";
-        exec += String.format(" %s;", table);
+        String exec = makeDropTable(db, table, ifExists);
 
         try {
-            String res = jsonRun(user, exec, group, permissions, true);
+            Map res = jsonRun(user, exec, group, permissions, true);
             return JsonBuilder.create(res)
                 .put("database", db)
                 .put("table", table)
@@ -511,10 +663,9 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec = String.format("use %s; alter table %s rename to %s;",
-                                    db, oldTable, newTable);
+        String exec = makeRenameTable(db, oldTable, newTable);
         try {
-            String res = jsonRun(user, exec, group, permissions, true);
+            Map res = jsonRun(user, exec, group, permissions, true);
             return JsonBuilder.create(res)
                 .put("database", db)
                 .put("table", newTable)
@@ -533,7 +684,7 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        Response res = descTable(user, db, table, true);
+        Response res = descTable(user, db, table, true, false);
         if (res.getStatus() != JsonBuilder.OK)
             return res;
         Map props = tableProperties(res.getEntity());
@@ -560,7 +711,7 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        Response res = descTable(user, db, table, true);
+        Response res = descTable(user, db, table, true, false);
         if (res.getStatus() != JsonBuilder.OK)
             return res;
         Map props = tableProperties(res.getEntity());
@@ -579,11 +730,9 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec
-            = String.format("use %s; alter table %s set tblproperties ('%s'='%s');",
-                            db, table, desc.name, desc.value);
+        String exec = makeAddTableProperty(db, table, desc);
         try {
-            String res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
             return JsonBuilder.create(res)
                 .put("database", db)
                 .put("table", table)
@@ -612,12 +761,23 @@ public class HcatDelegator extends LauncherDelegator {
     public Response listPartitions(String user, String db, String table)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
+    {
+        return showPartitions(user, db, table, streamJson);
+    }
+
+    // Run show partitions in hcat.
+    private Response showPartitions(String user, String db, String table,
+                                    boolean stream)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
     {
         String exec = "use " + db + "; ";
         exec += "show partitions " + table + "; ";
         try {
-            String res = jsonRun(user, exec);
-            return JsonBuilder.create(res)
+            JsonBuilder jb = stream
+                ? jsonResult(user, exec)
+                : JsonBuilder.create(jsonRun(user, exec));
+            return jb
                 .put("database", db)
                 .put("table", table)
                 .build();
@@ -627,6 +787,39 @@ public class HcatDelegator extends LauncherDelegator {
         }
     }
 
+    /**
+     * Return one page of the partitions, streamed to the client.
+     * hcat can't evaluate a filter and only knows the partition names
+     * and values, so the other fields are left out.
+     */
+    public Response listPartitions(String user, String db, String table,
+                                   final PartitionQuery q)
+        throws HcatException, NotAuthorizedException, BusyException,
+        BadParam, ExecuteException, IOException
+    {
+        if (TempletonUtils.isset(q.filter))
+            throw new BadParam("filter needs the " + AppConfig.HCAT_BACKEND_METASTORE
+                               + " value of " + AppConfig.HCAT_BACKEND_NAME);
+
+        Response all = showPartitions(user, db, table, false);
+        Map json = (Map) all.getEntity();
+        if (all.getStatus() != JsonBuilder.OK || ! (json.get("partitions") instanceof List))
+            return all;
+
+        final Map<String, Map<String, Object>> parts
+            = new HashMap<String, Map<String, Object>>();
+        for (Object o : (List) json.get("partitions")) {
+            Map<String, Object> p = (Map<String, Object>) o;
+            parts.put((String) p.get("name"), p);
+        }
+        List<String> page = q.page(new ArrayList<String>(parts.keySet()));
+        return new PartitionStream(db, table, page, new PartitionStream.PartitionMaker() {
+                public Map<String, Object> make(String name) {
+                    return q.select(parts.get(name));
+                }
+            }, q.nextToken()).build();
+    }
+
     /**
      * Return a json description of one partition.
      */
@@ -639,7 +832,7 @@ public class HcatDelegator extends LauncherDelegator {
         exec += "show table extended like " + table
             + " partition (" + partition + "); ";
         try {
-            String res = jsonRun(user, exec);
+            Map res = jsonRun(user, exec);
             return JsonBuilder.create(singleTable(res, table))
                 .remove("tableName")
                 .put("database", db)
@@ -662,16 +855,10 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec = String.format("use %s; alter table %s add", db, table);
-        if (desc.ifNotExists)
-            exec += " if not exists";
-        exec += String.format(" partition (%s)", desc.partition);
-        if (TempletonUtils.isset(desc.location))
-            exec += String.format(" location '%s'", desc.location);
-        exec += ";";
+        String exec = makeAddPartition(db, table, desc);
         try {
-            String res = jsonRun(user, exec, desc.group, desc.permissions, true);
-            if (res.indexOf("AlreadyExistsException") > -1) {
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            if (mentions(res, "AlreadyExistsException")) {
                 return JsonBuilder.create().
                         put("error", "Partition already exists")
                         .put("errorCode", "409")
@@ -699,13 +886,10 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec = String.format("use %s; alter table %s drop", db, table);
-        if (ifExists)
-            exec += " if exists";
-        exec += String.format(" partition (%s);", partition);
+        String exec = makeDropPartition(db, table, partition, ifExists);
 
         try {
-            String res = jsonRun(user, exec, group, permissions, true);
+            Map res = jsonRun(user, exec, group, permissions, true);
             return JsonBuilder.create(res)
                 .put("database", db)
                 .put("table", table)
@@ -717,6 +901,58 @@ public class HcatDelegator extends LauncherDelegator {
         }
     }
 
+    /**
+     * Add many partitions with a single statement.
+     */
+    public Response addPartitions(String user, String db, String table,
+                                  PartitionListDesc desc)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        String exec = makeAddPartitions(db, table, desc);
+        try {
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            if (mentions(res, "AlreadyExistsException")) {
+                return JsonBuilder.create().
+                        put("error", "Partition already exists")
+                        .put("errorCode", "409")
+                        .put("database", db)
+                        .put("table", table).build();
+            }
+            return JsonBuilder.create(res)
+                .put("database", db)
+                .put("table", table)
+                .put("partitions", desc.partitionNames())
+                .build();
+        } catch (HcatException e) {
+            throw new HcatException("unable to add partitions: " + desc,
+                                    e.execBean, exec);
+        }
+    }
+
+    /**
+     * Drop many partitions with a single statement.
+     */
+    public Response dropPartitions(String user, String db, String table,
+                                   List<String> partitions, boolean ifExists,
+                                   String group, String permissions)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        String exec = makeDropPartitions(db, table, partitions, ifExists);
+        try {
+            Map res = jsonRun(user, exec, group, permissions, true);
+            return JsonBuilder.create(res)
+                .put("database", db)
+                .put("table", table)
+                .put("partitions", partitions)
+                .build();
+        } catch (HcatException e) {
+            throw new HcatException("unable to drop partitions: " + partitions,
+                                    e.execBean, exec);
+        }
+    }
+
     /**
      * Return a json description of the columns.  Same as
      * describeTable.
@@ -724,9 +960,18 @@ public class HcatDelegator extends LauncherDelegator {
     public Response listColumns(String user, String db, String table)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
+    {
+        return showColumns(user, db, table, streamJson);
+    }
+
+    // Describe the columns of a table.
+    private Response showColumns(String user, String db, String table,
+                                 boolean stream)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
     {
         try {
-            return descTable(user, db, table, false);
+            return descTable(user, db, table, false, stream);
         } catch (HcatException e) {
             throw new HcatException("unable to show columns for table: " + table,
                                     e.execBean, e.statement);
@@ -740,7 +985,7 @@ public class HcatDelegator extends LauncherDelegator {
         throws SimpleWebException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        Response res = listColumns(user, db, table);
+        Response res = showColumns(user, db, table, false);
         if (res.getStatus() != JsonBuilder.OK)
             return res;
 
@@ -779,13 +1024,9 @@ public class HcatDelegator extends LauncherDelegator {
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        String exec = String.format("use %s; alter table %s add columns (%s %s",
-                                    db, table, desc.name, desc.type);
-        if (TempletonUtils.isset(desc.comment))
-            exec += String.format(" comment '%s'", desc.comment);
-        exec += ");";
+        String exec = makeAddColumn(db, table, desc);
         try {
-            String res = jsonRun(user, exec, desc.group, desc.permissions, true);
+            Map res = jsonRun(user, exec, desc.group, desc.permissions, true);
             return JsonBuilder.create(res)
                 .put("database", db)
                 .put("table", table)
@@ -797,48 +1038,238 @@ public class HcatDelegator extends LauncherDelegator {
         }
     }
 
-    // Check that the hcat result is valid and or has a valid json
-    // error
-    private boolean isValid(ExecBean eb, boolean requireEmptyOutput) {
-        if (eb == null)
-            return false;
+    /**
+     * Run a list of ddl operations with a single hcat call.  The
+     * statements are written to a script file, each one preceded by
+     * a "set" that prints its position, so that we can tell how far
+     * hcat got.  hcat stops at the first statement that fails: the
+     * operations after it are reported as skipped.
+     */
+    public Response batch(String user, BatchDesc desc)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < desc.operations.size(); ++i) {
+            script.append(String.format("set %s=%d; set %s;\n",
+                                        BATCH_STEP_NAME, i, BATCH_STEP_NAME));
+            script.append(makeBatchStatement(desc.operations.get(i)));
+            script.append("\n");
+        }
 
+        File f = writeScript(script.toString());
         try {
-            Map m = JsonBuilder.jsonToMap(eb.stdout);
-            if (m.containsKey("error")) // This is a valid error message.
-                return true;
-        } catch (IOException e) {
-            return false;
+            ExecBean eb = runFile(user, f, true, desc.group, desc.permissions);
+            return batchResults(desc, eb, script.toString());
+        } finally {
+            f.delete();
+        }
+    }
+
+    public static final String BATCH_STEP_NAME = "templeton.batch.step";
+
+    // The statement for one batch operation.
+    String makeBatchStatement(BatchOperationDesc op) {
+        String db = op.database;
+        String o = op.operation;
+        if (BatchOperationDesc.CREATE_TABLE.equals(o))
+            return makeCreateTable(db, op.create);
+        if (BatchOperationDesc.DROP_TABLE.equals(o))
+            return makeDropTable(db, op.table, op.ifExists);
+        if (BatchOperationDesc.RENAME_TABLE.equals(o))
+            return makeRenameTable(db, op.table, op.rename);
+        if (BatchOperationDesc.ADD_PARTITION.equals(o)) {
+            PartitionDesc pd = new PartitionDesc();
+            pd.partition = op.partition;
+            pd.location = op.location;
+            pd.ifNotExists = op.ifNotExists;
+            return makeAddPartition(db, op.table, pd);
+        }
+        if (BatchOperationDesc.DROP_PARTITION.equals(o))
+            return makeDropPartition(db, op.table, op.partition, op.ifExists);
+        if (BatchOperationDesc.ADD_COLUMN.equals(o))
+            return makeAddColumn(db, op.table, op.column);
+        if (BatchOperationDesc.SET_PROPERTY.equals(o))
+            return makeAddTableProperty(db, op.table, op.property);
+        throw new IllegalArgumentException("Unknown batch operation " + o);
+    }
+
+    // Turn the hcat output into one result per operation.
+    private Response batchResults(BatchDesc desc, ExecBean eb, String script)
+        throws HcatException, IOException
+    {
+        int last = -1;
+        StringBuilder rest = new StringBuilder();
+        String prefix = BATCH_STEP_NAME + "=";
+        if (eb.stdout != null) {
+            for (String line : eb.stdout.split("\n")) {
+                if (line.startsWith(prefix)) {
+                    try {
+                        last = Integer.parseInt(line.substring(prefix.length()).trim());
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // Not ours
+                    }
+                }
+                rest.append(line).append("\n");
+            }
         }
 
+        String error = null;
+        if (TempletonUtils.isset(rest.toString().trim())) {
+            try {
+                Map m = JsonBuilder.jsonToMap(rest.toString());
+                if (JsonBuilder.isError(m))
+                    error = String.valueOf(m.get("error"));
+            } catch (IOException e) {
+                error = rest.toString().trim();
+            }
+        }
+        if (error == null && eb.exitcode != 0)
+            error = batchStderrMessage(eb);
+        if (error != null && last < 0)
+            throw new HcatException("Failure calling hcat: batch", eb, script);
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < desc.operations.size(); ++i) {
+            BatchOperationDesc op = desc.operations.get(i);
+            Map<String, Object> r = new HashMap<String, Object>();
+            r.put("operation", op.operation);
+            r.put("database", op.database);
+            r.put("table", op.targetTable());
+            if (op.partition != null)
+                r.put("partition", op.partition);
+            if (error == null || i < last)
+                r.put("status", "ok");
+            else if (i == last) {
+                r.put("status", "failed");
+                r.put("error", error);
+            } else
+                r.put("status", "skipped");
+            results.add(r);
+        }
+
+        JsonBuilder jb = JsonBuilder.create().put("results", results);
+        if (error != null)
+            jb.put("error", String.format("Batch stopped at operation %d: %s",
+                                          last, error))
+                .put("errorCode", JsonBuilder.SERVER_ERROR);
+        return jb.build();
+    }
+
+    // The hcat failure message, from the "FAILED:" line of stderr.
+    private String batchStderrMessage(ExecBean eb) {
+        if (eb.stderr != null)
+            for (String line : eb.stderr.split("\n"))
+                if (line.startsWith("FAILED:"))
+                    return line.trim();
+        return "hcat exited with " + eb.exitcode;
+    }
+
+    // Check that the hcat result is valid and or has a valid json
+    // error.  json is the parsed stdout, or null if it didn't parse.
+    private boolean isValid(ExecBean eb, Map json, boolean requireEmptyOutput) {
+        if (eb == null || json == null)
+            return false;
+
+        if (json.containsKey("error")) // This is a valid error message.
+            return true;
+
         if (eb.exitcode != 0)
             return false;
 
         if (requireEmptyOutput)
-            if (TempletonUtils.isset(eb.stdout))
+            if (eb.hasStdout())
                 return false;
 
         return true;
     }
 
-    // Run an hcat expression and return just the json outout.
-    private String jsonRun(String user, String exec,
-                           String group, String permissions,
-                           boolean requireEmptyOutput)
+    // Does the json mention this text anywhere?
+    private static boolean mentions(Map json, String text) {
+        return String.valueOf(json).indexOf(text) > -1;
+    }
+
+    // Run an hcat expression and return just the json outout, parsed
+    // straight from the capture buffer.
+    private Map jsonRun(String user, String exec,
+                        String group, String permissions,
+                        boolean requireEmptyOutput)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        ExecBean res = runStatements(user, exec, true, group, permissions);
+        try {
+            if (res.isTruncated())
+                throw new HcatException("hcat output is larger than "
+                                        + AppConfig.EXEC_MAX_BYTES_NAME + ": " + exec,
+                                        res.fillStdout(), exec);
+
+            Map json = null;
+            try {
+                json = JsonBuilder.jsonToMap(res.stdoutStream());
+            } catch (IOException e) {
+                // Not json, invalid.
+            }
+            if (! isValid(res, json, requireEmptyOutput))
+                throw new HcatException("Failure calling hcat: " + exec,
+                                        res.fillStdout(), exec);
+            return json;
+        } finally {
+            res.release();
+        }
+    }
+
+    // Run a read only hcat expression and return a builder of its
+    // json result.  With templeton.ddl.stream-json the json is copied
+    // to the client without being parsed, see JsonStream; it is
+    // scanned once here for errors.
+    private JsonBuilder jsonResult(String user, String exec)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
-        ExecBean res = run(user, exec, true, group, permissions);
+        if (! streamJson)
+            return JsonBuilder.create(jsonRun(user, exec));
 
-        if (! isValid(res, requireEmptyOutput))
-            throw new HcatException("Failure calling hcat: " + exec, res, exec);
+        ExecBean res = runStatements(user, exec, true, null, null);
+        boolean streaming = false;
+        try {
+            if (res.isTruncated())
+                throw new HcatException("hcat output is larger than "
+                                        + AppConfig.EXEC_MAX_BYTES_NAME + ": " + exec,
+                                        res.fillStdout(), exec);
+
+            Set<String> fields = null;
+            try {
+                fields = JsonStream.topLevelFields(res.stdoutStream());
+            } catch (IOException e) {
+                // Not json, invalid.
+            }
+            if (res.exitcode == 0 && fields != null && ! fields.contains("error")) {
+                streaming = true;
+                return JsonBuilder.createStream(res);
+            }
 
-        return res.stdout;
+            // Errors are small, build them the usual way.
+            Map json = null;
+            try {
+                json = JsonBuilder.jsonToMap(res.stdoutStream());
+            } catch (IOException e) {
+                // Not json, invalid.
+            }
+            if (! isValid(res, json, false))
+                throw new HcatException("Failure calling hcat: " + exec,
+                                        res.fillStdout(), exec);
+            return JsonBuilder.create(json);
+        } finally {
+            if (! streaming)
+                res.release();
+        }
     }
 
     // Run an hcat expression and return just the json outout.  No
     // permissions set.
-    private String jsonRun(String user, String exec)
+    private Map jsonRun(String user, String exec)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
@@ -846,8 +1277,8 @@ public class HcatDelegator extends LauncherDelegator {
     }
 
     // Run an hcat expression and return just the json outout.
-    private String jsonRun(String user, String exec,
-                           String group, String permissions)
+    private Map jsonRun(String user, String exec,
+                        String group, String permissions)
         throws HcatException, NotAuthorizedException, BusyException,
         ExecuteException, IOException
     {
@@ -0,0 +1,563 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.hcatalog.templeton.tool.HcatWorker;
+import org.apache.hcatalog.templeton.tool.TempletonUtils;
+
+/**
+ * Run hcat commands in a pool of long running worker processes, see
+ * HcatWorker.  This saves the JVM startup, Hive class loading and
+ * metastore connect of every hcat call.
+ *
+ * A worker runs with the environment of the request that started it,
+ * which names the proxy user and, with security, the delegation
+ * token.  So a worker only serves requests with the same environment.
+ * Each request gets a fresh Hive session.  A worker is stopped after
+ * templeton.hcat.worker.max-requests requests, after an error or a
+ * timeout, and after sitting idle too long.
+ *
+ * Calls with a group or permissions, and anything that isn't hcat,
+ * are run by the ExecServiceImpl as before.  So is any call when a
+ * worker fails to start.
+ */
+public class HcatWorkerPool implements ExecService, HcatWorkerPoolMBean {
+    private static final Log LOG = LogFactory.getLog(HcatWorkerPool.class);
+
+    public static final String WORKERS_NAME = "templeton.hcat.workers";
+    public static final String MAX_REQUESTS_NAME
+        = "templeton.hcat.worker.max-requests";
+    public static final String IDLE_TIMEOUT_NAME
+        = "templeton.hcat.worker.idle-timeout";
+    public static final String MAX_WAIT_NAME = "templeton.hcat.worker.max-wait";
+    public static final String CLASSPATH_NAME = "templeton.hcat.worker.classpath";
+
+    private static volatile HcatWorkerPool theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized HcatWorkerPool getInstance(AppConfig appConf) {
+        if (theSingleton == null) {
+            theSingleton = new HcatWorkerPool(appConf, ExecServiceImpl.getInstance());
+            theSingleton.start();
+        }
+        return theSingleton;
+    }
+
+    /**
+     * Are the workers turned on?
+     */
+    public static boolean isEnabled(AppConfig appConf) {
+        return appConf.getInt(WORKERS_NAME, 0) > 0;
+    }
+
+    // One worker process.
+    private static class Worker {
+        String key;
+        Process proc;
+        DataOutputStream in;    // The worker's stdin
+        DataInputStream out;    // The worker's stdout
+        int requests = 0;
+        long lastUsed = System.currentTimeMillis();
+        volatile boolean killed = false;
+
+        void stop() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Going away anyway
+            }
+            proc.destroy();
+        }
+    }
+
+    private final AppConfig appConf;
+    private final ExecServiceImpl exec;
+    private final int maxWorkers;
+    private final int maxRequests;
+    private final long idleTimeout;
+    private final long maxWait;
+    private final long timeout;
+    private final int maxBytes;
+    private final Timer watchdog = new Timer("hcat-worker-watchdog", true);
+    private final Random random = new Random();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, LinkedList<Worker>> idle
+        = new HashMap<String, LinkedList<Worker>>();
+    private int total = 0;      // Running or starting workers.
+    private int idleTotal = 0;
+
+    // Stats, guarded by lock.
+    private long requests = 0;
+    private long starts = 0;
+    private long failures = 0;
+    private long fallbacks = 0;
+
+    private HcatWorkerPool(AppConfig appConf, ExecServiceImpl exec) {
+        this.appConf = appConf;
+        this.exec = exec;
+        maxWorkers = appConf.getInt(WORKERS_NAME, 0);
+        maxRequests = appConf.getInt(MAX_REQUESTS_NAME, 100);
+        idleTimeout = appConf.getLong(IDLE_TIMEOUT_NAME, 300000);
+        maxWait = appConf.getLong(MAX_WAIT_NAME, 10000);
+        timeout = appConf.getLong(AppConfig.EXEC_TIMEOUT_NAME, 0);
+        maxBytes = appConf.getInt(AppConfig.EXEC_MAX_BYTES_NAME, -1);
+    }
+
+    private void start() {
+        try {
+            MBeanUtil.registerMBean("Templeton", "HcatWorkerPool", this);
+        } catch (Exception e) {
+            LOG.warn("Unable to register the hcat worker pool mbean: " + e);
+        }
+
+        Thread evictor = new Thread("hcat-worker-evictor") {
+                public void run() {
+                    long interval = Math.max(1000, idleTimeout / 2);
+                    while (true) {
+                        try {
+                            Thread.sleep(interval);
+                            evictIdle();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            LOG.warn("hcat worker eviction failed: " + e);
+                        }
+                    }
+                }
+            };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Run an hcat command line in a worker.  The call first waits its
+     * turn in the ExecQueue, like every exec call, so it shares the
+     * per user limits and the read and write lanes.  Then it waits up
+     * to templeton.hcat.worker.max-wait for a free worker and throws
+     * BusyException if none comes free.
+     */
+    public ExecBean run(String program, List<String> args,
+                        Map<String, String> env)
+        throws NotAuthorizedException, BusyException, ExecuteException, IOException
+    {
+        if (! canRun(program, args))
+            return exec.run(program, args, env);
+
+        String user = (env == null) ? null : env.get("HADOOP_USER_NAME");
+        ExecQueue queue = exec.getQueue();
+        queue.acquire(user, ExecServiceImpl.lane(program, args));
+        try {
+            Worker w = borrow(workerKey(env), env);
+            if (w == null)
+                return exec.runUnlimited(program, args, env);
+
+            boolean ok = false;
+            try {
+                ExecBean res = call(w, args);
+                ok = true;
+                return res;
+            } finally {
+                release(w, ok);
+            }
+        } finally {
+            queue.release(user);
+        }
+    }
+
+    /**
+     * Not rate limited, so always run by ExecServiceImpl.
+     */
+    public ExecBean runUnlimited(String program, List<String> args,
+                                 Map<String, String> env)
+        throws NotAuthorizedException, ExecuteException, IOException
+    {
+        return exec.runUnlimited(program, args, env);
+    }
+
+    /**
+     * Can a worker run this command line?  Only hcat with the
+     * arguments HcatWorker understands.
+     */
+    public boolean canRun(String program, List<String> args) {
+        if (program == null || ! program.equals(appConf.clusterHcat()))
+            return false;
+        if (args == null || args.size() % 2 != 0)
+            return false;
+        for (int i = 0; i < args.size(); i += 2) {
+            String flag = args.get(i);
+            if (! ("-e".equals(flag) || "-f".equals(flag) || "-D".equals(flag)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Workers are shared by requests with the same environment.
+     */
+    public static String workerKey(Map<String, String> env) {
+        if (env == null)
+            return "";
+        return new TreeMap<String, String>(env).toString();
+    }
+
+    // Get an idle worker with this environment, or start a new one.
+    // Returns null if a new worker failed to start.
+    private Worker borrow(String key, Map<String, String> env)
+        throws BusyException, IOException
+    {
+        long deadline = System.currentTimeMillis() + maxWait;
+        lock.lock();
+        try {
+            while (true) {
+                LinkedList<Worker> ws = idle.get(key);
+                if (ws != null && ! ws.isEmpty()) {
+                    --idleTotal;
+                    Worker w = ws.removeFirst();
+                    if (ws.isEmpty())
+                        idle.remove(key);
+                    return w;
+                }
+                if (total >= maxWorkers)
+                    stopOneIdle();
+                if (total < maxWorkers) {
+                    ++total;
+                    break;
+                }
+
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw busy();
+                changed.await(left, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+
+        Worker w = null;
+        try {
+            w = startWorker(key, env);
+        } catch (IOException e) {
+            LOG.warn("Unable to start an hcat worker, running hcat instead: " + e);
+        } catch (NotAuthorizedException e) {
+            LOG.warn("Unable to start an hcat worker, running hcat instead: " + e);
+        }
+
+        if (w == null) {
+            lock.lock();
+            try {
+                --total;
+                ++fallbacks;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return w;
+    }
+
+    // Return a worker after a request.
+    private void release(Worker w, boolean ok) {
+        boolean stop = true;
+        lock.lock();
+        try {
+            ++requests;
+            ++w.requests;
+            if (! ok) {
+                ++failures;
+                --total;
+            } else if (w.requests >= maxRequests) {
+                --total;
+            } else {
+                w.lastUsed = System.currentTimeMillis();
+                LinkedList<Worker> ws = idle.get(w.key);
+                if (ws == null) {
+                    ws = new LinkedList<Worker>();
+                    idle.put(w.key, ws);
+                }
+                ws.addFirst(w);
+                ++idleTotal;
+                stop = false;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (stop)
+            w.stop();
+    }
+
+    // Send one request to a worker and read the response.
+    private ExecBean call(Worker w, List<String> args)
+        throws IOException
+    {
+        TimerTask kill = watch(w);
+        try {
+            w.in.writeInt(args.size());
+            for (String arg : args)
+                HcatWorker.writeString(w.in, arg);
+            w.in.flush();
+
+            int exitcode = w.out.readInt();
+            boolean truncated = w.out.readBoolean();
+            String stdout = HcatWorker.readString(w.out);
+            String stderr = HcatWorker.readString(w.out);
+            ExecBean res = new ExecBean(stdout, stderr, exitcode);
+            res.setTruncated(truncated);
+            return res;
+        } catch (IOException e) {
+            if (w.killed)
+                throw new IOException("hcat worker timed out after " + timeout + "ms");
+            throw e;
+        } finally {
+            if (kill != null)
+                kill.cancel();
+        }
+    }
+
+    // Stop the worker if it takes longer than templeton.exec.timeout.
+    private TimerTask watch(final Worker w) {
+        if (timeout <= 0)
+            return null;
+        TimerTask kill = new TimerTask() {
+                public void run() {
+                    w.killed = true;
+                    w.proc.destroy();
+                }
+            };
+        watchdog.schedule(kill, timeout);
+        return kill;
+    }
+
+    // Start a worker with the environment of the request.
+    private Worker startWorker(String key, Map<String, String> env)
+        throws NotAuthorizedException, IOException
+    {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(exec.validateProgram(appConf.clusterHadoop()));
+        cmd.add("jar");
+        cmd.add(appConf.templetonJar());
+        cmd.add(HcatWorker.class.getName());
+        cmd.add(Integer.toString(maxBytes));
+
+        Map<String, String> workerEnv = exec.execEnv(env);
+        String cp = appConf.get(CLASSPATH_NAME);
+        if (TempletonUtils.isset(cp)) {
+            String cur = workerEnv.get("HADOOP_CLASSPATH");
+            if (cur == null)
+                cur = System.getenv("HADOOP_CLASSPATH");
+            workerEnv.put("HADOOP_CLASSPATH",
+                          TempletonUtils.isset(cur) ? cur + ":" + cp : cp);
+        }
+
+        LOG.info("Starting hcat worker: " + cmd);
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.environment().putAll(workerEnv);
+
+        Worker w = new Worker();
+        w.key = key;
+        w.proc = pb.start();
+        w.in = new DataOutputStream(w.proc.getOutputStream());
+        w.out = new DataInputStream(w.proc.getInputStream());
+        drainErrors(w);
+
+        TimerTask kill = watch(w);
+        try {
+            int ready = w.out.readInt();
+            if (ready != HcatWorker.READY)
+                throw new IOException("Bad hcat worker greeting " + ready);
+        } catch (IOException e) {
+            w.stop();
+            throw e;
+        } finally {
+            if (kill != null)
+                kill.cancel();
+        }
+
+        lock.lock();
+        try {
+            ++starts;
+        } finally {
+            lock.unlock();
+        }
+        return w;
+    }
+
+    // Log anything the worker writes outside of a request, mostly
+    // its own log messages.
+    private void drainErrors(final Worker w) {
+        Thread t = new Thread("hcat-worker-stderr") {
+                public void run() {
+                    BufferedReader err = new BufferedReader(
+                        new InputStreamReader(w.proc.getErrorStream()));
+                    try {
+                        String line;
+                        while ((line = err.readLine()) != null)
+                            LOG.debug("hcat worker: " + line);
+                    } catch (IOException e) {
+                        // Worker is gone
+                    }
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Ask the client to come back after a random few seconds, as
+    // ExecQueue does.
+    private BusyException busy() {
+        long wait = Math.max(1, maxWait / 1000);
+        return new BusyException((int) (wait + random.nextInt((int) wait + 1)));
+    }
+
+    // Make room for a new worker by stopping the oldest idle one.
+    // Called with the lock held.
+    private void stopOneIdle() {
+        LinkedList<Worker> oldest = null;
+        for (LinkedList<Worker> ws : idle.values())
+            if (oldest == null || ws.getLast().lastUsed < oldest.getLast().lastUsed)
+                oldest = ws;
+        if (oldest != null) {
+            Worker w = oldest.removeLast();
+            if (oldest.isEmpty())
+                idle.remove(w.key);
+            --idleTotal;
+            --total;
+            w.stop();
+        }
+    }
+
+    /**
+     * Stop the workers that have been idle longer than
+     * templeton.hcat.worker.idle-timeout.
+     */
+    public void evictIdle() {
+        long oldest = System.currentTimeMillis() - idleTimeout;
+        LinkedList<Worker> stale = new LinkedList<Worker>();
+
+        lock.lock();
+        try {
+            Iterator<LinkedList<Worker>> it = idle.values().iterator();
+            while (it.hasNext()) {
+                LinkedList<Worker> ws = it.next();
+                while (! ws.isEmpty() && ws.getLast().lastUsed < oldest) {
+                    stale.add(ws.removeLast());
+                    --idleTotal;
+                    --total;
+                }
+                if (ws.isEmpty())
+                    it.remove();
+            }
+            if (! stale.isEmpty())
+                changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Worker w : stale)
+            w.stop();
+        if (! stale.isEmpty())
+            LOG.debug("stopped " + stale.size() + " idle hcat workers");
+    }
+
+    //
+    // HcatWorkerPoolMBean
+    //
+
+    public int getWorkers() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleWorkers() {
+        lock.lock();
+        try {
+            return idleTotal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRequestCount() {
+        lock.lock();
+        try {
+            return requests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getStartCount() {
+        lock.lock();
+        try {
+            return starts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailureCount() {
+        lock.lock();
+        try {
+            return failures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFallbackCount() {
+        lock.lock();
+        try {
+            return fallbacks;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+/**
+ * JMX view of the hcat worker pool.
+ */
+public interface HcatWorkerPoolMBean {
+    /** Worker processes that are running, idle or busy. */
+    int getWorkers();
+
+    /** Running workers waiting for a request. */
+    int getIdleWorkers();
+
+    /** Requests answered by a worker. */
+    long getRequestCount();
+
+    /** Worker processes started. */
+    long getStartCount();
+
+    /** Workers stopped after an error or a timeout. */
+    long getFailureCount();
+
+    /** Requests run by the hcat executable because no worker could start. */
+    long getFallbackCount();
+}
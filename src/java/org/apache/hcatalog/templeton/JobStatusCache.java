@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.JobProfile;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hadoop.mapred.JobTracker;
+import org.apache.hadoop.mapred.TempletonJobTracker;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Serve job status from a snapshot of all the jobs, taken with one
+ * getAllJobs call every templeton.jobstatus.poll-interval
+ * milliseconds.  Snapshots are only taken while someone asks for job
+ * status, so the JobTracker load is constant however many clients
+ * poll.  A snapshot older than templeton.jobstatus.max-age is not
+ * used, and jobs missing from the snapshot are looked up directly.
+ *
+ * getAllJobs doesn't return job profiles.  A profile doesn't change
+ * once the job is submitted, so each one is fetched once and kept.
+ */
+public class JobStatusCache implements JobStatusCacheMBean {
+    private static final Log LOG = LogFactory.getLog(JobStatusCache.class);
+
+    public static final String POLL_INTERVAL_NAME = "templeton.jobstatus.poll-interval";
+    public static final String MAX_AGE_NAME       = "templeton.jobstatus.max-age";
+
+    public static final int MAX_PROFILES = 10000;
+
+    private static volatile JobStatusCache theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized JobStatusCache getInstance(AppConfig appConf) {
+        if (theSingleton == null) {
+            theSingleton = new JobStatusCache(appConf.getLong(POLL_INTERVAL_NAME, 2000),
+                                              appConf.getLong(MAX_AGE_NAME, 10000));
+            if (theSingleton.isEnabled())
+                theSingleton.start(appConf);
+        }
+        return theSingleton;
+    }
+
+    private final long pollInterval;
+    private final long maxAge;
+
+    private Map<JobID, JobStatus> snapshot = new HashMap<JobID, JobStatus>();
+    private long snapshotTime = 0;
+    private long lastLookup = 0;
+    private final LinkedHashMap<JobID, JobProfile> profiles;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long polls = 0;
+
+    public JobStatusCache(long pollInterval, long maxAge) {
+        this.pollInterval = pollInterval;
+        this.maxAge = maxAge;
+        this.profiles = new LinkedHashMap<JobID, JobProfile>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<JobID, JobProfile> eldest) {
+                return size() > MAX_PROFILES;
+            }
+        };
+    }
+
+    /**
+     * Is the cache turned on?
+     */
+    public boolean isEnabled() {
+        return pollInterval > 0 && maxAge > 0;
+    }
+
+    private void start(final AppConfig appConf) {
+        try {
+            MBeanUtil.registerMBean("Templeton", "JobStatusCache", this);
+        } catch (Exception e) {
+            LOG.warn("Unable to register the job status cache mbean: " + e);
+        }
+
+        Thread poller = new Thread("jobstatus-poller") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(pollInterval);
+                            if (isWanted())
+                                poll(appConf);
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            LOG.warn("job status snapshot failed: " + e);
+                        }
+                    }
+                }
+            };
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    // Has anyone asked for a status since the last snapshot?
+    private synchronized boolean isWanted() {
+        return lastLookup > snapshotTime;
+    }
+
+    /**
+     * Take a snapshot of all the jobs, as the Templeton user.
+     */
+    public void poll(AppConfig appConf)
+        throws IOException
+    {
+        TempletonJobTracker tracker = null;
+        try {
+            tracker = new TempletonJobTracker(UserGroupInformation.getLoginUser(),
+                                              JobTracker.getAddress(appConf),
+                                              appConf);
+            update(tracker.getAllJobs(), System.currentTimeMillis());
+        } finally {
+            if (tracker != null)
+                tracker.close();
+        }
+    }
+
+    /**
+     * Replace the snapshot.
+     */
+    public void update(JobStatus[] jobs, long now) {
+        Map<JobID, JobStatus> next = new HashMap<JobID, JobStatus>();
+        if (jobs != null)
+            for (JobStatus job : jobs)
+                next.put(job.getJobID(), job);
+
+        synchronized (this) {
+            snapshot = next;
+            snapshotTime = now;
+            ++polls;
+        }
+    }
+
+    /**
+     * The status of a job from a fresh enough snapshot, or null.
+     */
+    public synchronized JobStatus lookup(JobID jobid, long now) {
+        lastLookup = now;
+        if (now - snapshotTime > maxAge)
+            return null;
+        return snapshot.get(jobid);
+    }
+
+    /**
+     * The status of a job, from the snapshot if possible.
+     */
+    public JobStatus getJobStatus(TempletonJobTracker tracker, JobID jobid)
+        throws IOException
+    {
+        JobStatus status = null;
+        if (isEnabled())
+            status = lookup(jobid, System.currentTimeMillis());
+        synchronized (this) {
+            if (status != null)
+                ++hits;
+            else
+                ++misses;
+        }
+        if (status == null)
+            status = tracker.getJobStatus(jobid);
+        return status;
+    }
+
+    /**
+     * The profile of a job, fetched only the first time.
+     */
+    public JobProfile getJobProfile(TempletonJobTracker tracker, JobID jobid)
+        throws IOException
+    {
+        synchronized (this) {
+            JobProfile p = profiles.get(jobid);
+            if (p != null)
+                return p;
+        }
+
+        JobProfile p = tracker.getJobProfile(jobid);
+        if (p != null) {
+            synchronized (this) {
+                profiles.put(jobid, p);
+            }
+        }
+        return p;
+    }
+
+    //
+    // JobStatusCacheMBean
+    //
+
+    public synchronized int getSnapshotSize() {
+        return snapshot.size();
+    }
+
+    public synchronized long getSnapshotAge() {
+        if (snapshotTime == 0)
+            return -1;
+        return System.currentTimeMillis() - snapshotTime;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPolls() {
+        return polls;
+    }
+
+    public synchronized int getProfiles() {
+        return profiles.size();
+    }
+}
@@ -19,25 +19,53 @@ package org.apache.hcatalog.templeton;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.hcatalog.templeton.tool.TempletonUtils;
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 
 /**
  * Helper class to build new json objects with new top level
  * properties.  Only add non-null entries.
+ *
+ * A builder made with createStream copies an exec result to the
+ * client without parsing it; the map then only holds the added
+ * properties.
  */
 public class JsonBuilder {
     static final int OK = 200;
+    static final int BAD_REQUEST = 400;
     static final int MISSING = 404;
     static final int SERVER_ERROR = 500;
 
+    // One mapper for the whole app.  Jackson mappers are thread safe
+    // once configured, and expensive to set up.
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader MAP_READER = MAPPER.reader(Map.class);
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
     // The map we're building.
     private Map map;
 
+    // The exec result to stream, and the fields of it to leave out.
+    private ExecBean source;
+    private Set<String> removed;
+
     // Parse the json map.
     private JsonBuilder(String json)
         throws IOException
@@ -45,6 +73,11 @@ public class JsonBuilder {
         map = jsonToMap(json);
     }
 
+    // Use an already parsed json map.
+    private JsonBuilder(Map map) {
+        this.map = map;
+    }
+
     /**
      * Create a new map object from the existing json.
      */
@@ -54,13 +87,34 @@ public class JsonBuilder {
         return new JsonBuilder(json);
     }
 
+    /**
+     * Create a new map object from an already parsed json map.  The
+     * map is changed in place.
+     */
+    public static JsonBuilder create(Map map) {
+        return new JsonBuilder(map);
+    }
+
+    /**
+     * Create a new builder that streams the json object in the exec
+     * stdout, see JsonStream.  The caller should have checked that
+     * stdout is a valid json object.  The exec result is released
+     * once the response is written.
+     */
+    public static JsonBuilder createStream(ExecBean source) {
+        JsonBuilder jb = new JsonBuilder(new HashMap<String, Object>());
+        jb.source = source;
+        jb.removed = new HashSet<String>();
+        return jb;
+    }
+
     /**
      * Create a new map object.
      */
     public static JsonBuilder create()
         throws IOException
     {
-        return new JsonBuilder(null);
+        return new JsonBuilder((String) null);
     }
 
     /**
@@ -69,7 +123,7 @@ public class JsonBuilder {
     public static JsonBuilder createError(String msg, int code)
         throws IOException
     {
-        return new JsonBuilder(null)
+        return new JsonBuilder((String) null)
             .put("error", msg)
             .put("errorCode", code);
     }
@@ -78,8 +132,11 @@ public class JsonBuilder {
      * Add a non-null value to the map.
      */
     public JsonBuilder put(String name, Object val) {
-        if (val != null)
+        if (val != null) {
             map.put(name, val);
+            if (removed != null)
+                removed.remove(name);
+        }
         return this;
     }
 
@@ -88,11 +145,14 @@ public class JsonBuilder {
      */
     public JsonBuilder remove(String name) {
         map.remove(name);
+        if (removed != null)
+            removed.add(name);
         return this;
     }
 
     /**
-     * Get the underlying map.
+     * Get the underlying map.  For a streaming builder this is only
+     * the added properties.
      */
     public Map getMap() {
         return map;
@@ -111,6 +171,11 @@ public class JsonBuilder {
     public String buildJson()
         throws IOException
     {
+        if (source != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new JsonStream(source, map, removed).write(out);
+            return out.toString("UTF-8");
+        }
         return mapToJson(map);
     }
 
@@ -137,8 +202,11 @@ public class JsonBuilder {
      * Turn the map back to response object.
      */
     public Response buildResponse(int status) {
+        Object entity = map;
+        if (source != null)
+            entity = new JsonStream(source, map, removed);
         return Response.status(status)
-            .entity(map)
+            .entity(entity)
             .type(MediaType.APPLICATION_JSON)
             .build();
     }
@@ -166,9 +234,30 @@ public class JsonBuilder {
     {
         if (! TempletonUtils.isset(json))
             return new HashMap<String, Object>();
-        else {
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.readValue(json, Map.class);
+        else
+            return MAP_READER.readValue(json);
+    }
+
+    /**
+     * Parse json straight from a stream, which is closed.  Empty
+     * input is an empty map.
+     */
+    public static Map jsonToMap(InputStream in)
+        throws IOException
+    {
+        try {
+            PushbackInputStream pin = new PushbackInputStream(in);
+            int c;
+            do {
+                c = pin.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            if (c == -1)
+                return new HashMap<String, Object>();
+            pin.unread(c);
+
+            return MAP_READER.readValue(pin);
+        } finally {
+            in.close();
         }
     }
 
@@ -178,9 +267,78 @@ public class JsonBuilder {
     public static String mapToJson(Object obj)
         throws IOException
     {
-        ObjectMapper mapper = new ObjectMapper();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        mapper.writeValue(out, obj);
-        return out.toString();
+        return WRITER.writeValueAsString(obj);
+    }
+
+    /**
+     * The shared mapper.  Don't change its configuration.
+     */
+    public static ObjectMapper mapper() {
+        return MAPPER;
+    }
+
+    /**
+     * The json factory of the shared mapper, for streaming parsers
+     * and generators that can read and write whole objects.
+     */
+    public static JsonFactory jsonFactory() {
+        return MAPPER.getJsonFactory();
+    }
+
+    /**
+     * A hash of a json object made of maps, lists and values.  The
+     * hash only depends on the content: map keys are visited in
+     * sorted order, so two equal maps always have the same hash.
+     */
+    public static String contentHash(Object obj) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            hashValue(md, obj);
+            return new String(Hex.encodeHex(md.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Feed one value to the digest, with a tag byte for its type so
+    // that eg. the string "1" and the number 1 differ.
+    private static void hashValue(MessageDigest md, Object obj)
+        throws UnsupportedEncodingException
+    {
+        if (obj == null) {
+            md.update((byte) 'n');
+        } else if (obj instanceof Map) {
+            md.update((byte) '{');
+            TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+            for (Object o : ((Map) obj).entrySet()) {
+                Map.Entry e = (Map.Entry) o;
+                sorted.put(String.valueOf(e.getKey()), e.getValue());
+            }
+            for (Map.Entry<String, Object> e : sorted.entrySet()) {
+                hashValue(md, e.getKey());
+                hashValue(md, e.getValue());
+            }
+            md.update((byte) '}');
+        } else if (obj instanceof List) {
+            md.update((byte) '[');
+            for (Object o : (List) obj)
+                hashValue(md, o);
+            md.update((byte) ']');
+        } else {
+            if (obj instanceof String)
+                md.update((byte) 's');
+            else if (obj instanceof Number)
+                md.update((byte) '#');
+            else
+                md.update((byte) 'v');
+            byte[] b = obj.toString().getBytes("UTF-8");
+            md.update((byte) (b.length >>> 24));
+            md.update((byte) (b.length >>> 16));
+            md.update((byte) (b.length >>> 8));
+            md.update((byte) b.length);
+            md.update(b);
+        }
     }
 }
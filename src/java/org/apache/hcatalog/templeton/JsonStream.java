@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Copy a json object from the exec output to the client token by
+ * token, adding some top level fields on the way.  The exec output
+ * is never parsed into a map.  The capture buffer is released once
+ * the object is written.
+ */
+public class JsonStream implements StreamingOutput {
+    private ExecBean source;
+    private Map<String, Object> extra;
+    private Set<String> removed;
+
+    /**
+     * Create a new stream.
+     *
+     * @param source   The exec result with a json object in stdout.
+     * @param extra    Fields to add.  They replace fields of the same
+     *                 name in the source.
+     * @param removed  Fields of the source to leave out.
+     */
+    public JsonStream(ExecBean source, Map<String, Object> extra, Set<String> removed) {
+        this.source = source;
+        this.extra = extra;
+        this.removed = removed;
+    }
+
+    public void write(OutputStream out)
+        throws IOException, WebApplicationException
+    {
+        JsonParser p = null;
+        try {
+            p = JsonBuilder.jsonFactory().createJsonParser(source.stdoutStream());
+            JsonGenerator g = JsonBuilder.jsonFactory()
+                .createJsonGenerator(out, JsonEncoding.UTF8);
+            g.writeStartObject();
+            if (p.nextToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = p.getCurrentName();
+                    p.nextToken();
+                    if (extra.containsKey(name) || removed.contains(name)) {
+                        p.skipChildren();
+                    } else {
+                        g.writeFieldName(name);
+                        g.copyCurrentStructure(p);
+                    }
+                }
+            }
+            for (Map.Entry<String, Object> e : extra.entrySet()) {
+                g.writeFieldName(e.getKey());
+                g.writeObject(e.getValue());
+            }
+            g.writeEndObject();
+            g.flush();
+        } finally {
+            if (p != null)
+                p.close();
+            source.release();
+        }
+    }
+
+    /**
+     * The names of the top level fields of a json object, without
+     * building the object.  Empty input has no fields.  Returns null
+     * if the input is not a json object.
+     */
+    public static Set<String> topLevelFields(InputStream in)
+        throws IOException
+    {
+        JsonParser p = JsonBuilder.jsonFactory().createJsonParser(in);
+        try {
+            Set<String> res = new HashSet<String>();
+            JsonToken t = p.nextToken();
+            if (t == null)
+                return res;
+            if (t != JsonToken.START_OBJECT)
+                return null;
+            while ((t = p.nextToken()) == JsonToken.FIELD_NAME) {
+                res.add(p.getCurrentName());
+                p.nextToken();
+                p.skipChildren();
+            }
+            if (t != JsonToken.END_OBJECT || p.nextToken() != null)
+                return null;
+            return res;
+        } finally {
+            p.close();
+        }
+    }
+}
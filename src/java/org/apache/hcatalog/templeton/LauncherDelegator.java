@@ -22,6 +22,7 @@ import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +31,8 @@ import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hcatalog.templeton.tool.JobState;
+import org.apache.hcatalog.templeton.tool.LocalStorage;
+import org.apache.hcatalog.templeton.tool.StorageCache;
 import org.apache.hcatalog.templeton.tool.TempletonControllerJob;
 import org.apache.hcatalog.templeton.tool.TempletonStorage;
 import org.apache.hcatalog.templeton.tool.TempletonUtils;
@@ -53,9 +56,8 @@ public class LauncherDelegator extends TempletonDelegator {
     {
         JobState state = null;
         try {
-            state = new JobState(id, Main.getAppConfigInstance());
-            state.setUser(user);
-            state.setCallback(callback);
+            state = new JobState(id, appConf);
+            state.setOwner(user, callback);
         } finally {
             if (state != null)
                 state.close();
@@ -144,6 +146,23 @@ public class LauncherDelegator extends TempletonDelegator {
                 appConf.get(ZooKeeperStorage.ZK_HOSTS));
         addDef(args, ZooKeeperStorage.ZK_SESSION_TIMEOUT,
                 appConf.get(ZooKeeperStorage.ZK_SESSION_TIMEOUT));
+        addDef(args, TempletonControllerJob.PROGRESS_INTERVAL_NAME,
+               appConf.get(TempletonControllerJob.PROGRESS_INTERVAL_NAME));
+
+        // The controller must open the same local store, and its
+        // working directory isn't the server's.
+        addDef(args, LocalStorage.LOCAL_DIR_NAME,
+               LocalStorage.getDir(appConf).getPath());
+        addDef(args, LocalStorage.TTL_NAME, appConf.get(LocalStorage.TTL_NAME));
+
+        // The controller builds its StorageCache from a fresh
+        // Configuration, so it needs every cache setting.
+        TreeSet<String> cacheNames = new TreeSet<String>();
+        for (Map.Entry<String, String> e : appConf)
+            if (e.getKey().startsWith(StorageCache.CONF_PREFIX))
+                cacheNames.add(e.getKey());
+        for (String name : cacheNames)
+            addDef(args, name, appConf.get(name));
     }
 
     // Completion notifier vars
@@ -18,22 +18,35 @@
 package org.apache.hcatalog.templeton;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import org.apache.hadoop.mapred.JobID;
-import org.apache.hadoop.mapred.JobProfile;
 import org.apache.hadoop.mapred.JobStatus;
 import org.apache.hadoop.mapred.JobTracker;
 import org.apache.hadoop.mapred.TempletonJobTracker;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hcatalog.templeton.tool.JobState;
-import org.apache.hcatalog.templeton.tool.TempletonUtils;
-import org.apache.zookeeper.ZooKeeper;
 
 /**
- * List jobs owned by a user.
+ * List jobs owned by a user.  The jobs come from the index of the
+ * jobs of each user that is written when a job is queued, so the
+ * other jobs in the cluster are never looked at.  Jobs stored before
+ * there was an index are added to it by the storage cleanup when it
+ * starts, see JobState.backfillIndexes.
  */
 public class ListDelegator extends TempletonDelegator {
+    /**
+     * The job states that can be listed.
+     */
+    public static final List<String> STATES = new ArrayList<String>();
+    static {
+        for (int s : new int[] {JobStatus.PREP, JobStatus.RUNNING, JobStatus.SUCCEEDED,
+                                JobStatus.FAILED, JobStatus.KILLED})
+            STATES.add(JobStatus.getJobRunState(s).toLowerCase());
+    }
+
     public ListDelegator(AppConfig appConf) {
         super(appConf);
     }
@@ -41,33 +54,77 @@ public class ListDelegator extends TempletonDelegator {
     public List<String> run(String user)
         throws NotAuthorizedException, BadParam, IOException
     {
-        UserGroupInformation ugi = UserGroupInformation.createRemoteUser(user);
-        TempletonJobTracker tracker = null;
-        try {
-            tracker = new TempletonJobTracker(ugi,
-                                              JobTracker.getAddress(appConf),
-                                              appConf);
+        return run(user, null, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * List the jobs of a user, oldest first.
+     *
+     * @param user    The user
+     * @param state   Only list jobs in this state, one of STATES, or
+     *                null for all of them.  As with the status of a
+     *                job, the state is that of its child job when it
+     *                has one.  Jobs the JobTracker no longer knows
+     *                are left out.
+     * @param offset  The number of jobs to skip
+     * @param limit   The most jobs to return
+     */
+    public List<String> run(String user, String state, int offset, int limit)
+        throws NotAuthorizedException, BadParam, IOException
+    {
+        if (state != null && ! STATES.contains(state))
+            throw new BadParam("Invalid state " + state + ", must be one of " + STATES);
+
+        List<JobID> jobs = new ArrayList<JobID>();
+        for (String id : JobState.getUserJobs(user, appConf)) {
+            try {
+                jobs.add(JobID.forName(id));
+            } catch (IllegalArgumentException e) {
+                // Not a job id.
+            }
+        }
+        Collections.sort(jobs);
 
-            ArrayList<String> ids = new ArrayList<String>();
+        ArrayList<String> ids = new ArrayList<String>();
+        if (state == null) {
+            for (int i = offset; i < jobs.size() && ids.size() < limit; ++i)
+                ids.add(jobs.get(i).toString());
+            return ids;
+        }
 
-            JobStatus[] jobs = tracker.getAllJobs();
+        // The child ids of all the jobs, read together.
+        List<String> names = new ArrayList<String>();
+        for (JobID jobid : jobs)
+            names.add(jobid.toString());
+        Map<String, Map<String, String>> fields = JobState.getJobsFields(names, appConf);
 
-            if (jobs != null) {
-                for (JobStatus job : jobs) {
-                    JobState state = null;
+        TempletonJobTracker tracker = null;
+        try {
+            tracker = openTracker(user);
+            int skip = offset;
+            for (JobID jobid : jobs) {
+                if (ids.size() >= limit)
+                    break;
+                JobStatus status = null;
+                Map<String, String> f = fields.get(jobid.toString());
+                String childid = (f == null) ? null : f.get("childid");
+                if (childid != null) {
                     try {
-                        String id = job.getJobID().toString();
-                        state = new JobState(id, Main.getAppConfigInstance());
-                        if (user.equals(state.getUser()))
-                            ids.add(id);
-                    } finally {
-                        if (state != null) {
-                            state.close();
-                        }
+                        status = getJobStatus(tracker, JobID.forName(childid));
+                    } catch (IllegalArgumentException e) {
+                        // Corrupt child id, use the job itself.
                     }
                 }
+                if (status == null)
+                    status = getJobStatus(tracker, jobid);
+                if (status == null
+                    || ! state.equalsIgnoreCase(JobStatus.getJobRunState(status.getRunState())))
+                    continue;
+                if (skip > 0)
+                    --skip;
+                else
+                    ids.add(jobid.toString());
             }
-
             return ids;
         } catch (IllegalStateException e) {
             throw new BadParam(e.getMessage());
@@ -76,4 +133,23 @@ public class ListDelegator extends TempletonDelegator {
                 tracker.close();
         }
     }
+
+    /**
+     * Connect to the JobTracker as the user.
+     */
+    protected TempletonJobTracker openTracker(String user)
+        throws IOException
+    {
+        UserGroupInformation ugi = UserGroupInformation.createRemoteUser(user);
+        return new TempletonJobTracker(ugi, JobTracker.getAddress(appConf), appConf);
+    }
+
+    /**
+     * The status of a job, or null if the JobTracker doesn't know it.
+     */
+    protected JobStatus getJobStatus(TempletonJobTracker tracker, JobID jobid)
+        throws IOException
+    {
+        return JobStatusCache.getInstance(appConf).getJobStatus(tracker, jobid);
+    }
 }
@@ -0,0 +1,538 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * A pool of open metastore connections, kept per proxy user.  The
+ * connections are used by MetastoreDelegator to answer ddl calls
+ * inside the Templeton server and by SecureProxySupport to fetch
+ * metastore delegation tokens.
+ *
+ * A connection is opened as the proxy user, so the metastore sees
+ * the real caller.  With security the proxy user has no Kerberos
+ * credentials of its own, so it connects with the metastore
+ * delegation token the DelegationTokenCache holds for it, and the
+ * connection is dropped once that token is no longer handed out.
+ * Only the token calls themselves use the Templeton server's login,
+ * see borrowServer.
+ *
+ * The metastore client is not thread safe, so a client is only ever
+ * used by one request at a time.  Idle clients are checked before
+ * reuse and closed after sitting unused for too long.
+ */
+public class MetastoreClientPool implements MetastoreClientPoolMBean {
+    private static final Log LOG = LogFactory.getLog(MetastoreClientPool.class);
+
+    public static final String POOL_MAX_IDLE_NAME
+        = "templeton.metastore.pool.max-idle";
+    public static final String POOL_MAX_PER_USER_NAME
+        = "templeton.metastore.pool.max-per-user";
+    public static final String POOL_MAX_TOTAL_NAME
+        = "templeton.metastore.pool.max-total";
+    public static final String POOL_MAX_WAIT_NAME
+        = "templeton.metastore.pool.max-wait";
+    public static final String POOL_IDLE_TIMEOUT_NAME
+        = "templeton.metastore.pool.idle-timeout";
+    public static final String POOL_VALIDATE_AFTER_NAME
+        = "templeton.metastore.pool.validate-after";
+
+    private static volatile MetastoreClientPool theSingleton;
+
+    /**
+     * Retrieve the singleton.
+     */
+    public static synchronized MetastoreClientPool getInstance(AppConfig appConf) {
+        if (theSingleton == null) {
+            theSingleton = new MetastoreClientPool(appConf);
+            theSingleton.start();
+        }
+        return theSingleton;
+    }
+
+    // One open connection.
+    private static class PooledClient {
+        HiveMetaStoreClient client;
+        long lastUsed;
+        long expires;           // When its token stops being handed out.
+
+        PooledClient(HiveMetaStoreClient client, long expires) {
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+            this.expires = expires;
+        }
+    }
+
+    // A new connection and the time it should stop being used.
+    private static class Opened {
+        HiveMetaStoreClient client;
+        long expires = Long.MAX_VALUE;
+    }
+
+    // The connections of one user.
+    private static class UserPool {
+        LinkedList<PooledClient> idle = new LinkedList<PooledClient>();
+        Map<HiveMetaStoreClient, PooledClient> busy
+            = new HashMap<HiveMetaStoreClient, PooledClient>();
+
+        int size() { return idle.size() + busy.size(); }
+    }
+
+    private final AppConfig appConf;
+    private final HiveConf hiveConf;
+    private final int maxIdle;
+    private final int maxPerUser;
+    private final int maxTotal;
+    private final long maxWait;
+    private final long idleTimeout;
+    private final long validateAfter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, UserPool> pools = new HashMap<String, UserPool>();
+    private int total = 0;      // Open or opening connections.
+    private int idleTotal = 0;
+
+    // Stats, guarded by lock.
+    private long borrows = 0;
+    private long timeouts = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    private MetastoreClientPool(AppConfig appConf) {
+        this.appConf = appConf;
+        hiveConf = makeHiveConf(appConf);
+        maxIdle = appConf.getInt(POOL_MAX_IDLE_NAME, 8);
+        maxPerUser = appConf.getInt(POOL_MAX_PER_USER_NAME, 4);
+        maxTotal = appConf.getInt(POOL_MAX_TOTAL_NAME, 32);
+        maxWait = appConf.getLong(POOL_MAX_WAIT_NAME, 10000);
+        idleTimeout = appConf.getLong(POOL_IDLE_TIMEOUT_NAME, 300000);
+        validateAfter = appConf.getLong(POOL_VALIDATE_AFTER_NAME, 30000);
+    }
+
+    private void start() {
+        try {
+            MBeanUtil.registerMBean("Templeton", "MetastoreClientPool", this);
+        } catch (Exception e) {
+            LOG.warn("Unable to register the metastore pool mbean: " + e);
+        }
+
+        Thread evictor = new Thread("metastore-pool-evictor") {
+                public void run() {
+                    long interval = Math.max(1000, idleTimeout / 2);
+                    while (true) {
+                        try {
+                            Thread.sleep(interval);
+                            evictIdle();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            LOG.warn("metastore pool eviction failed: " + e);
+                        }
+                    }
+                }
+            };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Build the HiveConf used to talk to the metastore.  This is the
+     * Templeton config plus the entries in templeton.hive.properties,
+     * the same properties that are passed to the hive jobs we run.
+     */
+    public static HiveConf makeHiveConf(AppConfig appConf) {
+        HiveConf conf = new HiveConf(appConf, MetastoreClientPool.class);
+        String[] props = appConf.getStrings(AppConfig.HIVE_PROPS_NAME);
+        if (props != null) {
+            for (String prop : props) {
+                int eq = prop.indexOf('=');
+                if (eq > 0)
+                    conf.set(prop.substring(0, eq).trim(),
+                             prop.substring(eq + 1).trim());
+            }
+        }
+        return conf;
+    }
+
+    /**
+     * Get an open client for the user, reusing an idle one if
+     * possible.  Waits up to templeton.metastore.pool.max-wait for a
+     * free slot and throws BusyException if none comes free.
+     */
+    public HiveMetaStoreClient borrow(String user)
+        throws BusyException, IOException
+    {
+        if (user == null)
+            throw new IOException("No user to open a metastore client for");
+        return borrowAs(user);
+    }
+
+    /**
+     * Get an open client with the Templeton server's own login.  This
+     * is only for fetching, renewing and cancelling the delegation
+     * tokens of the proxy users.  Release it with a null user.
+     */
+    public HiveMetaStoreClient borrowServer()
+        throws BusyException, IOException
+    {
+        return borrowAs(null);
+    }
+
+    // Borrow a client of the user, or of the server for a null user.
+    private HiveMetaStoreClient borrowAs(String user)
+        throws BusyException, IOException
+    {
+        long start = System.currentTimeMillis();
+        long deadline = start + maxWait;
+        while (true) {
+            PooledClient reuse = null;
+            boolean open = false;
+            HiveMetaStoreClient evicted = null;
+
+            lock.lock();
+            try {
+                UserPool up = userPool(user);
+                if (! up.idle.isEmpty()) {
+                    reuse = up.idle.removeFirst();
+                    --idleTotal;
+                    up.busy.put(reuse.client, reuse);
+                } else if (up.size() < maxPerUser) {
+                    if (total >= maxTotal)
+                        evicted = removeOneIdle();
+                    if (total < maxTotal) {
+                        ++total;
+                        open = true;
+                    }
+                }
+
+                if (reuse == null && ! open) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        ++timeouts;
+                        throw new BusyException();
+                    }
+                    changed.await(left, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                lock.unlock();
+                if (evicted != null)
+                    evicted.close();
+            }
+
+            if (reuse != null) {
+                if (isHealthy(reuse))
+                    return borrowed(reuse.client, start);
+                discard(user, reuse.client);
+                continue;
+            }
+
+            Opened o = null;
+            try {
+                o = connect(user);
+            } finally {
+                if (o == null)
+                    opened(user, null);
+            }
+            opened(user, o);
+            return borrowed(o.client, start);
+        }
+    }
+
+    /**
+     * Return a client to the pool.  A client that saw an error is
+     * closed instead, it may have a broken connection.
+     */
+    public void release(String user, HiveMetaStoreClient client, boolean failed) {
+        if (client == null)
+            return;
+
+        boolean close = failed;
+        lock.lock();
+        try {
+            UserPool up = userPool(user);
+            PooledClient pc = up.busy.remove(client);
+            if (pc == null) {
+                close = true;   // Not ours, just close it.
+            } else if (failed || idleTotal >= maxIdle) {
+                close = true;
+                --total;
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                up.idle.addFirst(pc);
+                ++idleTotal;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (close)
+            client.close();
+    }
+
+    // Open a new connection as the given user, or as the server for
+    // a null user.
+    private Opened connect(String user)
+        throws IOException, BusyException
+    {
+        LOG.debug("opening new metastore client for "
+                  + ((user == null) ? "the server" : user));
+        final Opened res = new Opened();
+        try {
+            if (user == null) {
+                res.client = new HiveMetaStoreClient(hiveConf);
+                return res;
+            }
+
+            UserGroupInformation ugi = UgiFactory.getUgi(user);
+            final HiveConf conf;
+            if (UserGroupInformation.isSecurityEnabled()) {
+                // A proxy user of its own, so the token is the only
+                // one it has.
+                DelegationTokenCache.Generation gen
+                    = DelegationTokenCache.getInstance(appConf).get(user);
+                ugi = UserGroupInformation
+                    .createProxyUser(user, UserGroupInformation.getLoginUser());
+                ugi.addToken(gen.msToken);
+                conf = new HiveConf(hiveConf);
+                conf.set("hive.metastore.token.signature",
+                         DelegationTokenCache.HCAT_SERVICE);
+                res.expires = gen.refreshAt;
+            } else {
+                conf = hiveConf;
+            }
+
+            res.client = ugi.doAs(
+                new PrivilegedExceptionAction<HiveMetaStoreClient>() {
+                    public HiveMetaStoreClient run() throws Exception {
+                        return new HiveMetaStoreClient(conf);
+                    }
+                });
+            return res;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to connect to the metastore", e);
+        }
+    }
+
+    // Check a client that has been idle for a while.
+    private boolean isHealthy(PooledClient pc) {
+        long now = System.currentTimeMillis();
+        if (now >= pc.expires)
+            return false;
+        if (now - pc.lastUsed < validateAfter)
+            return true;
+        try {
+            pc.client.getDatabase("default");
+            return true;
+        } catch (Exception e) {
+            LOG.info("dropping broken metastore client: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Record a newly opened client, or a failed open.
+    private void opened(String user, Opened o) {
+        lock.lock();
+        try {
+            if (o == null) {
+                --total;
+                changed.signalAll();
+            } else {
+                userPool(user).busy.put(o.client, new PooledClient(o.client, o.expires));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drop a broken borrowed client.
+    private void discard(String user, HiveMetaStoreClient client) {
+        lock.lock();
+        try {
+            if (userPool(user).busy.remove(client) != null)
+                --total;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        client.close();
+    }
+
+    private HiveMetaStoreClient borrowed(HiveMetaStoreClient client, long start) {
+        long waited = System.currentTimeMillis() - start;
+        lock.lock();
+        try {
+            ++borrows;
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        } finally {
+            lock.unlock();
+        }
+        return client;
+    }
+
+    // Make room for a new connection by taking out the oldest idle
+    // one of any user, for the caller to close once the lock is
+    // released.  Called with the lock held.
+    private HiveMetaStoreClient removeOneIdle() {
+        UserPool oldestPool = null;
+        for (UserPool up : pools.values()) {
+            if (up.idle.isEmpty())
+                continue;
+            if (oldestPool == null
+                || up.idle.getLast().lastUsed < oldestPool.idle.getLast().lastUsed)
+                oldestPool = up;
+        }
+        if (oldestPool == null)
+            return null;
+        --idleTotal;
+        --total;
+        return oldestPool.idle.removeLast().client;
+    }
+
+    /**
+     * Close the clients that have been idle longer than
+     * templeton.metastore.pool.idle-timeout.
+     */
+    public void evictIdle() {
+        long oldest = System.currentTimeMillis() - idleTimeout;
+        LinkedList<HiveMetaStoreClient> stale = new LinkedList<HiveMetaStoreClient>();
+
+        lock.lock();
+        try {
+            Iterator<Map.Entry<String, UserPool>> it = pools.entrySet().iterator();
+            while (it.hasNext()) {
+                UserPool up = it.next().getValue();
+                while (! up.idle.isEmpty() && up.idle.getLast().lastUsed < oldest) {
+                    stale.add(up.idle.removeLast().client);
+                    --idleTotal;
+                    --total;
+                }
+                if (up.size() == 0)
+                    it.remove();
+            }
+            if (! stale.isEmpty())
+                changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (HiveMetaStoreClient client : stale)
+            client.close();
+        if (! stale.isEmpty())
+            LOG.debug("closed " + stale.size() + " idle metastore clients");
+    }
+
+    // Called with the lock held.
+    private UserPool userPool(String user) {
+        UserPool up = pools.get(user);
+        if (up == null) {
+            up = new UserPool();
+            pools.put(user, up);
+        }
+        return up;
+    }
+
+    //
+    // MetastoreClientPoolMBean
+    //
+
+    public int getOpenConnections() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idleTotal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getUsers() {
+        lock.lock();
+        try {
+            return pools.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBorrowCount() {
+        lock.lock();
+        try {
+            return borrows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageWaitMillis() {
+        lock.lock();
+        try {
+            return (borrows == 0) ? 0 : totalWaitMillis / borrows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        lock.lock();
+        try {
+            return maxWaitMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.ws.rs.core.Response;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hive.common.FileUtils;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.api.UnknownDBException;
+import org.apache.hadoop.hive.metastore.api.UnknownTableException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hcatalog.templeton.tool.TempletonUtils;
+
+/**
+ * Answer the read only ddl calls directly from the metastore, inside
+ * the Templeton server.  The results have the same json shape as the
+ * ones produced by "hcat -e".
+ *
+ * The reads are authorized the way hcat's HDFS authorization
+ * provider would: when hive.security.authorization.enabled is set,
+ * the user must be able to read the directory of the database or
+ * table.  A call the user can't be shown this way is handed to hcat,
+ * which reports the error.
+ *
+ * Nothing that changes the metastore is done here: the writes go
+ * through hcat, so they are checked by its semantic analyzer hook.
+ *
+ * Everything else, and any call where the metastore can't be
+ * reached, is handed to the hcat executable by HcatDelegator.
+ */
+public class MetastoreDelegator extends HcatDelegator {
+    private static final Log LOG = LogFactory.getLog(MetastoreDelegator.class);
+
+    private MetastoreClientPool pool;
+    private HiveConf hiveConf;
+    private boolean authorize;
+
+    public MetastoreDelegator(AppConfig appConf, ExecService execService) {
+        super(appConf, execService);
+        this.pool = MetastoreClientPool.getInstance(appConf);
+        this.hiveConf = MetastoreClientPool.makeHiveConf(appConf);
+        this.authorize
+            = hiveConf.getBoolVar(HiveConf.ConfVars.HIVE_AUTHORIZATION_ENABLED);
+    }
+
+    /**
+     * Can the user read the directory at location?  A directory that
+     * doesn't exist yet is checked at its nearest parent, and an
+     * object without a location, like a view, is readable.
+     */
+    private boolean canRead(String user, final String location)
+        throws IOException, InterruptedException
+    {
+        if (! authorize || ! TempletonUtils.isset(location))
+            return true;
+
+        final UserGroupInformation ugi = UgiFactory.getUgi(user);
+        FileStatus st = ugi.doAs(new PrivilegedExceptionAction<FileStatus>() {
+                public FileStatus run() throws IOException {
+                    Path p = new Path(location);
+                    FileSystem fs = p.getFileSystem(hiveConf);
+                    while (p != null) {
+                        try {
+                            return fs.getFileStatus(p);
+                        } catch (FileNotFoundException e) {
+                            p = p.getParent();
+                        }
+                    }
+                    return null;
+                }
+            });
+        if (st == null)
+            return true;
+
+        FsPermission perm = st.getPermission();
+        if (ugi.getShortUserName().equals(st.getOwner()))
+            return perm.getUserAction().implies(FsAction.READ);
+        if (Arrays.asList(ugi.getGroupNames()).contains(st.getGroup()))
+            return perm.getGroupAction().implies(FsAction.READ);
+        return perm.getOtherAction().implies(FsAction.READ);
+    }
+
+    // The root directory of the warehouse, which "show databases"
+    // needs read access to.
+    private String warehouseRoot() {
+        return hiveConf.getVar(HiveConf.ConfVars.METASTOREWAREHOUSE);
+    }
+
+    /**
+     * A single read from the metastore.
+     */
+    private interface MetastoreCall {
+        Response run(HiveMetaStoreClient client) throws Exception;
+    }
+
+    /**
+     * Run the call with a client from the user's pool.  Returns null
+     * if the call failed, in which case the caller should fall back
+     * to hcat.
+     */
+    private Response call(String user, String what, MetastoreCall c)
+        throws BusyException
+    {
+        HiveMetaStoreClient client = null;
+        boolean failed = true;
+        try {
+            client = pool.borrow(user);
+            Response res = c.run(client);
+            failed = false;
+            return res;
+        } catch (BusyException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("metastore call failed, using hcat for " + what + ": "
+                     + e.getMessage());
+            return null;
+        } finally {
+            pool.release(user, client, failed);
+        }
+    }
+
+    /**
+     * Return a json description of the database.
+     */
+    @Override
+    public Response descDatabase(final String user, final String db,
+                                 final boolean extended)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        Response res = call(user, "desc database " + db, new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    Database d;
+                    try {
+                        d = client.getDatabase(db);
+                    } catch (NoSuchObjectException e) {
+                        return JsonBuilder
+                            .createError("Database " + db + " does not exist",
+                                         JsonBuilder.MISSING)
+                            .put("database", db).build();
+                    }
+                    if (! canRead(user, d.getLocationUri()))
+                        return null;
+                    JsonBuilder jb = JsonBuilder.create()
+                        .put("database", d.getName())
+                        .put("comment", d.getDescription())
+                        .put("location", d.getLocationUri());
+                    if (extended && TempletonUtils.isset(d.getParameters()))
+                        jb.put("params", d.getParameters());
+                    return jb.build();
+                }
+            });
+        if (res == null)
+            return super.descDatabase(user, db, extended);
+        return res;
+    }
+
+    /**
+     * Return a json "show databases like".
+     */
+    @Override
+    public Response listDatabases(final String user, final String dbPattern)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        Response res = call(user, "show databases", new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    if (! canRead(user, warehouseRoot()))
+                        return null;
+                    return JsonBuilder.create()
+                        .put("databases", client.getDatabases(dbPattern))
+                        .build();
+                }
+            });
+        if (res == null)
+            return super.listDatabases(user, dbPattern);
+        return res;
+    }
+
+    /**
+     * Return a json description of the table.
+     */
+    @Override
+    protected Response descTable(final String user, final String db, final String table,
+                                 final boolean extended, boolean stream)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        Response res = call(user, "desc " + db + "." + table, new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    List<FieldSchema> fields;
+                    Table t;
+                    try {
+                        t = client.getTable(db, table);
+                        if (! canRead(user, t.getSd().getLocation()))
+                            return null;
+                        // getSchema includes the partition columns and
+                        // asks the serde for the columns if needed.
+                        fields = client.getSchema(db, table);
+                    } catch (NoSuchObjectException e) {
+                        return missingTable(table);
+                    } catch (UnknownTableException e) {
+                        return missingTable(table);
+                    } catch (UnknownDBException e) {
+                        return missingTable(table);
+                    }
+
+                    JsonBuilder jb = JsonBuilder.create()
+                        .put("columns", makeColumns(fields))
+                        .put("database", db)
+                        .put("table", table);
+                    if (extended)
+                        jb.put("tableInfo", JsonBuilder.mapper().convertValue(t, Map.class));
+                    return jb.build();
+                }
+            });
+        if (res == null)
+            return super.descTable(user, db, table, extended, stream);
+        return res;
+    }
+
+    /**
+     * Return a json "show table like".
+     */
+    @Override
+    public Response listTables(final String user, final String db,
+                               final String tablePattern)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        Response res = call(user, "show tables in " + db, new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    Database d;
+                    try {
+                        d = client.getDatabase(db);
+                    } catch (NoSuchObjectException e) {
+                        return JsonBuilder
+                            .createError("Database " + db + " does not exist",
+                                         JsonBuilder.MISSING)
+                            .put("database", db)
+                            .build();
+                    }
+                    if (! canRead(user, d.getLocationUri()))
+                        return null;
+                    List<String> tables
+                        = new ArrayList<String>(new TreeSet<String>(client.getTables(db, tablePattern)));
+                    return JsonBuilder.create()
+                        .put("tables", tables)
+                        .put("database", db)
+                        .build();
+                }
+            });
+        if (res == null)
+            return super.listTables(user, db, tablePattern);
+        return res;
+    }
+
+    /**
+     * Return a json description of the partitions.
+     */
+    @Override
+    public Response listPartitions(final String user, final String db,
+                                   final String table)
+        throws HcatException, NotAuthorizedException, BusyException,
+        ExecuteException, IOException
+    {
+        Response res = call(user, "show partitions " + db + "." + table, new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    Table t;
+                    try {
+                        t = client.getTable(db, table);
+                    } catch (NoSuchObjectException e) {
+                        return missingTable(table);
+                    }
+                    if (! canRead(user, t.getSd().getLocation()))
+                        return null;
+                    if (! TempletonUtils.isset(t.getPartitionKeys()))
+                        return JsonBuilder
+                            .createError("Table " + table + " is not a partitioned table",
+                                         JsonBuilder.SERVER_ERROR)
+                            .build();
+
+                    List<String> names = client.listPartitionNames(db, table, (short) -1);
+                    return JsonBuilder.create()
+                        .put("partitions", makePartitions(names))
+                        .put("database", db)
+                        .put("table", table)
+                        .build();
+                }
+            });
+        if (res == null)
+            return super.listPartitions(user, db, table);
+        return res;
+    }
+
+    /**
+     * Return one page of the partitions, streamed to the client.  A
+     * filter is evaluated by the metastore.  The full partition
+     * objects are only fetched for the page, and only if a field
+     * besides the name and values is wanted.
+     */
+    @Override
+    public Response listPartitions(final String user, final String db,
+                                   final String table, final PartitionQuery q)
+        throws HcatException, NotAuthorizedException, BusyException,
+        BadParam, ExecuteException, IOException
+    {
+        Response res = call(user, "list partitions " + db + "." + table, new MetastoreCall() {
+                public Response run(HiveMetaStoreClient client) throws Exception {
+                    Table t;
+                    try {
+                        t = client.getTable(db, table);
+                    } catch (NoSuchObjectException e) {
+                        return missingTable(table);
+                    }
+                    if (! canRead(user, t.getSd().getLocation()))
+                        return null;
+                    final List<FieldSchema> keys = t.getPartitionKeys();
+                    if (! TempletonUtils.isset(keys))
+                        return JsonBuilder
+                            .createError("Table " + table + " is not a partitioned table",
+                                         JsonBuilder.SERVER_ERROR)
+                            .build();
+
+                    // Only fetch the names up to the end of the page,
+                    // unless partitions were added ahead of it.
+                    int count = q.fetchCount();
+                    List<String> page;
+                    try {
+                        page = q.page(partitionNames(client, db, table, keys,
+                                                     q.filter, count),
+                                      count);
+                        if (page == null)
+                            page = q.page(partitionNames(client, db, table, keys,
+                                                         q.filter, -1),
+                                          -1);
+                    } catch (MetaException e) {
+                        if (! TempletonUtils.isset(q.filter))
+                            throw e;
+                        return JsonBuilder
+                            .createError("Invalid filter " + q.filter + ": "
+                                         + e.getMessage(),
+                                         JsonBuilder.BAD_REQUEST)
+                            .build();
+                    }
+
+                    final Map<String, Partition> details = new HashMap<String, Partition>();
+                    if (q.wantsDetails() && ! page.isEmpty())
+                        for (Partition p : client.getPartitionsByNames(db, table, page))
+                            details.put(Warehouse.makePartName(keys, p.getValues()), p);
+
+                    return new PartitionStream(db, table, page,
+                                               new PartitionStream.PartitionMaker() {
+                            public Map<String, Object> make(String name)
+                                throws IOException
+                            {
+                                return q.select(makeOnePartition(name, details.get(name)));
+                            }
+                        }, q.nextToken()).build();
+                }
+            });
+        if (res == null)
+            return super.listPartitions(user, db, table, q);
+        return res;
+    }
+
+    // The names of the first count partitions that match the filter,
+    // in name order, or of all of them if count is -1.
+    private static List<String> partitionNames(HiveMetaStoreClient client,
+                                               String db, String table,
+                                               List<FieldSchema> keys,
+                                               String filter, int count)
+        throws Exception
+    {
+        if (! TempletonUtils.isset(filter))
+            return client.listPartitionNames(db, table, (short) count);
+
+        List<String> names = new ArrayList<String>();
+        for (Partition p : client.listPartitionsByFilter(db, table, filter,
+                                                         (short) count))
+            names.add(Warehouse.makePartName(keys, p.getValues()));
+        return names;
+    }
+
+    private static Response missingTable(String table)
+        throws IOException
+    {
+        return JsonBuilder
+            .createError(String.format("Table %s does not exist", table),
+                         JsonBuilder.MISSING)
+            .build();
+    }
+
+    // The "columns" list, as written by "desc table".
+    private static List<Map<String, Object>> makeColumns(List<FieldSchema> fields) {
+        List<Map<String, Object>> res = new ArrayList<Map<String, Object>>();
+        for (FieldSchema f : fields) {
+            Map<String, Object> col = new HashMap<String, Object>();
+            col.put("name", f.getName());
+            col.put("type", f.getType());
+            col.put("comment", f.getComment());
+            res.add(col);
+        }
+        return res;
+    }
+
+    /**
+     * The "partitions" list, as written by "show partitions".  A
+     * metastore partition name looks like "dt=20120101/country=US".
+     */
+    static List<Map<String, Object>> makePartitions(List<String> names)
+        throws IOException
+    {
+        List<Map<String, Object>> res = new ArrayList<Map<String, Object>>();
+        for (String name : names)
+            res.add(makeOnePartition(name));
+        return res;
+    }
+
+    // The name and values of a partition, and the details from the
+    // partition object if there is one.
+    static Map<String, Object> makeOnePartition(String name, Partition p)
+        throws IOException
+    {
+        Map<String, Object> res = makeOnePartition(name);
+        if (p != null) {
+            if (p.getSd() != null)
+                res.put(PartitionQuery.LOCATION, p.getSd().getLocation());
+            res.put(PartitionQuery.CREATE_TIME, p.getCreateTime());
+            res.put(PartitionQuery.LAST_ACCESS_TIME, p.getLastAccessTime());
+            res.put(PartitionQuery.PARAMETERS, p.getParameters());
+        }
+        return res;
+    }
+
+    static Map<String, Object> makeOnePartition(String name)
+        throws IOException
+    {
+        List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+        List<String> spec = new ArrayList<String>();
+        for (String kv : name.split("/")) {
+            int eq = kv.indexOf('=');
+            String key = (eq < 0) ? kv : kv.substring(0, eq);
+            String val = (eq < 0) ? "" : FileUtils.unescapePathName(kv.substring(eq + 1));
+            Map<String, Object> v = new HashMap<String, Object>();
+            v.put("columnName", key);
+            v.put("columnValue", val);
+            values.add(v);
+            spec.add(String.format("%s='%s'", key, val));
+        }
+
+        Map<String, Object> res = new HashMap<String, Object>();
+        res.put("name", StringUtils.join(spec, ","));
+        res.put("values", values);
+        return res;
+    }
+}
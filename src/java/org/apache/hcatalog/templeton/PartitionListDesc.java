@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A description of many partitions to create in one table.
+ */
+@XmlRootElement
+public class PartitionListDesc extends GroupPermissionsDesc {
+    public List<PartitionDesc> partitions;
+    public boolean ifNotExists = false;
+
+    public PartitionListDesc() {}
+
+    /**
+     * The partition names, in order.
+     */
+    public List<String> partitionNames() {
+        List<String> res = new ArrayList<String>();
+        if (partitions != null)
+            for (PartitionDesc p : partitions)
+                res.add(p.partition);
+        return res;
+    }
+
+    public String toString() {
+        return String.format("PartitionListDesc(partitions=%s, ifNotExists=%s)",
+                             partitionNames(), ifNotExists);
+    }
+}
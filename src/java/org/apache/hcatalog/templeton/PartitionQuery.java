@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hcatalog.templeton.tool.TempletonUtils;
+
+/**
+ * The filter and paging arguments of a partition listing.
+ *
+ * Pages are cut from the partition names in sorted order.  The
+ * continuation token returned with a page is the last name on that
+ * page, so the next page starts after it even if partitions were
+ * added or dropped in between.  The token also has the position of
+ * that name, so the next page can be cut from the first names only,
+ * see fetchCount.
+ */
+public class PartitionQuery {
+    public static final String MAX_LIMIT_NAME = "templeton.ddl.partitions.max-limit";
+
+    public static final String NAME             = "name";
+    public static final String VALUES           = "values";
+    public static final String LOCATION         = "location";
+    public static final String CREATE_TIME      = "createTime";
+    public static final String LAST_ACCESS_TIME = "lastAccessTime";
+    public static final String PARAMETERS       = "parameters";
+
+    public static final List<String> ALL_FIELDS
+        = Arrays.asList(NAME, VALUES, LOCATION, CREATE_TIME, LAST_ACCESS_TIME,
+                        PARAMETERS);
+    public static final List<String> DEFAULT_FIELDS = Arrays.asList(NAME, VALUES);
+
+    public String filter;
+    public int offset = 0;
+    public int limit = 0;
+    public String next;
+    public List<String> fields = DEFAULT_FIELDS;
+
+    // Set by page()
+    private String nextToken;
+
+    public PartitionQuery() {}
+
+    /**
+     * Does this query want the field?
+     */
+    public boolean wants(String field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * Does this query want anything besides the name and values?
+     */
+    public boolean wantsDetails() {
+        for (String f : fields)
+            if (! DEFAULT_FIELDS.contains(f))
+                return true;
+        return false;
+    }
+
+    /**
+     * Keep only the wanted fields of a partition.
+     */
+    public Map<String, Object> select(Map<String, Object> partition) {
+        partition.keySet().retainAll(fields);
+        return partition;
+    }
+
+    /**
+     * How many of the names, in sorted order, are needed to cut this
+     * page: one more than the end of the page, to tell if there is a
+     * next one.  Returns -1 if all of them are needed, or if more
+     * than a metastore call can be limited to.
+     */
+    public int fetchCount() {
+        long n = (long) offset + limit + 1;
+        if (TempletonUtils.isset(next)) {
+            int pos = tokenPosition(next);
+            if (pos < 0)
+                return -1;
+            n += pos + 1;
+        }
+        return (n > Short.MAX_VALUE) ? -1 : (int) n;
+    }
+
+    /**
+     * Cut this page out of all the partition names.  The names are
+     * sorted in place.
+     */
+    public List<String> page(List<String> names) {
+        return page(names, -1);
+    }
+
+    /**
+     * Cut this page out of the first count names in sorted order, or
+     * all of them if count is -1.  Returns null if the page needs
+     * names past the ones given, which happens when partitions were
+     * added ahead of the token.  The names are sorted in place.
+     */
+    public List<String> page(List<String> names, int count) {
+        Collections.sort(names);
+        boolean all = count < 0 || names.size() < count;
+
+        int start = 0;
+        if (TempletonUtils.isset(next)) {
+            String after = decodeToken(next);
+            int pos = Collections.binarySearch(names, after);
+            start = (pos < 0) ? -(pos + 1) : pos + 1;
+        }
+        start = Math.min(start + offset, names.size());
+        int end = Math.min(start + limit, names.size());
+        if (! all && end >= names.size())
+            return null;
+
+        List<String> res = new ArrayList<String>(names.subList(start, end));
+        if (end < names.size() && ! res.isEmpty())
+            nextToken = makeToken(end - 1, res.get(res.size() - 1));
+        else
+            nextToken = null;
+        return res;
+    }
+
+    /**
+     * The continuation token for the page after the last one cut, or
+     * null if that was the last page.
+     */
+    public String nextToken() {
+        return nextToken;
+    }
+
+    /**
+     * Make the continuation token that starts after this partition,
+     * which was at position pos in the sorted names.
+     */
+    public static String makeToken(int pos, String name) {
+        try {
+            return Base64.encodeBase64URLSafeString((pos + ":" + name).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // A partition name starts with a column name, so it never looks
+    // like the position.
+    private static final Pattern POSITION
+        = Pattern.compile("^(\\d+):(.*)$", Pattern.DOTALL);
+
+    /**
+     * The name of the partition in a continuation token.
+     */
+    public static String decodeToken(String token) {
+        String s = decode(token);
+        Matcher m = POSITION.matcher(s);
+        return m.matches() ? m.group(2) : s;
+    }
+
+    /**
+     * The position of the partition in a continuation token, or -1
+     * if the token doesn't have it.
+     */
+    public static int tokenPosition(String token) {
+        Matcher m = POSITION.matcher(decode(token));
+        if (! m.matches())
+            return -1;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String decode(String token) {
+        try {
+            return new String(Base64.decodeBase64(token), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String toString() {
+        return String.format("PartitionQuery(filter=%s, offset=%d, limit=%d, "
+                             + "next=%s, fields=%s)",
+                             filter, offset, limit, next, fields);
+    }
+}
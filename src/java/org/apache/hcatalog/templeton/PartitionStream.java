@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Write one page of a partition listing straight to the client.
+ * Each partition is built from its name only when it is written, so
+ * the whole json document is never held in memory.
+ */
+public class PartitionStream implements StreamingOutput {
+    /**
+     * Builds the json of one partition from its name.
+     */
+    public interface PartitionMaker {
+        Map<String, Object> make(String name) throws IOException;
+    }
+
+    private String db;
+    private String table;
+    private List<String> names;
+    private PartitionMaker maker;
+    private String next;
+
+    public PartitionStream(String db, String table, List<String> names,
+                           PartitionMaker maker, String next)
+    {
+        this.db = db;
+        this.table = table;
+        this.names = names;
+        this.maker = maker;
+        this.next = next;
+    }
+
+    /**
+     * A response that streams the page.
+     */
+    public Response build() {
+        return Response.ok(this, MediaType.APPLICATION_JSON).build();
+    }
+
+    public void write(OutputStream out)
+        throws IOException, WebApplicationException
+    {
+        JsonGenerator g = JsonBuilder.jsonFactory()
+            .createJsonGenerator(out, JsonEncoding.UTF8);
+        g.writeStartObject();
+        g.writeArrayFieldStart("partitions");
+        for (String name : names)
+            g.writeObject(maker.make(name));
+        g.writeEndArray();
+        g.writeStringField("database", db);
+        g.writeStringField("table", table);
+        if (next != null)
+            g.writeStringField("next", next);
+        g.writeEndObject();
+        g.flush();
+    }
+}
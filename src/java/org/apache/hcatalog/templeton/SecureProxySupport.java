@@ -17,33 +17,24 @@
  */
 package org.apache.hcatalog.templeton;
 
-import java.io.File;
 import java.io.IOException;
-import java.security.PrivilegedExceptionAction;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hive.conf.HiveConf;
-import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
-import org.apache.hadoop.hive.metastore.api.MetaException;
-import org.apache.hadoop.io.Text;
-import org.apache.thrift.TException;
-import org.apache.hadoop.security.Credentials;
 import org.apache.hadoop.security.UserGroupInformation;
-import org.apache.hadoop.security.token.Token;
 
 /**
  * Helper class to run jobs using Kerberos security.  Always safe to
  * use these methods, it's a noop if security is not enabled.
+ *
+ * The delegation tokens come from the DelegationTokenCache, so the
+ * token file is shared with the other requests of the same user.
  */
 public class SecureProxySupport {
     private Path tokenPath;
-    private final String HCAT_SERVICE = "hcat";
+    private final String HCAT_SERVICE = DelegationTokenCache.HCAT_SERVICE;
     private boolean isEnabled;
     private String user;
 
@@ -51,8 +42,6 @@ public class SecureProxySupport {
         isEnabled = UserGroupInformation.isSecurityEnabled();
     }
 
-    private static final Log LOG = LogFactory.getLog(SecureProxySupport.class);
-    
     /**
      * The file where we store the auth token
      */
@@ -64,40 +53,28 @@ public class SecureProxySupport {
     public String getHcatServiceStr() { return( HCAT_SERVICE ); }
 
     /**
-     * Create the delegation token.
+     * Find the delegation tokens of the user, fetching new ones if
+     * needed.
      */
     public Path open(String user, Configuration conf)
-        throws IOException, InterruptedException
+        throws IOException, InterruptedException, BusyException
     {
         close();
         if (isEnabled) {
             this.user = user;
-            File t = File.createTempFile("templeton", null);
-            tokenPath = new Path(t.toURI());
-            Token fsToken = getFSDelegationToken(user, conf);
-            String hcatTokenStr;
-            try {
-                hcatTokenStr = buildHcatDelegationToken(user);
-            } catch (Exception e) {
-                throw new IOException(e);
-            }
-            Token<?> msToken = new Token();
-            msToken.decodeFromUrlString(hcatTokenStr);
-            msToken.setService(new Text(HCAT_SERVICE));
-            writeProxyDelegationTokens(fsToken, msToken, conf, user, tokenPath);
-            
+            DelegationTokenCache.Generation gen
+                = DelegationTokenCache.getInstance(toAppConfig(conf)).get(user);
+            tokenPath = gen.getTokenPath();
         }
         return tokenPath;
     }
 
     /**
-     * Cleanup
+     * Cleanup.  The token file belongs to the cache and is deleted
+     * when its tokens are replaced.
      */
     public void close() {
-        if (tokenPath != null) {
-            new File(tokenPath.toUri()).delete();
-            tokenPath = null;
-        }
+        tokenPath = null;
     }
 
     /**
@@ -121,70 +98,10 @@ public class SecureProxySupport {
             args.add("proxy.user.name=" + user);            
         }
     }
-    
-    class TokenWrapper { 
-        Token<?> token;
-    }
-
-    private Token<?> getFSDelegationToken(String user,
-                                           final Configuration conf)
-        throws IOException, InterruptedException
-    {
-        LOG.info("user: " + user + " loginUser: " + UserGroupInformation.getLoginUser().getUserName());
-        final UserGroupInformation ugi = UgiFactory.getUgi(user);
-
-       final TokenWrapper twrapper = new TokenWrapper();
-       ugi.doAs(new PrivilegedExceptionAction<Object>() {
-           public Object run() throws IOException {
-               FileSystem fs = FileSystem.get(conf);
-               twrapper.token =  fs.getDelegationToken(ugi.getShortUserName());
-               return null;
-           }
-       });
-       return twrapper.token;
-       
-    }
-
-    private void writeProxyDelegationTokens(final Token<?> fsToken,
-            final Token<?> msToken,
-            final Configuration conf,
-            String user,
-            final Path tokenPath)
-                    throws IOException, InterruptedException{
-        
-        
-        LOG.info("user: " + user + " loginUser: " + UserGroupInformation.getLoginUser().getUserName());
-        final UserGroupInformation ugi  =  UgiFactory.getUgi(user);
 
-        
-        ugi.doAs(new PrivilegedExceptionAction<Object>() {
-                     public Object run() throws IOException {
-                         Credentials cred = new Credentials();
-                         cred.addToken(fsToken.getService(), fsToken);
-                         cred.addToken(msToken.getService(), msToken);
-                         cred.writeTokenStorageFile(tokenPath, conf);
-                         return null;
-                     }
-                 });
-        
-    }
-    
-    private String buildHcatDelegationToken(String user)
-        throws IOException, InterruptedException, MetaException, TException
-    {
-        HiveConf c = new HiveConf();
-        final HiveMetaStoreClient client = new HiveMetaStoreClient(c);
-        LOG.info("user: " + user + " loginUser: " + UserGroupInformation.getLoginUser().getUserName());
-        final TokenWrapper twrapper = new TokenWrapper();
-        final UserGroupInformation ugi = UgiFactory.getUgi(user);
-        String s = ugi.doAs(new PrivilegedExceptionAction<String>() {
-                                public String run()
-                                    throws IOException, MetaException, TException
-                                {
-                                    String u = ugi.getUserName();
-                                    return client.getDelegationToken(u);
-                                }
-                            });
-        return s;
+    private static AppConfig toAppConfig(Configuration conf) {
+        if (conf instanceof AppConfig)
+            return (AppConfig) conf;
+        return Main.getAppConfigInstance();
     }
 }
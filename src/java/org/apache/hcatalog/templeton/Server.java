@@ -35,9 +35,12 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.logging.Log;
@@ -101,6 +104,7 @@ public class Server {
 
     protected static ExecService execService = ExecServiceImpl.getInstance();
     private static AppConfig appConf = Main.getAppConfigInstance();
+    private static DdlCache ddlCache = DdlCache.getInstance(appConf);
 
     // The SecurityContext set by AuthFilter
     private @Context SecurityContext theSecurityContext;
@@ -108,6 +112,9 @@ public class Server {
     // The uri requested
     private @Context UriInfo theUriInfo;
 
+    // The request, for the conditional GET headers
+    private @Context Request theRequest;
+
     private static final Log LOG = LogFactory.getLog(Server.class);
 
     /**
@@ -155,8 +162,81 @@ public class Server {
         verifyUser();
         verifyParam(exec, "exec");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.run(getUser(), exec, false, group, permissions);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.run(getUser(), exec, false, group, permissions);
+        } finally {
+            ddlCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Run a list of ddl operations with a single hcat call.  See
+     * BatchOperationDesc for the supported operations.
+     */
+    @POST
+    @Path("ddl/batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response batch(BatchDesc desc)
+        throws HcatException, NotAuthorizedException, BusyException,
+        BadParam, ExecuteException, IOException
+    {
+        verifyUser();
+        if (desc == null || ! TempletonUtils.isset(desc.operations))
+            throw new BadParam("Missing operations parameter");
+        for (int i = 0; i < desc.operations.size(); ++i)
+            verifyBatchOperation(desc.operations.get(i), "operations[" + i + "]");
+
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.batch(getUser(), desc);
+        } finally {
+            for (BatchOperationDesc op : desc.operations) {
+                ddlCache.invalidate(op.database, op.targetTable());
+                if (op.rename != null)
+                    ddlCache.invalidate(op.database, op.rename);
+            }
+        }
+    }
+
+    // Check the parameters of one batch operation.
+    private void verifyBatchOperation(BatchOperationDesc op, String name)
+        throws BadParam
+    {
+        if (op == null)
+            throw new BadParam("Missing " + name);
+        verifyParam(op.operation, name + ".operation");
+        verifyDdlParam(op.database, name + ".database");
+
+        String o = op.operation;
+        if (BatchOperationDesc.CREATE_TABLE.equals(o)) {
+            if (op.create == null)
+                throw new BadParam("Missing " + name + ".create");
+            verifyDdlParam(op.create.table, name + ".create.table");
+            return;
+        }
+
+        verifyDdlParam(op.table, name + ".table");
+        if (BatchOperationDesc.DROP_TABLE.equals(o)) {
+            // Nothing else needed
+        } else if (BatchOperationDesc.RENAME_TABLE.equals(o)) {
+            verifyDdlParam(op.rename, name + ".rename");
+        } else if (BatchOperationDesc.ADD_PARTITION.equals(o)
+                   || BatchOperationDesc.DROP_PARTITION.equals(o)) {
+            verifyParam(op.partition, name + ".partition");
+        } else if (BatchOperationDesc.ADD_COLUMN.equals(o)) {
+            if (op.column == null)
+                throw new BadParam("Missing " + name + ".column");
+            verifyParam(op.column.name, name + ".column.name");
+            verifyParam(op.column.type, name + ".column.type");
+        } else if (BatchOperationDesc.SET_PROPERTY.equals(o)) {
+            if (op.property == null)
+                throw new BadParam("Missing " + name + ".property");
+            verifyDdlParam(op.property.name, name + ".property.name");
+            verifyParam(op.property.value, name + ".property.value");
+        } else {
+            throw new BadParam("Unknown " + name + ".operation " + o);
+        }
     }
 
     /**
@@ -173,10 +253,16 @@ public class Server {
         verifyUser();
         verifyDdlParam(db, ":db");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
+        HcatDelegator d = makeHcatDelegator();
         if (! TempletonUtils.isset(tablePattern))
             tablePattern = "*";
-        return d.listTables(getUser(), db, tablePattern);
+        Response res = ddlCache.get(getUser(), "listTables", db, null, tablePattern);
+        if (res == null) {
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "listTables", db, null, tablePattern, stamp,
+                               d.listTables(getUser(), db, tablePattern));
+        }
+        return res;
     }
 
     /**
@@ -196,8 +282,12 @@ public class Server {
         verifyDdlParam(table, ":table");
         desc.table = table;
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.createTable(getUser(), db, desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.createTable(getUser(), db, desc);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
@@ -220,8 +310,12 @@ public class Server {
         desc.existingTable = existingTable;
         desc.newTable = newTable;
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.createTableLike(getUser(), db, desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.createTableLike(getUser(), db, desc);
+        } finally {
+            ddlCache.invalidate(db, newTable);
+        }
     }
 
     /**
@@ -242,11 +336,19 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        if ("extended".equals(format))
-            return d.descExtendedTable(getUser(), db, table);
+        boolean extended = "extended".equals(format);
+        Response res = ddlCache.get(getUser(), "descTable", db, table, format);
+        if (res != null)
+            return conditional(res);
+
+        HcatDelegator d = makeHcatDelegator();
+        long stamp = ddlCache.startRead();
+        if (extended)
+            res = d.descExtendedTable(getUser(), db, table);
         else
-            return d.descTable(getUser(), db, table, false);
+            res = d.descTable(getUser(), db, table, false);
+        return conditional(ddlCache.put(getUser(), "descTable", db, table, format, stamp,
+                                        res));
     }
 
     /**
@@ -267,8 +369,12 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.dropTable(getUser(), db, table, ifExists, group, permissions);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.dropTable(getUser(), db, table, ifExists, group, permissions);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
@@ -290,8 +396,13 @@ public class Server {
         verifyDdlParam(oldTable, ":table");
         verifyDdlParam(newTable, "rename");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.renameTable(getUser(), db, oldTable, newTable, group, permissions);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.renameTable(getUser(), db, oldTable, newTable, group, permissions);
+        } finally {
+            ddlCache.invalidate(db, oldTable);
+            ddlCache.invalidate(db, newTable);
+        }
     }
 
     /**
@@ -311,8 +422,14 @@ public class Server {
         verifyDdlParam(table, ":table");
         verifyDdlParam(property, ":property");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.descTableProperty(getUser(), db, table, property);
+        Response res = ddlCache.get(getUser(), "descTableProperty", db, table, property);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "descTableProperty", db, table, property, stamp,
+                               d.descTableProperty(getUser(), db, table, property));
+        }
+        return res;
     }
 
     /**
@@ -330,8 +447,14 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.listTableProperties(getUser(), db, table);
+        Response res = ddlCache.get(getUser(), "listTableProperties", db, table, null);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "listTableProperties", db, table, null, stamp,
+                               d.listTableProperties(getUser(), db, table));
+        }
+        return res;
     }
 
     /**
@@ -353,18 +476,29 @@ public class Server {
         verifyDdlParam(property, ":property");
         desc.name = property;
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.addOneTableProperty(getUser(), db, table, desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.addOneTableProperty(getUser(), db, table, desc);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
-     * List all the partitions in an hcat table.
+     * List the partitions in an hcat table.  With any of the filter,
+     * paging or fields parameters one page is streamed back;
+     * otherwise every partition is returned.
      */
     @GET
     @Path("ddl/database/{db}/table/{table}/partition")
     @Produces(MediaType.APPLICATION_JSON)
     public Response listPartitions(@PathParam("db") String db,
-                                   @PathParam("table") String table)
+                                   @PathParam("table") String table,
+                                   @QueryParam("filter") String filter,
+                                   @QueryParam("offset") String offset,
+                                   @QueryParam("limit") String limit,
+                                   @QueryParam("next") String next,
+                                   @QueryParam("fields") String fields)
         throws HcatException, NotAuthorizedException, BusyException,
         BadParam, ExecuteException, IOException
     {
@@ -372,8 +506,22 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.listPartitions(getUser(), db, table);
+        if (filter != null || offset != null || limit != null
+            || next != null || fields != null)
+        {
+            PartitionQuery q = makePartitionQuery(filter, offset, limit, next, fields);
+            HcatDelegator d = makeHcatDelegator();
+            return d.listPartitions(getUser(), db, table, q);
+        }
+
+        Response res = ddlCache.get(getUser(), "listPartitions", db, table, null);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "listPartitions", db, table, null, stamp,
+                               d.listPartitions(getUser(), db, table));
+        }
+        return conditional(res);
     }
 
     /**
@@ -393,8 +541,14 @@ public class Server {
         verifyDdlParam(table, ":table");
         verifyParam(partition, ":partition");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.descOnePartition(getUser(), db, table, partition);
+        Response res = ddlCache.get(getUser(), "descPartition", db, table, partition);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "descPartition", db, table, partition, stamp,
+                               d.descOnePartition(getUser(), db, table, partition));
+        }
+        return conditional(res);
     }
 
     /**
@@ -415,8 +569,12 @@ public class Server {
         verifyDdlParam(table, ":table");
         verifyParam(partition, ":partition");
         desc.partition = partition;
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.addOnePartition(getUser(), db, table, desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.addOnePartition(getUser(), db, table, desc);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
@@ -438,9 +596,73 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
         verifyParam(partition, ":partition");
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.dropPartition(getUser(), db, table, partition, ifExists,
-                               group, permissions);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.dropPartition(getUser(), db, table, partition, ifExists,
+                                   group, permissions);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
+    }
+
+    /**
+     * Create many partitions in an hcat table with one call.
+     */
+    @PUT
+    @Path("ddl/database/{db}/table/{table}/partitions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response addPartitions(@PathParam("db") String db,
+                                  @PathParam("table") String table,
+                                  PartitionListDesc desc)
+        throws HcatException, NotAuthorizedException, BusyException,
+        BadParam, ExecuteException, IOException
+    {
+        verifyUser();
+        verifyDdlParam(db, ":db");
+        verifyDdlParam(table, ":table");
+        if (desc == null || ! TempletonUtils.isset(desc.partitions))
+            throw new BadParam("Missing partitions");
+        for (int i = 0; i < desc.partitions.size(); ++i) {
+            PartitionDesc p = desc.partitions.get(i);
+            if (p == null)
+                throw new BadParam("Missing partitions[" + i + "]");
+            verifyParam(p.partition, "partitions[" + i + "].partition");
+        }
+
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.addPartitions(getUser(), db, table, desc);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
+    }
+
+    /**
+     * Drop many partitions in an hcat table with one call.
+     */
+    @DELETE
+    @Path("ddl/database/{db}/table/{table}/partitions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response dropPartitions(@PathParam("db") String db,
+                                   @PathParam("table") String table,
+                                   @QueryParam("partition") List<String> partitions,
+                                   @QueryParam("ifExists") boolean ifExists,
+                                   @QueryParam("group") String group,
+                                   @QueryParam("permissions") String permissions)
+        throws HcatException, NotAuthorizedException, BusyException,
+        BadParam, ExecuteException, IOException
+    {
+        verifyUser();
+        verifyDdlParam(db, ":db");
+        verifyDdlParam(table, ":table");
+        verifyParam(partitions, "partition");
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.dropPartitions(getUser(), db, table, partitions, ifExists,
+                                    group, permissions);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
@@ -455,10 +677,16 @@ public class Server {
     {
         verifyUser();
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
+        HcatDelegator d = makeHcatDelegator();
         if (! TempletonUtils.isset(dbPattern))
             dbPattern = "*";
-        return d.listDatabases(getUser(), dbPattern);
+        Response res = ddlCache.get(getUser(), "listDatabases", null, null, dbPattern);
+        if (res == null) {
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "listDatabases", null, null, dbPattern, stamp,
+                               d.listDatabases(getUser(), dbPattern));
+        }
+        return res;
     }
 
     /**
@@ -474,8 +702,14 @@ public class Server {
     {
         verifyUser();
         verifyDdlParam(db, ":db");
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.descDatabase(getUser(), db, "extended".equals(format));
+        Response res = ddlCache.get(getUser(), "descDatabase", db, null, format);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "descDatabase", db, null, format, stamp,
+                               d.descDatabase(getUser(), db, "extended".equals(format)));
+        }
+        return conditional(res);
     }
 
     /**
@@ -492,8 +726,12 @@ public class Server {
         verifyUser();
         verifyDdlParam(db, ":db");
         desc.database = db;
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.createDatabase(getUser(), desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.createDatabase(getUser(), desc);
+        } finally {
+            ddlCache.invalidate(db, null);
+        }
     }
 
     /**
@@ -514,9 +752,13 @@ public class Server {
         verifyDdlParam(db, ":db");
         if (TempletonUtils.isset(option))
             verifyDdlParam(option, "option");
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.dropDatabase(getUser(), db, ifExists, option,
-                              group, permissions);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.dropDatabase(getUser(), db, ifExists, option,
+                                  group, permissions);
+        } finally {
+            ddlCache.invalidate(db, null);
+        }
     }
 
     /**
@@ -535,8 +777,14 @@ public class Server {
         verifyDdlParam(db, ":db");
         verifyDdlParam(table, ":table");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.listColumns(getUser(), db, table);
+        Response res = ddlCache.get(getUser(), "listColumns", db, table, null);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "listColumns", db, table, null, stamp,
+                               d.listColumns(getUser(), db, table));
+        }
+        return res;
     }
 
     /**
@@ -556,8 +804,14 @@ public class Server {
         verifyDdlParam(table, ":table");
         verifyParam(column, ":column");
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.descOneColumn(getUser(), db, table, column);
+        Response res = ddlCache.get(getUser(), "descColumn", db, table, column);
+        if (res == null) {
+            HcatDelegator d = makeHcatDelegator();
+            long stamp = ddlCache.startRead();
+            res = ddlCache.put(getUser(), "descColumn", db, table, column, stamp,
+                               d.descOneColumn(getUser(), db, table, column));
+        }
+        return res;
     }
 
     /**
@@ -580,8 +834,12 @@ public class Server {
         verifyParam(desc.type, "type");
         desc.name = column;
 
-        HcatDelegator d = new HcatDelegator(appConf, execService);
-        return d.addOneColumn(getUser(), db, table, desc);
+        HcatDelegator d = makeHcatDelegator();
+        try {
+            return d.addOneColumn(getUser(), db, table, desc);
+        } finally {
+            ddlCache.invalidate(db, table);
+        }
     }
 
     /**
@@ -724,18 +982,25 @@ public class Server {
     }
 
     /**
-     * Return all the known job ids for this user.
+     * Return the known job ids for this user, oldest first.  The
+     * state parameter only lists jobs in that state; offset and limit
+     * return one page of them.
      */
     @GET
     @Path("queue")
     @Produces({MediaType.APPLICATION_JSON})
-    public List<String> showQueueList()
+    public List<String> showQueueList(@QueryParam("state") String state,
+                                      @QueryParam("offset") String offset,
+                                      @QueryParam("limit") String limit)
         throws NotAuthorizedException, BadParam, IOException
     {
         verifyUser();
 
         ListDelegator d = new ListDelegator(appConf);
-        return d.run(getUser());
+        return d.run(getUser(),
+                     TempletonUtils.isset(state) ? state.toLowerCase() : null,
+                     parseCount(offset, "offset", 0),
+                     parseCount(limit, "limit", Integer.MAX_VALUE));
     }
 
     /**
@@ -751,6 +1016,96 @@ public class Server {
         return d.run(jobid);
     }
 
+    /**
+     * The ddl backend selected by templeton.hcat.backend: either the
+     * hcat executable or the in-process metastore client.  hcat runs
+     * in the worker pool when templeton.hcat.workers is set.
+     */
+    private HcatDelegator makeHcatDelegator() {
+        ExecService hcatExec = execService;
+        if (HcatWorkerPool.isEnabled(appConf))
+            hcatExec = HcatWorkerPool.getInstance(appConf);
+
+        if (AppConfig.HCAT_BACKEND_METASTORE.equals(appConf.hcatBackend()))
+            return new MetastoreDelegator(appConf, hcatExec);
+        return new HcatDelegator(appConf, hcatExec);
+    }
+
+    /**
+     * Answer 304 Not Modified if the client already has this
+     * response, going by its If-None-Match header.  The entity tag is
+     * a hash of the json content, see JsonBuilder.contentHash.
+     * Streamed responses have no entity tag.
+     */
+    private Response conditional(Response res) {
+        if (theRequest == null || res.getStatus() != JsonBuilder.OK
+            || res.getEntity() instanceof StreamingOutput)
+            return res;
+
+        Object tag = res.getMetadata().getFirst("ETag");
+        EntityTag etag;
+        if (tag instanceof EntityTag)
+            etag = (EntityTag) tag;
+        else
+            etag = new EntityTag(JsonBuilder.contentHash(res.getEntity()));
+
+        Response.ResponseBuilder notModified = theRequest.evaluatePreconditions(etag);
+        if (notModified == null)
+            return res;
+        Object cc = res.getMetadata().getFirst("Cache-Control");
+        if (cc != null)
+            notModified.header("Cache-Control", cc);
+        return notModified.build();
+    }
+
+    /**
+     * Check the arguments of a paged partition listing.  The limit
+     * defaults to, and can't be more than, the configured maximum.
+     */
+    private PartitionQuery makePartitionQuery(String filter, String offset,
+                                              String limit, String next,
+                                              String fields)
+        throws BadParam
+    {
+        PartitionQuery q = new PartitionQuery();
+        q.filter = filter;
+        q.next = next;
+
+        int max = appConf.getInt(PartitionQuery.MAX_LIMIT_NAME, 1000);
+        q.offset = parseCount(offset, "offset", 0);
+        q.limit = Math.min(parseCount(limit, "limit", max), max);
+        if (q.limit < 1)
+            throw new BadParam("limit must be positive");
+
+        if (TempletonUtils.isset(fields)) {
+            q.fields = new ArrayList<String>();
+            for (String f : fields.split(",")) {
+                f = f.trim();
+                if (! PartitionQuery.ALL_FIELDS.contains(f))
+                    throw new BadParam("Unknown field " + f + ", must be one of "
+                                       + PartitionQuery.ALL_FIELDS);
+                q.fields.add(f);
+            }
+        }
+        return q;
+    }
+
+    // Parse a non-negative count parameter.
+    private static int parseCount(String param, String name, int defaultValue)
+        throws BadParam
+    {
+        if (! TempletonUtils.isset(param))
+            return defaultValue;
+        try {
+            int n = Integer.parseInt(param);
+            if (n >= 0)
+                return n;
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new BadParam("Invalid " + name + " " + param);
+    }
+
     /**
      * Verify that we have a valid user.  Throw an exception if invalid.
      */
@@ -23,7 +23,6 @@ import java.util.HashMap;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response;
-import org.codehaus.jackson.map.ObjectMapper;
 
 /**
  * Simple exception that will return a json error payload if thrown
@@ -60,7 +59,7 @@ public class SimpleWebException extends Throwable {
 
         String json = "\"error\"";
         try {
-            json = new ObjectMapper().writeValueAsString(err);
+            json = JsonBuilder.mapToJson(err);
         } catch (IOException e) {
         }
 
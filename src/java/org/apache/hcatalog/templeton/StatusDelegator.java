@@ -45,14 +45,20 @@ public class StatusDelegator extends TempletonDelegator {
         TempletonJobTracker tracker = null;
         JobState state = null;
         try {
-            tracker = new TempletonJobTracker(ugi,
-                                              JobTracker.getAddress(appConf),
-                                              appConf);
             JobID jobid = StatusDelegator.StringToJobID(id);
             if (jobid == null)
                 throw new BadParam("Invalid jobid: " + id);
+            // Read the stored fields while connecting to the
+            // JobTracker.  Which job to ask it about depends on the
+            // child id, so the status lookup itself waits for the read.
             state = new JobState(id, Main.getAppConfigInstance());
-            return StatusDelegator.makeStatus(tracker, jobid, state);
+            state.prefetch();
+            tracker = new TempletonJobTracker(ugi,
+                                              JobTracker.getAddress(appConf),
+                                              appConf);
+            String childid = state.getChildId();
+            return StatusDelegator.makeStatus(tracker, JobStatusCache.getInstance(appConf),
+                                              jobid, childid, state);
         } catch (IllegalStateException e) {
             throw new BadParam(e.getMessage());
         } finally {
@@ -68,20 +74,34 @@ public class StatusDelegator extends TempletonDelegator {
                                              String childid,
                                              JobState state)
         throws BadParam, IOException
+    {
+        return makeStatus(tracker, null, jobid, childid, state);
+    }
+
+    /**
+     * Build the status of a job.  The status and profile come from
+     * the cache when one is given, see JobStatusCache.
+     */
+    public static QueueStatusBean makeStatus(TempletonJobTracker tracker,
+                                             JobStatusCache cache,
+                                             JobID jobid,
+                                             String childid,
+                                             JobState state)
+        throws BadParam, IOException
     {
         JobID bestid = jobid;
         if (childid != null)
             bestid = StatusDelegator.StringToJobID(childid);
 
-        JobStatus status = tracker.getJobStatus(bestid);
-        JobProfile profile = tracker.getJobProfile(bestid);
+        JobStatus status = getJobStatus(tracker, cache, bestid);
+        JobProfile profile = getJobProfile(tracker, cache, bestid);
 
         if (status == null || profile == null) {
             if (bestid != jobid) { // Corrupt childid, retry.
                 LOG.error("Corrupt child id " + childid + " for " + jobid);
                 bestid = jobid;
-                status = tracker.getJobStatus(bestid);
-                profile = tracker.getJobProfile(bestid);
+                status = getJobStatus(tracker, cache, bestid);
+                profile = getJobProfile(tracker, cache, bestid);
             }
         }
 
@@ -99,6 +119,24 @@ public class StatusDelegator extends TempletonDelegator {
         return makeStatus(tracker, jobid, state.getChildId(), state);
     }
 
+    private static JobStatus getJobStatus(TempletonJobTracker tracker,
+                                          JobStatusCache cache, JobID jobid)
+        throws IOException
+    {
+        if (cache == null)
+            return tracker.getJobStatus(jobid);
+        return cache.getJobStatus(tracker, jobid);
+    }
+
+    private static JobProfile getJobProfile(TempletonJobTracker tracker,
+                                            JobStatusCache cache, JobID jobid)
+        throws IOException
+    {
+        if (cache == null)
+            return tracker.getJobProfile(jobid);
+        return cache.getJobProfile(tracker, jobid);
+    }
+
     /**
      * A version of JobID.forName with our app specific error handling.
      */
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A storage that can run calls in the background, so a caller can
+ * start many reads or writes and wait for them together instead of
+ * paying for each round trip in turn.  See JobState.prefetch.
+ */
+public interface AsyncTempletonStorage extends TempletonStorage {
+    /**
+     * Start reading all the name/value pairs of an id.  The future
+     * gives the same map getFields would.
+     */
+    public Future<Map<String, String>> getFieldsAsync(Type type, String id);
+
+    /**
+     * Start saving many key/value pairs of an id.  A null value
+     * removes the field.
+     */
+    public Future<Void> saveFieldsAsync(Type type, String id,
+                                        Map<String, String> fields);
+
+    /**
+     * Read all the name/value pairs of many ids at once.  The map is
+     * in the order of the ids, and an id that wasn't found has an
+     * empty map.
+     */
+    public Map<String, Map<String, String>> multiGet(Type type, List<String> ids)
+        throws IOException;
+}
@@ -0,0 +1,341 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A storage that keeps the jobs of another one in memory.  The
+ * storage it wraps is set with templeton.storage.cache.class, and the
+ * cache is shared by the whole process, see StorageCache.
+ *
+ * Only jobs are cached; everything else goes straight through.  A
+ * change made only of write-behind fields is held and written later.
+ * Any other change is written at once, together with whatever was
+ * held for that job, so a finished job is never stored without its
+ * last progress.  A change that only repeats the cached values of the
+ * fields that are written through, along with a write-behind field,
+ * is not written again.  Deleting a job or one of its fields drops
+ * what is held for it, so a later flush doesn't write it back.
+ */
+public class CachingStorage implements AsyncTempletonStorage {
+    private StorageCache cache = null;
+    private TempletonStorage backing = null;
+
+    public CachingStorage() {
+        // No-op -- this is needed to be able to instantiate the
+        // class from the name.
+    }
+
+    /**
+     * Use a cache of our own rather than the shared one.
+     */
+    public CachingStorage(StorageCache cache) {
+        this.cache = cache;
+        this.backing = cache.getBacking();
+    }
+
+    @Override
+    public void startCleanup(Configuration config) {
+        backing.startCleanup(config);
+    }
+
+    @Override
+    public void saveField(Type type, String id, String key, String val)
+        throws NotFoundException
+    {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put(key, val);
+        saveFields(type, id, fields);
+    }
+
+    @Override
+    public void saveFields(Type type, String id, Map<String, String> fields)
+        throws NotFoundException
+    {
+        if (type != Type.JOB) {
+            backing.saveFields(type, id, fields);
+            return;
+        }
+
+        Map<String, String> later = new HashMap<String, String>();
+        Map<String, String> now = new HashMap<String, String>();
+        Map<String, String> cached = cache.peek(id);
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            Map<String, String> one = new HashMap<String, String>();
+            one.put(e.getKey(), e.getValue());
+            if (cache.isWriteBehind(one))
+                later.put(e.getKey(), e.getValue());
+            else
+                now.put(e.getKey(), e.getValue());
+        }
+
+        // A progress update repeats the child id every time.
+        if (! later.isEmpty() && cached != null) {
+            Iterator<Map.Entry<String, String>> it = now.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> e = it.next();
+                if (equal(cached.get(e.getKey()), e.getValue()))
+                    it.remove();
+            }
+        }
+        if (now.isEmpty()) {
+            if (! later.isEmpty())
+                cache.writeLater(id, later);
+            return;
+        }
+
+        Map<String, String> changes = new HashMap<String, String>();
+        Map<String, String> held = cache.takePending(id);
+        if (held != null)
+            changes.putAll(held);
+        changes.putAll(later);
+        changes.putAll(now);
+        boolean ok = false;
+        try {
+            backing.saveFields(type, id, changes);
+            ok = true;
+        } finally {
+            if (ok)
+                cache.written(id, changes);
+            else
+                cache.invalidate(id);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    @Override
+    public void deleteField(Type type, String id, String key)
+        throws NotFoundException
+    {
+        if (type != Type.JOB) {
+            backing.deleteField(type, id, key);
+            return;
+        }
+        cache.dropPending(id, key);
+        try {
+            backing.deleteField(type, id, key);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public String getField(Type type, String id, String key) {
+        if (type != Type.JOB)
+            return backing.getField(type, id, key);
+        return getFields(type, id).get(key);
+    }
+
+    @Override
+    public Map<String, String> getFields(Type type, String id) {
+        if (type != Type.JOB)
+            return backing.getFields(type, id);
+        Map<String, String> res = cache.get(id);
+        if (res != null)
+            return res;
+        long stamp = cache.startRead(id);
+        return cache.fill(id, backing.getFields(type, id), stamp);
+    }
+
+    @Override
+    public List<String> getKeys(Type type, String id) {
+        if (type != Type.JOB)
+            return backing.getKeys(type, id);
+        return new ArrayList<String>(getFields(type, id).keySet());
+    }
+
+    @Override
+    public boolean delete(Type type, String id) throws NotFoundException {
+        if (type != Type.JOB)
+            return backing.delete(type, id);
+        cache.dropPending(id);
+        try {
+            return backing.delete(type, id);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public List<String> getAll() {
+        return backing.getAll();
+    }
+
+    @Override
+    public List<String> getAllForType(Type type) {
+        return backing.getAllForType(type);
+    }
+
+    @Override
+    public List<String> getAllForKey(String key, String value) {
+        return backing.getAllForKey(key, value);
+    }
+
+    @Override
+    public List<String> getAllForTypeAndKey(Type type, String key, String value) {
+        return backing.getAllForTypeAndKey(type, key, value);
+    }
+
+    @Override
+    public Future<Map<String, String>> getFieldsAsync(Type type, String id) {
+        if (type != Type.JOB)
+            return JobState.getFieldsAsync(backing, type, id);
+        Map<String, String> res = cache.get(id);
+        if (res != null)
+            return StorageFuture.of(res);
+        long stamp = cache.startRead(id);
+        return new FillingFuture(id, JobState.getFieldsAsync(backing, type, id), stamp);
+    }
+
+    @Override
+    public Future<Void> saveFieldsAsync(Type type, String id,
+                                        Map<String, String> fields)
+    {
+        if (type != Type.JOB && backing instanceof AsyncTempletonStorage)
+            return ((AsyncTempletonStorage) backing).saveFieldsAsync(type, id, fields);
+
+        // A write-behind change costs nothing, and the others have to
+        // be ordered with the held changes.
+        StorageFuture<Void> res = new StorageFuture<Void>();
+        try {
+            saveFields(type, id, fields);
+            res.set(null);
+        } catch (NotFoundException e) {
+            res.fail(e);
+        }
+        return res;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> multiGet(Type type, List<String> ids)
+        throws IOException
+    {
+        if (type != Type.JOB && backing instanceof AsyncTempletonStorage)
+            return ((AsyncTempletonStorage) backing).multiGet(type, ids);
+
+        Map<String, Map<String, String>> res
+            = new LinkedHashMap<String, Map<String, String>>();
+        List<String> misses = new ArrayList<String>();
+        for (String id : ids) {
+            Map<String, String> fields = (type == Type.JOB) ? cache.get(id) : null;
+            res.put(id, fields);
+            if (fields == null)
+                misses.add(id);
+        }
+        if (misses.isEmpty())
+            return res;
+
+        // The first stamp is the oldest, so a change to any of the
+        // jobs during the read keeps them all out of the cache.
+        long stamp = -1;
+        if (type == Type.JOB)
+            for (String id : misses) {
+                long s = cache.startRead(id);
+                if (stamp < 0)
+                    stamp = s;
+            }
+        Map<String, Map<String, String>> found;
+        if (backing instanceof AsyncTempletonStorage)
+            found = ((AsyncTempletonStorage) backing).multiGet(type, misses);
+        else {
+            found = new HashMap<String, Map<String, String>>();
+            for (String id : misses)
+                found.put(id, backing.getFields(type, id));
+        }
+        for (String id : misses) {
+            Map<String, String> fields = found.get(id);
+            if (fields == null)
+                fields = new HashMap<String, String>();
+            res.put(id, (type == Type.JOB) ? cache.fill(id, fields, stamp) : fields);
+        }
+        return res;
+    }
+
+    // A read from the storage that fills the cache once it's done.
+    private class FillingFuture implements Future<Map<String, String>> {
+        private final String id;
+        private final Future<Map<String, String>> read;
+        private final long stamp;
+        private Map<String, String> value = null;
+
+        FillingFuture(String id, Future<Map<String, String>> read, long stamp) {
+            this.id = id;
+            this.read = read;
+            this.stamp = stamp;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return read.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return read.isCancelled();
+        }
+
+        public boolean isDone() {
+            return read.isDone();
+        }
+
+        public synchronized Map<String, String> get()
+            throws InterruptedException, ExecutionException
+        {
+            if (value == null)
+                value = cache.fill(id, read.get(), stamp);
+            return value;
+        }
+
+        public synchronized Map<String, String> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (value == null)
+                value = cache.fill(id, read.get(timeout, unit), stamp);
+            return value;
+        }
+    }
+
+    @Override
+    public void openStorage(Configuration config) throws IOException {
+        if (cache == null) {
+            cache = StorageCache.getInstance(config);
+            backing = cache.getBacking();
+        }
+    }
+
+    @Override
+    public void closeStorage() throws IOException {
+        // The storage under the cache stays open for the other users
+        // in the process, but nothing is left waiting to be written.
+        cache.flush();
+    }
+}
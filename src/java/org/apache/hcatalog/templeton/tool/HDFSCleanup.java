@@ -57,6 +57,9 @@ public class HDFSCleanup extends Thread {
 
     // Whether the cycle is running
     private static boolean isRunning = false;
+
+    // Whether the jobs from before the indexes have been indexed
+    private boolean backfilled = false;
     
     // The storage root
     private String storage_root;
@@ -104,6 +107,15 @@ public class HDFSCleanup extends Thread {
                     LOG.error("Cleanup cycle failed: " + e.getMessage());
                 }
 
+                try {
+                    if (! backfilled) {
+                        JobState.backfillIndexes(appConf);
+                        backfilled = true;
+                    }
+                } catch (Exception e) {
+                    LOG.error("Index backfill failed: " + e.getMessage());
+                }
+
                 long sleepMillis = (long) (Math.random() * interval);
                 LOG.info("Next execution: " + new Date(new Date().getTime()
                                                        + sleepMillis));
@@ -120,7 +132,8 @@ public class HDFSCleanup extends Thread {
     
     /**
      * Loop through all the files, deleting any that are older than
-     * maxage.
+     * maxage.  The entries of the indexes are checked one by one, as
+     * are the temporary files of the storage.
      * 
      * @param fs
      * @throws IOException
@@ -131,15 +144,31 @@ public class HDFSCleanup extends Thread {
             try {
                 for (FileStatus status : fs.listStatus(new Path(
                         HDFSStorage.getPath(type, storage_root)))) {
-                    if (now - status.getModificationTime() > maxage) {
-                        LOG.info("Deleting " + status.getPath().toString());
-                        fs.delete(status.getPath(), true);
-                    }
+                    if (JobIndexes.isIndexType(type) && status.isDir())
+                        deleteOld(fs, fs.listStatus(status.getPath()), now);
+                    else
+                        deleteOld(fs, new FileStatus[] {status}, now);
                 }
             } catch (Exception e) {
                 // Nothing to find for this type.
             }
         }
+
+        // Files left behind by writers that died.
+        FileStatus[] work = fs.listStatus(new Path(storage_root + HDFSStorage.WORK_PATH));
+        if (work != null)
+            deleteOld(fs, work, now);
+    }
+
+    private void deleteOld(FileSystem fs, FileStatus[] files, long now)
+        throws IOException
+    {
+        for (FileStatus status : files) {
+            if (now - status.getModificationTime() > maxage) {
+                LOG.info("Deleting " + status.getPath().toString());
+                fs.delete(status.getPath(), true);
+            }
+        }
     }
 
     // Handle to stop this process from the outside if needed.
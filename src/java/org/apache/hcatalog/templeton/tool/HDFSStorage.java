@@ -17,38 +17,60 @@
  */
 package org.apache.hcatalog.templeton.tool;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 
 /**
  *  HDFS implementation of templeton storage.
  *
- *  This implementation assumes that all keys in key/value pairs are
- *  chosen such that they don't have any newlines in them.
+ *  The fields of each job are kept together in one small file, see
+ *  JobRecord, so reading a job is one open and a job is one
+ *  NameNode object.  A write replaces the file under a lock file in
+ *  the work directory.  Jobs in the old layout, a directory with a
+ *  file per field, are still read, and become a record file when
+ *  they are next written.  The indexes keep a file per entry.
  *
+ *  The async calls run the blocking ones on the StorageExecutor
+ *  threads.
  */
-public class HDFSStorage implements TempletonStorage {
+public class HDFSStorage implements AsyncTempletonStorage {
     FileSystem fs = null;
+    private ExecutorService executor = null;
 
     public String storage_root = null;
 
     public static final String JOB_PATH = "/jobs";
     public static final String JOB_TRACKINGPATH = "/created";
     public static final String OVERHEAD_PATH = "/overhead";
+    public static final String USER_INDEX_PATH = "/users";
+    public static final String KEY_INDEX_PATH = "/indexes";
+    public static final String WORK_PATH = "/work";
+
+    // How long to wait for the lock of a record, and when a lock is
+    // stale.
+    public static final int LOCK_TRIES = 200;
+    public static final long LOCK_WAIT = 50;
+    public static final long LOCK_TIMEOUT = 30 * 1000;
 
     private static final Log LOG = LogFactory.getLog(HDFSStorage.class);
 
@@ -60,12 +82,30 @@ public class HDFSStorage implements TempletonStorage {
         }
     }
 
+    /**
+     * Is this type kept as one record file per id?  The indexes keep
+     * a file per entry, so the cleanup can age them one by one.
+     */
+    public static boolean isRecordType(Type type) {
+        return ! JobIndexes.isIndexType(type);
+    }
+
     @Override
     public void saveField(Type type, String id, String key, String val)
         throws NotFoundException {
         if (val == null) {
             return;
         }
+        if (isRecordType(type)) {
+            Map<String, String> changes = new HashMap<String, String>();
+            changes.put(key, val);
+            saveFields(type, id, changes);
+        } else {
+            writeField(type, id, key, val);
+        }
+    }
+
+    private void writeField(Type type, String id, String key, String val) {
         PrintWriter out = null;
         try {
             Path keyfile = new Path(getPath(type) + "/" + id + "/" + key);
@@ -86,74 +126,319 @@ public class HDFSStorage implements TempletonStorage {
         }
     }
 
+    /**
+     * Save many fields.  A record is rewritten as a whole under a
+     * lock, so the change is atomic for writers; a reader that comes
+     * while the new file replaces the old one sees the old one.  When a
+     * job field that an index is built from changes, the job is moved
+     * between the indexes, see JobIndexes.
+     */
     @Override
-    public String getField(Type type, String id, String key) {
-        BufferedReader in = null;
+    public void saveFields(Type type, String id, Map<String, String> fields)
+        throws NotFoundException
+    {
+        if (! isRecordType(type)) {
+            for (Map.Entry<String, String> e : fields.entrySet()) {
+                if (e.getValue() == null)
+                    deleteField(type, id, e.getKey());
+                else
+                    writeField(type, id, e.getKey(), e.getValue());
+            }
+            return;
+        }
+
+        Map<String, String> before;
+        Map<String, String> after;
         try {
-            in = new BufferedReader(new InputStreamReader
-                                    (fs.open(new Path(getPath(type) + "/" +
-                                                      id + "/" + key))));
-            String line = null;
-            String val = "";
-            while ((line = in.readLine()) != null) {
-                if (! val.equals("")) {
-                    val += "\n";
-                }
-                val += line;
+            Path lock = lock(type, id);
+            try {
+                before = readRecord(type, id);
+                after = new HashMap<String, String>(before);
+                after.putAll(fields);
+                if (! after.containsKey("created"))
+                    after.put("created", Long.toString(System.currentTimeMillis()));
+                writeRecord(type, id, after);
+            } finally {
+                unlock(lock);
             }
-            return val;
         } catch (IOException e) {
-            LOG.trace("Couldn't find " + getPath(type) + "/" + id + "/" + key
-                      + ": " + e.getMessage());
+            throw new NotFoundException("Couldn't write to " + getPath(type) + "/"
+                                        + id + ": " + e.getMessage());
+        }
+
+        if (type == Type.JOB && JobIndexes.touches(fields.keySet()))
+            JobIndexes.update(this, id, before, after);
+    }
+
+    // Replace the record file, or the directory of a job in the old
+    // layout, with a new record.  The old one is moved aside rather
+    // than deleted, and only deleted once the new one is in place, so
+    // a reader meanwhile reads the old one and a writer that dies
+    // leaves it for the next read and write, see readRecord.
+    private void writeRecord(Type type, String id, Map<String, String> fields)
+        throws IOException
+    {
+        Path path = recordPath(type, id);
+        Path aside = asidePath(type, id);
+        Path tmp = new Path(getWorkPath(), type + "-" + id + "."
+                            + System.nanoTime() + ".tmp");
+        FSDataOutputStream out = fs.create(tmp, true);
+        try {
+            out.write(JobRecord.encode(fields));
         } finally {
+            out.close();
+        }
+
+        if (fs.exists(path)) {
+            // Left by a writer that died once its record was in place.
+            fs.delete(aside, true);
+            if (! fs.rename(path, aside)) {
+                fs.delete(tmp, false);
+                throw new IOException("Couldn't move " + path + " aside");
+            }
+        }
+        if (! fs.rename(tmp, path)) {
+            fs.mkdirs(path.getParent());
+            if (! fs.rename(tmp, path)) {
+                fs.delete(tmp, false);
+                fs.rename(aside, path);
+                throw new IOException("Couldn't rename " + tmp + " to " + path);
+            }
+        }
+        fs.delete(aside, true);
+    }
+
+    // Read the fields of a record in one open.  While a writer
+    // replaces the record, or if it died doing so, the old one is
+    // read from where it was moved aside.
+    private Map<String, String> readRecord(Type type, String id)
+        throws IOException
+    {
+        Path path = recordPath(type, id);
+        Map<String, String> rec = readRecordAt(path);
+        if (rec == null) {
+            rec = readRecordAt(asidePath(type, id));
+            if (rec == null)
+                rec = readRecordAt(path); // The writer finished meanwhile
+        }
+        if (rec == null)
+            return new HashMap<String, String>();
+        return rec;
+    }
+
+    // The fields at a path, a record file or a directory with a file
+    // per field in the old layout, or null if there is nothing there.
+    private Map<String, String> readRecordAt(Path path)
+        throws IOException
+    {
+        Map<String, String> rec = null;
+        FSDataInputStream in = null;
+        try {
+            in = fs.open(path);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IOUtils.copyBytes(in, bytes, 4096, false);
+            rec = JobRecord.decode(bytes.toByteArray());
+        } catch (IOException e) {
+            // Missing, or in the old layout
+        } finally {
+            IOUtils.closeStream(in);
+        }
+        if (rec != null)
+            return new HashMap<String, String>(rec);
+        FileStatus[] files = fs.listStatus(path);
+        if (files == null || files.length == 0)
+            return null;
+        return readFieldFiles(files);
+    }
+
+    private Path recordPath(Type type, String id) {
+        return new Path(getPath(type) + "/" + id);
+    }
+
+    // Where a record is moved while it is replaced.
+    private Path asidePath(Type type, String id) {
+        return new Path(getWorkPath(), type + "-" + id + ".old");
+    }
+
+    // Take the write lock of an id.  The lock is a file that only one
+    // writer can create; one older than LOCK_TIMEOUT was left by a
+    // writer that died and is taken over, see breakLock.
+    private Path lock(Type type, String id)
+        throws IOException
+    {
+        Path lock = new Path(getWorkPath(), type + "-" + id + ".lock");
+        for (int i = 0; i < LOCK_TRIES; ++i) {
             try {
-                in.close();
-            } catch (Exception e) {
-                // fail
+                fs.create(lock, false).close();
+                return lock;
+            } catch (IOException e) {
+                // Held by someone else
+            }
+            try {
+                long mtime = fs.getFileStatus(lock).getModificationTime();
+                if (System.currentTimeMillis() - mtime > LOCK_TIMEOUT) {
+                    breakLock(lock, mtime);
+                    continue;
+                }
+            } catch (FileNotFoundException e) {
+                continue;
+            }
+            try {
+                Thread.sleep(LOCK_WAIT);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for " + lock, e);
+            }
+        }
+        throw new IOException("Couldn't lock " + lock);
+    }
+
+    // Delete a stale lock with this modification time.  Of the
+    // writers waiting for it, only the one that creates the file named
+    // for the lock and its time gets to, and it checks the lock is
+    // still the same one first: deleting it blindly could delete the
+    // new lock of a writer that took it over in the meantime.
+    private void breakLock(Path lock, long mtime)
+        throws IOException
+    {
+        Path breaker = new Path(lock + "." + mtime + ".break");
+        try {
+            fs.create(breaker, false).close();
+        } catch (IOException e) {
+            return; // Another writer is taking it over
+        }
+        try {
+            if (fs.getFileStatus(lock).getModificationTime() == mtime) {
+                LOG.info("Taking over the stale lock " + lock);
+                fs.delete(lock, false);
             }
+        } catch (FileNotFoundException e) {
+            // Already gone
+        } finally {
+            fs.delete(breaker, false);
+        }
+    }
+
+    private void unlock(Path lock) {
+        try {
+            fs.delete(lock, false);
+        } catch (IOException e) {
+            LOG.info("Couldn't unlock " + lock + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void deleteField(Type type, String id, String key)
+        throws NotFoundException
+    {
+        if (isRecordType(type)) {
+            Map<String, String> changes = new HashMap<String, String>();
+            changes.put(key, null);
+            saveFields(type, id, changes);
+            return;
+        }
+        try {
+            fs.delete(new Path(getPath(type) + "/" + id + "/" + key), false);
+        } catch (IOException e) {
+            throw new NotFoundException("Couldn't delete " + getPath(type) + "/"
+                                        + id + "/" + key + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getField(Type type, String id, String key) {
+        if (isRecordType(type))
+            return getFields(type, id).get(key);
+        try {
+            return readFile(new Path(getPath(type) + "/" + id + "/" + key));
+        } catch (IOException e) {
+            LOG.trace("Couldn't find " + getPath(type) + "/" + id + "/" + key
+                      + ": " + e.getMessage());
         }
         return null;
     }
 
     @Override
     public Map<String, String> getFields(Type type, String id) {
-        HashMap<String, String> map = new HashMap<String, String>();
-        BufferedReader in = null;
         try {
-            for (FileStatus status : fs.listStatus
-                     (new Path(getPath(type) + "/" + id))) {
-                in = new BufferedReader(new InputStreamReader
-                                        (fs.open(status.getPath())));
-                String line = null;
-                String val = "";
-                while ((line = in.readLine()) != null) {
-                    if (!val.equals("")) {
-                        val += "\n";
-                    }
-                    val += line;
-                }
-                map.put(status.getPath().getName(), val);
+            if (isRecordType(type))
+                return readRecord(type, id);
+            return readFieldFiles(type, id);
+        } catch (IOException e) {
+            LOG.trace("Couldn't find " + getPath(type) + "/" + id);
+        }
+        return new HashMap<String, String>();
+    }
+
+    @Override
+    public List<String> getKeys(Type type, String id) {
+        ArrayList<String> keys = new ArrayList<String>();
+        try {
+            if (isRecordType(type)) {
+                keys.addAll(readRecord(type, id).keySet());
+            } else {
+                FileStatus[] files = fs.listStatus(new Path(getPath(type) + "/" + id));
+                if (files != null)
+                    for (FileStatus status : files)
+                        keys.add(status.getPath().getName());
             }
         } catch (IOException e) {
             LOG.trace("Couldn't find " + getPath(type) + "/" + id);
-        } finally {
+        }
+        return keys;
+    }
+
+    // Read a directory with a file per field.
+    private Map<String, String> readFieldFiles(Type type, String id)
+        throws IOException
+    {
+        FileStatus[] files = fs.listStatus(new Path(getPath(type) + "/" + id));
+        if (files == null)
+            return new HashMap<String, String>();
+        return readFieldFiles(files);
+    }
+
+    private Map<String, String> readFieldFiles(FileStatus[] files)
+        throws IOException
+    {
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (FileStatus status : files) {
             try {
-                in.close();
-            } catch (Exception e) {
-                // fail
+                map.put(status.getPath().getName(), readFile(status.getPath()));
+            } catch (IOException e) {
+                // Deleted while reading
             }
         }
         return map;
     }
 
+    private String readFile(Path path)
+        throws IOException
+    {
+        FSDataInputStream in = fs.open(path);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IOUtils.copyBytes(in, bytes, 4096, false);
+            return bytes.toString();
+        } finally {
+            IOUtils.closeStream(in);
+        }
+    }
+
     @Override
     public boolean delete(Type type, String id) throws NotFoundException {
+        Map<String, String> before = null;
+        if (type == Type.JOB)
+            before = getFields(type, id);
         try {
             fs.delete(new Path(getPath(type) + "/" + id), true);
+            if (isRecordType(type))
+                fs.delete(asidePath(type, id), true);
         } catch (IOException e) {
             throw new NotFoundException("Node " + id + " was not found: " +
                                         e.getMessage());
         }
+        if (before != null)
+            JobIndexes.update(this, id, before, null);
         return false;
     }
 
@@ -173,7 +458,6 @@ public class HDFSStorage implements TempletonStorage {
             for (FileStatus status : fs.listStatus(new Path(getPath(type)))) {
                 allNodes.add(status.getPath().getName());
             }
-            return null;
         } catch (Exception e) {
             LOG.trace("Couldn't find children for type " + type.toString());
         }
@@ -194,17 +478,22 @@ public class HDFSStorage implements TempletonStorage {
         return allNodes;
     }
 
+    /**
+     * Find the ids with a field value.  An indexed job field is read
+     * from its index, anything else reads that field of every id.
+     */
     @Override
     public List<String> getAllForTypeAndKey(Type type, String key, String value) {
+        if (type == Type.JOB && JobIndexes.isIndexed(key))
+            return JobIndexes.lookup(this, key, value);
+
         ArrayList<String> allNodes = new ArrayList<String>();
-        HashMap<String, String> map = new HashMap<String, String>();
         try {
             for (FileStatus status :
                      fs.listStatus(new Path(getPath(type)))) {
-                map = (HashMap<String, String>)
-                    getFields(type, status.getPath().getName());
-                if (map.get(key).equals(value)) {
-                    allNodes.add(status.getPath().getName());
+                String id = status.getPath().getName();
+                if (value.equals(getField(type, id, key))) {
+                    allNodes.add(id);
                 }
             }
         } catch (Exception e) {
@@ -214,12 +503,48 @@ public class HDFSStorage implements TempletonStorage {
         return allNodes;
     }
 
+    @Override
+    public Future<Map<String, String>> getFieldsAsync(final Type type,
+                                                      final String id)
+    {
+        return executor.submit(new Callable<Map<String, String>>() {
+                public Map<String, String> call() {
+                    return getFields(type, id);
+                }
+            });
+    }
+
+    @Override
+    public Future<Void> saveFieldsAsync(final Type type, final String id,
+                                        Map<String, String> fields)
+    {
+        final Map<String, String> changes = new HashMap<String, String>(fields);
+        return executor.submit(new Callable<Void>() {
+                public Void call() throws NotFoundException {
+                    saveFields(type, id, changes);
+                    return null;
+                }
+            });
+    }
+
+    @Override
+    public Map<String, Map<String, String>> multiGet(Type type, List<String> ids)
+        throws IOException
+    {
+        List<Future<Map<String, String>>> reads
+            = new ArrayList<Future<Map<String, String>>>();
+        for (String id : ids)
+            reads.add(getFieldsAsync(type, id));
+        return StorageFuture.getAll(ids, reads);
+    }
+
     @Override
     public void openStorage(Configuration config) throws IOException {
         storage_root = config.get(TempletonStorage.STORAGE_ROOT);
         if (fs == null) {
             fs = FileSystem.get(config);
         }
+        executor = StorageExecutor.getInstance(config);
     }
 
     @Override
@@ -227,6 +552,13 @@ public class HDFSStorage implements TempletonStorage {
         // Nothing to do here
     }
 
+    /**
+     * The directory of the temporary and lock files.
+     */
+    public String getWorkPath() {
+        return storage_root + WORK_PATH;
+    }
+
     /**
      * Get the path to storage based on the type.
      * @param type
@@ -250,6 +582,12 @@ public class HDFSStorage implements TempletonStorage {
         case JOBTRACKING:
             typepath = root + JOB_TRACKINGPATH;
             break;
+        case USERINDEX:
+            typepath = root + USER_INDEX_PATH;
+            break;
+        case KEYINDEX:
+            typepath = root + KEY_INDEX_PATH;
+            break;
         }
         return typepath;
     }
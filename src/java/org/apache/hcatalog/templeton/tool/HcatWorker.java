@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hive.cli.CliSessionState;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.Driver;
+import org.apache.hadoop.hive.ql.processors.DfsProcessor;
+import org.apache.hadoop.hive.ql.processors.SetProcessor;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hcatalog.templeton.MaxByteArrayOutputStream;
+
+/**
+ * A long running hcat process.  Reads hcat command lines from stdin,
+ * runs each one in a fresh Hive session and writes the exit code and
+ * output back to stdout.  The JVM, the Hive classes and the metastore
+ * connection stay warm between commands.
+ *
+ * The statements are run the way the hcat cli runs them: with
+ * HCatSemanticAnalyzer as the semantic analyzer hook, so the hcat
+ * authorization set up in hive-site.xml applies, and with only "set",
+ * "dfs" and Hive statements understood.  The worker won't start if
+ * the HCatalog classes can't be loaded.
+ *
+ * Only the "-e", "-f" and "-D" hcat arguments are understood.  A
+ * request is an int count of arguments followed by the arguments; a
+ * response is the int exit code, a boolean that is true if the stdout
+ * was cut short at max-output-bytes, the stdout and the stderr.  Strings
+ * are an int byte count followed by UTF-8 bytes.  The worker writes
+ * READY once it has started, and exits when stdin is closed.
+ *
+ * Started by HcatWorkerPool with: hadoop jar templeton.jar
+ * org.apache.hcatalog.templeton.tool.HcatWorker max-output-bytes
+ */
+public class HcatWorker {
+    public static final int READY = 0x68636174; // "hcat"
+
+    public static final String HCAT_SEMANTIC_ANALYZER
+        = "org.apache.hcatalog.cli.SemanticAnalysis.HCatSemanticAnalyzer";
+
+    private int maxBytes;
+
+    public HcatWorker(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        int maxBytes = (args.length > 0) ? Integer.parseInt(args[0]) : -1;
+        try {
+            Class.forName(HCAT_SEMANTIC_ANALYZER);
+        } catch (ClassNotFoundException e) {
+            System.err.println("hcat worker: " + HCAT_SEMANTIC_ANALYZER
+                               + " not found, is HCatalog on the classpath?");
+            System.exit(1);
+        }
+
+        // Keep stdout for the responses and send any stray output,
+        // like log messages, to stderr.
+        DataOutputStream out = new DataOutputStream(
+            new FileOutputStream(FileDescriptor.out));
+        DataInputStream in = new DataInputStream(System.in);
+        System.setOut(System.err);
+
+        new HcatWorker(maxBytes).serve(in, out);
+        System.exit(0);
+    }
+
+    /**
+     * Answer requests until the input is closed.
+     */
+    public void serve(DataInputStream in, DataOutputStream out)
+        throws IOException
+    {
+        out.writeInt(READY);
+        out.flush();
+
+        while (true) {
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            List<String> args = new ArrayList<String>();
+            for (int i = 0; i < n; ++i)
+                args.add(readString(in));
+
+            ByteArrayOutputStream stdout = makeBuffer();
+            ByteArrayOutputStream stderr = makeBuffer();
+            int exitcode = runOne(args, stdout, stderr);
+
+            out.writeInt(exitcode);
+            out.writeBoolean(isTruncated(stdout));
+            writeString(out, stdout.toString("UTF-8"));
+            writeString(out, stderr.toString("UTF-8"));
+            out.flush();
+        }
+    }
+
+    private ByteArrayOutputStream makeBuffer() {
+        if (maxBytes < 0)
+            return new ByteArrayOutputStream();
+        return new MaxByteArrayOutputStream(maxBytes);
+    }
+
+    private static boolean isTruncated(ByteArrayOutputStream buf) {
+        return (buf instanceof MaxByteArrayOutputStream)
+            && ((MaxByteArrayOutputStream) buf).isTruncated();
+    }
+
+    // Run one hcat command line, the same way HCatCli does.
+    private int runOne(List<String> args, ByteArrayOutputStream stdout,
+                       ByteArrayOutputStream stderr)
+    {
+        PrintStream saveOut = System.out;
+        PrintStream saveErr = System.err;
+        PrintStream pout = null;
+        PrintStream perr = null;
+        CliSessionState ss = null;
+        try {
+            pout = new PrintStream(stdout, true, "UTF-8");
+            perr = new PrintStream(stderr, true, "UTF-8");
+            System.setOut(pout);
+            System.setErr(perr);
+
+            HiveConf conf = new HiveConf(SessionState.class);
+            conf.set(HiveConf.ConfVars.SEMANTIC_ANALYZER_HOOK.varname,
+                     HCAT_SEMANTIC_ANALYZER);
+            String exec = null;
+            String file = null;
+            for (int i = 0; i + 1 < args.size(); i += 2) {
+                String flag = args.get(i);
+                String val = args.get(i + 1);
+                if ("-e".equals(flag)) {
+                    exec = val;
+                } else if ("-f".equals(flag)) {
+                    file = val;
+                } else if ("-D".equals(flag)) {
+                    int eq = val.indexOf('=');
+                    if (eq > 0)
+                        conf.set(val.substring(0, eq), val.substring(eq + 1));
+                } else {
+                    perr.println("hcat worker: unsupported argument " + flag);
+                    return 1;
+                }
+            }
+
+            ss = new CliSessionState(conf);
+            ss.out = pout;
+            ss.info = perr;
+            ss.err = perr;
+            ss.childOut = pout;
+            ss.childErr = perr;
+            SessionState.start(ss);
+
+            if (exec == null && file != null)
+                exec = readFile(file);
+            if (exec == null) {
+                perr.println("hcat worker: missing -e or -f");
+                return 1;
+            }
+            return processLine(exec, ss);
+        } catch (Throwable e) {
+            if (perr != null)
+                e.printStackTrace(perr);
+            return 1;
+        } finally {
+            if (ss != null)
+                ss.close();
+            System.setOut(saveOut);
+            System.setErr(saveErr);
+        }
+    }
+
+    // Run the statements in order and stop at the first one that
+    // fails.  HCatCli splits the line on every ";" too.
+    private static int processLine(String line, SessionState ss)
+        throws Exception
+    {
+        for (String cmd : line.split(";")) {
+            cmd = cmd.trim();
+            if (cmd.length() == 0)
+                continue;
+            int ret = processCmd(cmd, ss);
+            if (ret != 0)
+                return ret;
+        }
+        return 0;
+    }
+
+    private static int processCmd(String cmd, SessionState ss)
+        throws Exception
+    {
+        String first = cmd.split("\\s+")[0];
+        String rest = cmd.substring(first.length()).trim();
+        if (first.equalsIgnoreCase("set"))
+            return new SetProcessor().run(rest).getResponseCode();
+        if (first.equalsIgnoreCase("dfs"))
+            return new DfsProcessor(ss.getConf()).run(rest).getResponseCode();
+
+        Driver driver = new Driver();
+        try {
+            int ret = driver.run(cmd).getResponseCode();
+            if (ret != 0)
+                return ret;
+            ArrayList<String> res = new ArrayList<String>();
+            while (driver.getResults(res)) {
+                for (String r : res)
+                    ss.out.println(r);
+                res.clear();
+            }
+            return 0;
+        } finally {
+            driver.close();
+        }
+    }
+
+    private static String readFile(String file)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                sb.append(line).append("\n");
+        } finally {
+            in.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write a string as a byte count and UTF-8 bytes.
+     */
+    public static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Read a string written by writeString.
+     */
+    public static String readString(DataInputStream in)
+        throws IOException
+    {
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("Bad string length " + n);
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+}
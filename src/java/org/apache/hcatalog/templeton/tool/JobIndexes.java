@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+
+/**
+ * The secondary indexes of the jobs, kept up to date by the storage
+ * as the fields of a job are written, so finding the jobs with a
+ * field value only looks at the jobs that match.  The indexes are
+ *
+ * - user: the USERINDEX, where the id is the user and the keys are
+ *   the job ids.
+ * - completed: the KEYINDEX id "completed=<value>".
+ * - callbackPending: the KEYINDEX id "callbackPending=true", the jobs
+ *   that are complete and have a callback that hasn't been sent.
+ *
+ * Each index entry is a field whose key is the job id and whose
+ * value is when it was added.
+ */
+public class JobIndexes {
+    private static final Log LOG = LogFactory.getLog(JobIndexes.class);
+
+    public static final String USER = "user";
+    public static final String COMPLETED = "completed";
+    public static final String CALLBACK_PENDING = "callbackPending";
+
+    /**
+     * The job fields the indexes are built from.
+     */
+    public static final List<String> SOURCES
+        = Arrays.asList(USER, COMPLETED, "callback", "notified");
+
+    // How many times to set the entries of a job that keeps changing.
+    private static final int MAX_RECONCILE_TRIES = 5;
+
+    private JobIndexes() {}
+
+    // One entry: the id of an index in its type.
+    private static class Entry {
+        final Type type;
+        final String id;
+
+        Entry(Type type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Entry))
+                return false;
+            Entry e = (Entry) o;
+            return type == e.type && id.equals(e.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + id.hashCode();
+        }
+    }
+
+    /**
+     * Is this the type of an index, which keeps one field per job?
+     */
+    public static boolean isIndexType(Type type) {
+        return type == Type.USERINDEX || type == Type.KEYINDEX;
+    }
+
+    /**
+     * Can the jobs with a value of this key be found in an index?
+     */
+    public static boolean isIndexed(String key) {
+        return USER.equals(key) || COMPLETED.equals(key)
+            || CALLBACK_PENDING.equals(key);
+    }
+
+    /**
+     * Does a change to these keys change the indexes?
+     */
+    public static boolean touches(Collection<String> keys) {
+        for (String key : keys)
+            if (SOURCES.contains(key))
+                return true;
+        return false;
+    }
+
+    /**
+     * The id of an index in the KEYINDEX type.
+     */
+    public static String keyIndexId(String key, String value) {
+        try {
+            return key + "=" + URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // The index entries of a job with these fields.
+    private static Set<Entry> entries(Map<String, String> fields) {
+        Set<Entry> res = new HashSet<Entry>();
+        if (fields == null)
+            return res;
+        String user = fields.get(USER);
+        String completed = fields.get(COMPLETED);
+        if (user != null)
+            res.add(new Entry(Type.USERINDEX, user));
+        if (completed != null) {
+            res.add(new Entry(Type.KEYINDEX, keyIndexId(COMPLETED, completed)));
+            if (fields.get("callback") != null && fields.get("notified") == null)
+                res.add(new Entry(Type.KEYINDEX, keyIndexId(CALLBACK_PENDING, "true")));
+        }
+        return res;
+    }
+
+    /**
+     * Move a job between the indexes after its fields changed from
+     * before to after.  Either may be null.  The index update isn't
+     * part of the record write, so another writer may have changed
+     * the record in between: the entries are set from the record as
+     * it is now instead, and set again until a read shows it didn't
+     * change while they were written.  Running this again gives the
+     * same entries, so the last writer to finish leaves the indexes
+     * right.  A failed index write is logged and left for the
+     * cleanup.
+     */
+    public static void update(TempletonStorage storage, String jobid,
+                              Map<String, String> before, Map<String, String> after)
+    {
+        Set<Entry> touched = entries(before);
+        Set<Entry> is = entries(after);
+        if (touched.equals(is))
+            return;
+        touched.addAll(is);
+
+        Map<String, String> committed = storage.getFields(Type.JOB, jobid);
+        for (int i = 0; i < MAX_RECONCILE_TRIES; ++i) {
+            Set<Entry> want = entries(committed);
+            touched.addAll(want);
+            String now = Long.toString(System.currentTimeMillis());
+            for (Entry e : touched) {
+                try {
+                    if (want.contains(e))
+                        storage.saveField(e.type, e.id, jobid, now);
+                    else
+                        storage.deleteField(e.type, e.id, jobid);
+                } catch (NotFoundException ex) {
+                    LOG.warn("Couldn't update index " + e.id + " for " + jobid);
+                }
+            }
+
+            Map<String, String> again = storage.getFields(Type.JOB, jobid);
+            if (again.equals(committed))
+                return;
+            committed = again;
+        }
+        LOG.warn("Job " + jobid + " kept changing, its indexes are left for the cleanup");
+    }
+
+    /**
+     * Add the index entries that are missing for the jobs already
+     * in storage, say jobs written before there were indexes.  The
+     * entries that are there are left alone.  Returns the number of
+     * entries added.
+     */
+    public static int backfill(TempletonStorage storage) {
+        int added = 0;
+        for (String jobid : storage.getAllForType(Type.JOB)) {
+            Map<String, String> fields = storage.getFields(Type.JOB, jobid);
+            String now = Long.toString(System.currentTimeMillis());
+            for (Entry e : entries(fields)) {
+                if (storage.getField(e.type, e.id, jobid) != null)
+                    continue;
+                try {
+                    storage.saveField(e.type, e.id, jobid, now);
+                    ++added;
+                } catch (NotFoundException ex) {
+                    LOG.warn("Couldn't add index " + e.id + " for " + jobid);
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * The ids of the jobs with a value of an indexed key.
+     */
+    public static List<String> lookup(TempletonStorage storage, String key,
+                                      String value)
+    {
+        if (USER.equals(key))
+            return storage.getKeys(Type.USERINDEX, value);
+        return storage.getKeys(Type.KEYINDEX, keyIndexId(key, value));
+    }
+}
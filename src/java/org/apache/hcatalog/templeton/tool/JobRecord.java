@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * All the fields of a job (or other storage id) serialized into one
+ * small byte array, so they can be kept in a single znode or file.
+ *
+ * The format is a magic byte, a version byte, the number of fields,
+ * then each field as a modified UTF-8 name and a length prefixed
+ * UTF-8 value.  Fields are written in name order.
+ */
+public class JobRecord {
+    public static final byte MAGIC = (byte) 'T';
+    public static final byte VERSION = 1;
+
+    private JobRecord() {}
+
+    /**
+     * Serialize the fields.  Null values are left out.
+     */
+    public static byte[] encode(Map<String, String> fields)
+        throws IOException
+    {
+        TreeMap<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> e : fields.entrySet())
+            if (e.getValue() != null)
+                sorted.put(e.getKey(), e.getValue());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, String> e : sorted.entrySet()) {
+            out.writeUTF(e.getKey());
+            byte[] b = e.getValue().getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Is this data a serialized record?  Empty data is not.
+     */
+    public static boolean isRecord(byte[] data) {
+        return data != null && data.length >= 6
+            && data[0] == MAGIC && data[1] == VERSION;
+    }
+
+    /**
+     * Read the fields back.  Returns null if the data is not a
+     * record, and throws IOException if it is a corrupt one.
+     */
+    public static Map<String, String> decode(byte[] data)
+        throws IOException
+    {
+        if (! isRecord(data))
+            return null;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.readByte();
+        in.readByte();
+        int n = in.readInt();
+        if (n < 0 || n > data.length)
+            throw new IOException("Bad record field count " + n);
+        TreeMap<String, String> fields = new TreeMap<String, String>();
+        for (int i = 0; i < n; ++i) {
+            String key = in.readUTF();
+            int len = in.readInt();
+            if (len < 0 || len > in.available())
+                throw new IOException("Bad record value length " + len);
+            byte[] b = new byte[len];
+            in.readFully(b);
+            fields.put(key, new String(b, "UTF-8"));
+        }
+        return fields;
+    }
+}
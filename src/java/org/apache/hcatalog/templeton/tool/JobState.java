@@ -19,7 +19,10 @@ package org.apache.hcatalog.templeton.tool;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,6 +45,10 @@ public class JobState {
 
     private Configuration config = null;
 
+    // All the fields, once prefetch() is called.
+    private Future<Map<String, String>> prefetched = null;
+    private Map<String, String> fields = null;
+
     public JobState(String id, Configuration conf)
         throws IOException
     {
@@ -50,6 +57,9 @@ public class JobState {
         storage = getStorage(conf);
     }
 
+    /**
+     * Delete this job.  The storage takes it out of the indexes.
+     */
     public void delete()
         throws IOException
     {
@@ -92,6 +102,60 @@ public class JobState {
         return storage;
     }
 
+    /**
+     * Start reading all the fields of this job at once.  From then on
+     * the fields are answered from that read, so a caller that needs
+     * several of them waits for one round trip.
+     */
+    public void prefetch() {
+        prefetched = getFieldsAsync(storage, type, id);
+    }
+
+    // The prefetched fields, or null.
+    private Map<String, String> prefetchedFields()
+        throws IOException
+    {
+        if (prefetched == null)
+            return null;
+        if (fields == null)
+            fields = new HashMap<String, String>(StorageFuture.getResult(prefetched));
+        return fields;
+    }
+
+    /**
+     * Start reading all the fields of an id, in the background when
+     * the storage can.
+     */
+    public static Future<Map<String, String>>
+        getFieldsAsync(TempletonStorage storage, TempletonStorage.Type type, String id)
+    {
+        if (storage instanceof AsyncTempletonStorage)
+            return ((AsyncTempletonStorage) storage).getFieldsAsync(type, id);
+        return StorageFuture.of(storage.getFields(type, id));
+    }
+
+    /**
+     * Read the fields of many jobs at once.  A job that wasn't found
+     * has an empty map.
+     */
+    public static Map<String, Map<String, String>>
+        getJobsFields(List<String> ids, Configuration conf)
+        throws IOException
+    {
+        TempletonStorage storage = getStorage(conf);
+        try {
+            if (storage instanceof AsyncTempletonStorage)
+                return ((AsyncTempletonStorage) storage).multiGet(type, ids);
+            Map<String, Map<String, String>> res
+                = new HashMap<String, Map<String, String>>();
+            for (String id : ids)
+                res.put(id, storage.getFields(type, id));
+            return res;
+        } finally {
+            storage.closeStorage();
+        }
+    }
+
     /**
      * For storage methods that require a connection, this is a hint
      * that it's time to close the connection.
@@ -280,6 +344,45 @@ public class JobState {
         setLongField("notified", notified);
     }
 
+    /**
+     * Set the user and callback of a new job in one write.  This adds
+     * the job to the index of the jobs of the user.
+     */
+    public void setOwner(String user, String callback)
+        throws IOException
+    {
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", user);
+        vals.put("callback", callback);
+        setFields(vals);
+    }
+
+    /**
+     * Set the percent complete and child id in one write.  Either may
+     * be null to leave it alone.
+     */
+    public void setProgress(String percent, String childid)
+        throws IOException
+    {
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("percentComplete", percent);
+        vals.put("childid", childid);
+        setFields(vals);
+    }
+
+    /**
+     * Set the exit value and complete status of a finished job in
+     * one write, so a reader never sees one without the other.
+     */
+    public void setFinished(long exitValue, String complete)
+        throws IOException
+    {
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("exitValue", String.valueOf(exitValue));
+        vals.put("completed", complete);
+        setFields(vals);
+    }
+
     //
     // Helpers
     //
@@ -290,7 +393,7 @@ public class JobState {
     public Long getLongField(String name)
         throws IOException
     {
-        String s = storage.getField(type, id, name);
+        String s = getField(name);
         if (s == null)
             return null;
         else {
@@ -309,19 +412,49 @@ public class JobState {
     public void setField(String name, String val)
         throws IOException
     {
+        Map<String, String> known = prefetchedFields();
         try {
             storage.saveField(type, id, name, val);
         } catch (NotFoundException ne) {
             throw new IOException(ne.getMessage());
         }
+        if (known != null && val != null)
+            known.put(name, val);
     }
 
     public String getField(String name)
         throws IOException
     {
+        Map<String, String> known = prefetchedFields();
+        if (known != null)
+            return known.get(name);
         return storage.getField(type, id, name);
     }
 
+    /**
+     * Store many fields together, see TempletonStorage.saveFields.
+     * As with setField, a null value leaves the field alone.
+     */
+    public void setFields(Map<String, String> vals)
+        throws IOException
+    {
+        Map<String, String> known = prefetchedFields();
+        Map<String, String> changes = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : vals.entrySet())
+            if (e.getValue() != null)
+                changes.put(e.getKey(), e.getValue());
+        if (changes.isEmpty())
+            return;
+
+        try {
+            storage.saveFields(type, id, changes);
+        } catch (NotFoundException ne) {
+            throw new IOException(ne.getMessage());
+        }
+        if (known != null)
+            known.putAll(changes);
+    }
+
     /**
      * Store a long field.
      *
@@ -332,12 +465,15 @@ public class JobState {
     public void setLongField(String name, long val)
         throws IOException
     {
+        Map<String, String> known = prefetchedFields();
         try {
             storage.saveField(type, id, name, String.valueOf(val));
         } catch (NotFoundException ne) {
             throw new IOException("Job " + id + " was not found: " +
                                   ne.getMessage());
         }
+        if (known != null)
+            known.put(name, String.valueOf(val));
     }
 
     /**
@@ -354,4 +490,43 @@ public class JobState {
             throw new IOException("Can't get jobs", e);
         }
     }
+
+    /**
+     * Get the id of each job of a user from the user index.  Only
+     * jobs registered through Templeton are listed.
+     *
+     * @param user
+     * @param conf
+     * @throws IOException
+     */
+    public static List<String> getUserJobs(String user, Configuration conf)
+        throws IOException
+    {
+        TempletonStorage storage = getStorage(conf);
+        try {
+            return storage.getAllForTypeAndKey(type, JobIndexes.USER, user);
+        } finally {
+            storage.closeStorage();
+        }
+    }
+
+    /**
+     * Index the jobs that were stored before the indexes were, so
+     * that they are listed too.  Run once by the cleanup.
+     *
+     * @param conf
+     * @throws IOException
+     */
+    public static void backfillIndexes(Configuration conf)
+        throws IOException
+    {
+        TempletonStorage storage = getStorage(conf);
+        try {
+            int added = JobIndexes.backfill(storage);
+            if (added > 0)
+                LOG.info("Added " + added + " missing job index entries");
+        } finally {
+            storage.closeStorage();
+        }
+    }
 }
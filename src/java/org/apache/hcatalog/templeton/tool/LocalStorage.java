@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A storage kept on the local disk of the Templeton server, see
+ * LocalStore.  It needs no other service, so it suits a single
+ * gateway install, where the controller jobs run on the same host,
+ * and tests.  A multi-field write is one atomic log entry and the
+ * jobs are indexed like in the other storages, see JobIndexes.
+ */
+public class LocalStorage implements AsyncTempletonStorage {
+    private static final Log LOG = LogFactory.getLog(LocalStorage.class);
+
+    public static final String LOCAL_DIR_NAME = "templeton.storage.local.dir";
+    public static final String TTL_NAME = "templeton.storage.local.ttl";
+    public static final String CLEANUP_INTERVAL_NAME
+        = "templeton.storage.local.cleanup.interval";
+
+    private static Thread cleanup;
+
+    private LocalStore store;
+
+    public LocalStorage() {
+        // No-op -- this is needed to be able to instantiate the
+        // class from the name.
+    }
+
+    /**
+     * Compact the store now and then, which drops the expired ids.
+     */
+    public void startCleanup(Configuration config) {
+        final long interval = config.getLong(CLEANUP_INTERVAL_NAME,
+                                             1000L * 60L * 60L * 12L);
+        synchronized (LocalStorage.class) {
+            if (cleanup != null || store == null)
+                return;
+            final LocalStore s = store;
+            cleanup = new Thread("templeton-local-cleanup") {
+                    public void run() {
+                        while (true) {
+                            try {
+                                Thread.sleep(interval);
+                                s.compact();
+                            } catch (InterruptedException e) {
+                                return;
+                            } catch (Exception e) {
+                                LOG.error("Cleanup cycle failed: " + e.getMessage());
+                            }
+                        }
+                    }
+                };
+            cleanup.setDaemon(true);
+            cleanup.start();
+        }
+    }
+
+    @Override
+    public void saveField(Type type, String id, String key, String val)
+        throws NotFoundException
+    {
+        if (val == null)
+            return;
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put(key, val);
+        saveFields(type, id, changes);
+    }
+
+    @Override
+    public void saveFields(Type type, String id, Map<String, String> fields)
+        throws NotFoundException
+    {
+        Map<String, String> before;
+        try {
+            before = store.update(type, id, fields);
+        } catch (IOException e) {
+            throw new NotFoundException("Writing " + fields.keySet() + " of " + id
+                                        + ", " + e.getMessage());
+        }
+        if (type == Type.JOB && JobIndexes.touches(fields.keySet())) {
+            Map<String, String> after = new HashMap<String, String>(before);
+            after.putAll(fields);
+            JobIndexes.update(this, id, before, after);
+        }
+    }
+
+    @Override
+    public void deleteField(Type type, String id, String key)
+        throws NotFoundException
+    {
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put(key, null);
+        saveFields(type, id, changes);
+    }
+
+    @Override
+    public String getField(Type type, String id, String key) {
+        return getFields(type, id).get(key);
+    }
+
+    @Override
+    public Map<String, String> getFields(Type type, String id) {
+        try {
+            return store.read(type, id);
+        } catch (IOException e) {
+            LOG.info("Couldn't read " + id + ": " + e.getMessage());
+            return new HashMap<String, String>();
+        }
+    }
+
+    @Override
+    public List<String> getKeys(Type type, String id) {
+        return new ArrayList<String>(getFields(type, id).keySet());
+    }
+
+    @Override
+    public boolean delete(Type type, String id) throws NotFoundException {
+        Map<String, String> before = getFields(type, id);
+        try {
+            if (! store.delete(type, id))
+                throw new NotFoundException("Node " + id + " was not found");
+        } catch (IOException e) {
+            throw new NotFoundException("Couldn't delete " + id + ": " + e.getMessage());
+        }
+        if (type == Type.JOB)
+            JobIndexes.update(this, id, before, null);
+        return true;
+    }
+
+    @Override
+    public List<String> getAll() {
+        ArrayList<String> allNodes = new ArrayList<String>();
+        for (Type type : Type.values())
+            allNodes.addAll(getAllForType(type));
+        return allNodes;
+    }
+
+    @Override
+    public List<String> getAllForType(Type type) {
+        try {
+            return store.ids(type);
+        } catch (IOException e) {
+            LOG.info("Couldn't find children for type " + type);
+            return new ArrayList<String>();
+        }
+    }
+
+    @Override
+    public List<String> getAllForKey(String key, String value) {
+        ArrayList<String> allNodes = new ArrayList<String>();
+        for (Type type : Type.values())
+            allNodes.addAll(getAllForTypeAndKey(type, key, value));
+        return allNodes;
+    }
+
+    @Override
+    public List<String> getAllForTypeAndKey(Type type, String key, String value) {
+        if (type == Type.JOB && JobIndexes.isIndexed(key))
+            return JobIndexes.lookup(this, key, value);
+
+        ArrayList<String> allNodes = new ArrayList<String>();
+        for (String id : getAllForType(type))
+            if (value.equals(getField(type, id, key)))
+                allNodes.add(id);
+        return allNodes;
+    }
+
+    // The calls don't leave the process, so the async ones are done
+    // before they return.
+
+    @Override
+    public Future<Map<String, String>> getFieldsAsync(Type type, String id) {
+        return StorageFuture.of(getFields(type, id));
+    }
+
+    @Override
+    public Future<Void> saveFieldsAsync(Type type, String id,
+                                        Map<String, String> fields)
+    {
+        StorageFuture<Void> res = new StorageFuture<Void>();
+        try {
+            saveFields(type, id, fields);
+            res.set(null);
+        } catch (NotFoundException e) {
+            res.fail(e);
+        }
+        return res;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> multiGet(Type type, List<String> ids) {
+        Map<String, Map<String, String>> res
+            = new LinkedHashMap<String, Map<String, String>>();
+        for (String id : ids)
+            res.put(id, getFields(type, id));
+        return res;
+    }
+
+    @Override
+    public void openStorage(Configuration config) throws IOException {
+        if (store == null) {
+            store = LocalStore.getInstance(getDir(config),
+                                           config.getLong(TTL_NAME,
+                                                          1000L * 60L * 60L * 24L * 7L));
+        }
+    }
+
+    /**
+     * The directory of the store, as an absolute path.
+     */
+    public static File getDir(Configuration config) {
+        String dir = config.get(LOCAL_DIR_NAME,
+                                System.getProperty("java.io.tmpdir")
+                                + "/templeton-storage");
+        return new File(dir).getAbsoluteFile();
+    }
+
+    @Override
+    public void closeStorage() throws IOException {
+        // The store stays open for the other users in the process.
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+
+/**
+ * The on disk store behind LocalStorage.  Every id is kept in memory
+ * and each change is appended to a log file, so a write is one append
+ * to a local disk and a read doesn't touch the disk at all.  The log
+ * is rewritten with just the live ids once it is mostly dead entries.
+ *
+ * Several processes on one host can share a store, as the server and
+ * the controller jobs of a single node install do.  A change is made
+ * under a file lock, after reading what the others appended, and a
+ * read first picks up any new entries.  A rewritten log starts with a
+ * new generation, which tells the others to read it again from the
+ * start.
+ *
+ * Ids expire once they haven't been written for the ttl.  An index
+ * entry holds the time it was added, see JobIndexes, and expires on
+ * its own.
+ */
+public class LocalStore {
+    private static final Log LOG = LogFactory.getLog(LocalStore.class);
+
+    public static final String LOG_FNAME = "store.log";
+    public static final String LOCK_FNAME = "store.lock";
+
+    private static final int MAGIC = 0x544c4f47; // TLOG
+    private static final int HEADER_BYTES = 12;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    // Rewrite the log once it has grown to twice its size after the
+    // last rewrite, plus this much.
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private static final Map<String, LocalStore> stores
+        = new HashMap<String, LocalStore>();
+
+    /**
+     * Get the store in a directory, opening it the first time.  The
+     * store stays open for the life of the process.
+     */
+    public static LocalStore getInstance(File dir, long ttl)
+        throws IOException
+    {
+        String key = dir.getCanonicalPath();
+        synchronized (stores) {
+            LocalStore s = stores.get(key);
+            if (s == null) {
+                s = new LocalStore(dir, ttl);
+                stores.put(key, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Open a store of its own, not shared with the rest of the
+     * process, the way another process would see the directory.
+     */
+    public static LocalStore open(File dir, long ttl)
+        throws IOException
+    {
+        return new LocalStore(dir, ttl);
+    }
+
+    // The fields of one id.
+    private static class Item {
+        final Map<String, String> fields = new HashMap<String, String>();
+        long written;
+    }
+
+    private final File logFile;
+    private final File dir;
+    private final long ttl;
+    private final FileChannel lockChannel;
+    private final Random random = new Random();
+
+    private final Map<Type, Map<String, Item>> data
+        = new EnumMap<Type, Map<String, Item>>(Type.class);
+    private long generation = -1;
+    private long offset = 0;
+    private long logModified = 0;
+    private long liveBytes = 0; // The log size after the last rewrite
+
+    private LocalStore(File dir, long ttl)
+        throws IOException
+    {
+        this.dir = dir;
+        this.ttl = ttl;
+        if (! dir.isDirectory() && ! dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        logFile = new File(dir, LOG_FNAME);
+        lockChannel = new RandomAccessFile(new File(dir, LOCK_FNAME), "rw").getChannel();
+
+        FileLock lock = lockChannel.lock();
+        try {
+            refresh(true);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * A copy of the fields of an id, empty if it isn't there.
+     */
+    public synchronized Map<String, String> read(Type type, String id)
+        throws IOException
+    {
+        refresh(false);
+        Item item = live(type, id, System.currentTimeMillis());
+        if (item == null)
+            return new HashMap<String, String>();
+        return new HashMap<String, String>(item.fields);
+    }
+
+    /**
+     * The live ids of a type.
+     */
+    public synchronized List<String> ids(Type type)
+        throws IOException
+    {
+        refresh(false);
+        List<String> res = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        Map<String, Item> items = data.get(type);
+        if (items != null)
+            for (String id : new ArrayList<String>(items.keySet()))
+                if (live(type, id, now) != null)
+                    res.add(id);
+        return res;
+    }
+
+    /**
+     * Change some fields of an id in one entry, and return the fields
+     * it had before.  A null value removes the field.  A new id that
+     * isn't an index gets its created time.
+     */
+    public synchronized Map<String, String> update(Type type, String id,
+                                                   Map<String, String> changes)
+        throws IOException
+    {
+        FileLock lock = lockChannel.lock();
+        try {
+            refresh(true);
+            long now = System.currentTimeMillis();
+            Item item = live(type, id, now);
+            Map<String, String> before = (item == null)
+                ? new HashMap<String, String>()
+                : new HashMap<String, String>(item.fields);
+            if (item == null && ! JobIndexes.isIndexType(type)
+                && ! changes.containsKey("created")) {
+                changes = new HashMap<String, String>(changes);
+                changes.put("created", Long.toString(now));
+            }
+            append(entry(PUT, type, id, now, changes));
+            return before;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Delete an id.  Returns false if it wasn't there.
+     */
+    public synchronized boolean delete(Type type, String id)
+        throws IOException
+    {
+        FileLock lock = lockChannel.lock();
+        try {
+            refresh(true);
+            if (live(type, id, System.currentTimeMillis()) == null)
+                return false;
+            append(entry(DELETE, type, id, System.currentTimeMillis(), null));
+            return true;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Drop the expired ids and rewrite the log.
+     */
+    public synchronized void compact()
+        throws IOException
+    {
+        FileLock lock = lockChannel.lock();
+        try {
+            refresh(true);
+            rewrite();
+        } finally {
+            lock.release();
+        }
+    }
+
+    // The item of an id, or null if it's missing or has expired.
+    // Expired index entries are dropped.
+    private Item live(Type type, String id, long now) {
+        Map<String, Item> items = data.get(type);
+        Item item = (items == null) ? null : items.get(id);
+        if (item == null)
+            return null;
+        if (ttl > 0 && now - item.written > ttl) {
+            items.remove(id);
+            return null;
+        }
+        if (ttl > 0 && JobIndexes.isIndexType(type)) {
+            Iterator<Map.Entry<String, String>> it = item.fields.entrySet().iterator();
+            while (it.hasNext()) {
+                try {
+                    if (now - Long.parseLong(it.next().getValue()) > ttl)
+                        it.remove();
+                } catch (NumberFormatException e) {
+                    // Not a time, keep it.
+                }
+            }
+        }
+        return item;
+    }
+
+    // Serialize one log entry: the length, a checksum and the body.
+    private static byte[] entry(byte op, Type type, String id, long time,
+                                Map<String, String> changes)
+        throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(op);
+        out.writeUTF(type.name());
+        out.writeUTF(id);
+        out.writeLong(time);
+        if (changes == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(changes.size());
+            for (Map.Entry<String, String> e : changes.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(e.getValue() != null);
+                if (e.getValue() != null) {
+                    byte[] b = e.getValue().getBytes("UTF-8");
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+            }
+        }
+        out.flush();
+        byte[] b = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(b);
+
+        ByteArrayOutputStream res = new ByteArrayOutputStream(b.length + 12);
+        DataOutputStream rout = new DataOutputStream(res);
+        rout.writeInt(b.length);
+        rout.writeLong(crc.getValue());
+        rout.write(b);
+        rout.flush();
+        return res.toByteArray();
+    }
+
+    // Apply an entry to the memory.
+    private void apply(byte[] body)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        Type type;
+        try {
+            type = Type.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            return; // A type we don't know
+        }
+        String id = in.readUTF();
+        long time = in.readLong();
+
+        Map<String, Item> items = data.get(type);
+        if (items == null) {
+            items = new HashMap<String, Item>();
+            data.put(type, items);
+        }
+        if (op == DELETE) {
+            items.remove(id);
+            return;
+        }
+
+        Item item = items.get(id);
+        if (item == null) {
+            item = new Item();
+            items.put(id, item);
+        }
+        item.written = time;
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i) {
+            String key = in.readUTF();
+            if (in.readBoolean()) {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                item.fields.put(key, new String(b, "UTF-8"));
+            } else {
+                item.fields.remove(key);
+            }
+        }
+    }
+
+    // Append an entry to the log and apply it.
+    private void append(byte[] entry)
+        throws IOException
+    {
+        RandomAccessFile f = new RandomAccessFile(logFile, "rw");
+        try {
+            f.seek(offset);
+            f.write(entry);
+        } finally {
+            f.close();
+        }
+        offset += entry.length;
+        logModified = logFile.lastModified();
+        apply(Arrays.copyOfRange(entry, 12, entry.length));
+
+        if (offset > 2 * liveBytes + COMPACT_MIN_BYTES)
+            rewrite();
+    }
+
+    // Read the entries other processes appended.  When holding the
+    // file lock, a torn entry at the end is left by a writer that
+    // died, and is cut off.
+    private void refresh(boolean locked)
+        throws IOException
+    {
+        if (offset > 0 && logFile.length() == offset
+            && logFile.lastModified() == logModified)
+            return;
+
+        RandomAccessFile f = new RandomAccessFile(logFile, "rw");
+        try {
+            long len = f.length();
+            long gen = -1;
+            if (len >= HEADER_BYTES && f.readInt() == MAGIC)
+                gen = f.readLong();
+            if (gen != generation || len < offset) {
+                data.clear();
+                generation = gen;
+                offset = HEADER_BYTES;
+                liveBytes = len;
+            }
+
+            f.seek(offset);
+            while (offset + 12 <= len) {
+                int n = f.readInt();
+                long sum = f.readLong();
+                if (n < 0 || offset + 12 + n > len)
+                    break;
+                byte[] body = new byte[n];
+                f.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (crc.getValue() != sum) {
+                    LOG.error("Bad entry in " + logFile + " at " + offset);
+                    break;
+                }
+                apply(body);
+                offset += 12 + n;
+            }
+            if (locked && offset < len) {
+                LOG.warn("Cutting off a torn entry in " + logFile + " at " + offset);
+                f.setLength(offset);
+            }
+        } finally {
+            f.close();
+        }
+        logModified = logFile.lastModified();
+
+        // A new or damaged log gets a header.
+        if (locked && generation == -1)
+            rewrite();
+    }
+
+    // Write the live ids to a new log with a new generation and move
+    // it over the old one.
+    private void rewrite()
+        throws IOException
+    {
+        long now = System.currentTimeMillis();
+        long gen = random.nextLong() & Long.MAX_VALUE;
+        File tmp = new File(dir, LOG_FNAME + ".tmp");
+        RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+        long size = HEADER_BYTES;
+        try {
+            f.setLength(0);
+            f.writeInt(MAGIC);
+            f.writeLong(gen);
+            for (Type type : new ArrayList<Type>(data.keySet())) {
+                for (String id : new ArrayList<String>(data.get(type).keySet())) {
+                    Item item = live(type, id, now);
+                    if (item == null)
+                        continue;
+                    byte[] e = entry(PUT, type, id, item.written, item.fields);
+                    f.write(e);
+                    size += e.length;
+                }
+            }
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+        if (! tmp.renameTo(logFile))
+            throw new IOException("Unable to replace " + logFile);
+
+        generation = gen;
+        offset = size;
+        liveBytes = size;
+        logModified = logFile.lastModified();
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * The shared state behind CachingStorage: the storage it wraps, a
+ * bounded LRU cache of job records and the writes that haven't been
+ * flushed yet.
+ *
+ * An entry expires after templeton.storage.cache.ttl milliseconds.
+ * With ZooKeeperStorage each cached job also has a watch on its
+ * znode, so a change from anywhere drops it at once; with the other
+ * storages a change made by another process is seen once the entry
+ * expires.  The cache is bounded both by the number of jobs and by
+ * their rough size.
+ *
+ * The fields in templeton.storage.cache.write-behind, such as the
+ * percent complete, are written back in the background at most once
+ * per interval, and whenever the storage is closed.  Every other
+ * field is written through at once; the fields the indexes are built
+ * from can't be written behind.
+ */
+public class StorageCache implements StorageCacheMBean {
+    private static final Log LOG = LogFactory.getLog(StorageCache.class);
+
+    /** The prefix of all the settings of the cache. */
+    public static final String CONF_PREFIX = "templeton.storage.cache.";
+
+    public static final String STORAGE_CLASS_NAME = "templeton.storage.cache.class";
+    public static final String TTL_NAME = "templeton.storage.cache.ttl";
+    public static final String MAX_ENTRIES_NAME = "templeton.storage.cache.max-entries";
+    public static final String MAX_BYTES_NAME = "templeton.storage.cache.max-bytes";
+    public static final String WRITE_BEHIND_NAME = "templeton.storage.cache.write-behind";
+    public static final String WRITE_BEHIND_INTERVAL_NAME
+        = "templeton.storage.cache.write-behind.interval";
+
+    private static StorageCache theSingleton;
+
+    /**
+     * Get the shared cache, opening the storage it wraps the first
+     * time.
+     */
+    public static synchronized StorageCache getInstance(Configuration conf)
+        throws IOException
+    {
+        if (theSingleton == null) {
+            TempletonStorage backing;
+            try {
+                backing = (TempletonStorage)
+                    Class.forName(conf.get(STORAGE_CLASS_NAME,
+                                           HDFSStorage.class.getName()))
+                    .newInstance();
+            } catch (Exception e) {
+                throw new IOException("No storage to cache: " + e.getMessage(), e);
+            }
+            backing.openStorage(conf);
+
+            String[] fields = conf.getStrings(WRITE_BEHIND_NAME);
+            theSingleton = new StorageCache(backing,
+                                            conf.getLong(TTL_NAME, 10000),
+                                            conf.getInt(MAX_ENTRIES_NAME, 10000),
+                                            conf.getLong(MAX_BYTES_NAME, 16L * 1024 * 1024),
+                                            (fields == null)
+                                            ? new String[0] : fields,
+                                            conf.getLong(WRITE_BEHIND_INTERVAL_NAME,
+                                                         5000));
+            theSingleton.startFlusher();
+            try {
+                MBeanUtil.registerMBean("Templeton", "StorageCache", theSingleton);
+            } catch (Exception e) {
+                LOG.warn("Unable to register the storage cache mbean: " + e);
+            }
+        }
+        return theSingleton;
+    }
+
+    // One cached job.
+    private static class CacheEntry {
+        Map<String, String> fields;
+        long expires;
+        long size;
+    }
+
+    private final TempletonStorage backing;
+    private final long ttl;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Set<String> writeBehind = new HashSet<String>();
+    private final long writeBehindInterval;
+
+    private final LinkedHashMap<String, CacheEntry> entries
+        = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private final Map<String, Map<String, String>> pending
+        = new HashMap<String, Map<String, String>>();
+    // The changes taken by a flush and not yet written, and the jobs
+    // a flush is writing now.
+    private final Map<String, Map<String, String>> flushing
+        = new HashMap<String, Map<String, String>>();
+    private final Set<String> writing = new HashSet<String>();
+    private long bytes = 0;
+    private long version = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    private final Watcher watcher = new Watcher() {
+            public void process(WatchedEvent event) {
+                String path = event.getPath();
+                if (event.getType() != Event.EventType.None) {
+                    if (path != null)
+                        invalidate(path.substring(path.lastIndexOf('/') + 1));
+                } else if (event.getState() != Event.KeeperState.SyncConnected) {
+                    // The watches may be gone with the session.
+                    invalidateAll();
+                }
+            }
+        };
+
+    public StorageCache(TempletonStorage backing, long ttl, int maxEntries,
+                        long maxBytes, String[] writeBehind,
+                        long writeBehindInterval)
+    {
+        this.backing = backing;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        for (String field : writeBehind)
+            if (field.trim().length() > 0)
+                this.writeBehind.add(field.trim());
+        this.writeBehind.removeAll(JobIndexes.SOURCES);
+        this.writeBehindInterval = writeBehindInterval;
+    }
+
+    /**
+     * The storage under the cache.
+     */
+    public TempletonStorage getBacking() {
+        return backing;
+    }
+
+    /**
+     * Is the cache turned on?
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttl > 0;
+    }
+
+    /**
+     * A copy of the cached fields of a job, or null.
+     */
+    public synchronized Map<String, String> get(String id) {
+        CacheEntry e = entries.get(id);
+        if (e != null && e.expires <= System.currentTimeMillis()) {
+            remove(id);
+            ++evictions;
+            e = null;
+        }
+        if (e == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return new HashMap<String, String>(e.fields);
+    }
+
+    /**
+     * Like get, but not counted as a read.
+     */
+    public synchronized Map<String, String> peek(String id) {
+        CacheEntry e = entries.get(id);
+        if (e == null || e.expires <= System.currentTimeMillis())
+            return null;
+        return new HashMap<String, String>(e.fields);
+    }
+
+    /**
+     * Call before reading a job from the storage, and hand the result
+     * to fill.  With ZooKeeper this leaves a watch on the job.
+     */
+    public synchronized long startRead(String id) {
+        if (backing instanceof ZooKeeperStorage && isEnabled()) {
+            try {
+                ((ZooKeeperStorage) backing).watch(TempletonStorage.Type.JOB, id,
+                                                   watcher);
+            } catch (IOException e) {
+                LOG.info("Couldn't watch " + id + ": " + e.getMessage());
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Cache the fields read from the storage, unless something
+     * changed since the read started, and return them with the
+     * pending writes on top.
+     */
+    public synchronized Map<String, String> fill(String id, Map<String, String> fields,
+                                                 long stamp)
+    {
+        Map<String, String> res = new HashMap<String, String>(fields);
+        Map<String, String> f = flushing.get(id);
+        if (f != null)
+            res.putAll(f);
+        Map<String, String> p = pending.get(id);
+        if (p != null)
+            res.putAll(p);
+        if (isEnabled() && stamp == version && ! res.isEmpty())
+            put(id, new HashMap<String, String>(res));
+        return res;
+    }
+
+    /**
+     * Can this change be written behind?
+     */
+    public boolean isWriteBehind(Map<String, String> changes) {
+        if (changes.isEmpty())
+            return false;
+        for (Map.Entry<String, String> e : changes.entrySet())
+            if (e.getValue() == null || ! writeBehind.contains(e.getKey()))
+                return false;
+        return true;
+    }
+
+    /**
+     * Hold a change to write later.
+     */
+    public synchronized void writeLater(String id, Map<String, String> changes) {
+        Map<String, String> p = pending.get(id);
+        if (p == null) {
+            p = new HashMap<String, String>();
+            pending.put(id, p);
+        }
+        p.putAll(changes);
+        CacheEntry e = entries.get(id);
+        if (e != null) {
+            Map<String, String> fields = new HashMap<String, String>(e.fields);
+            fields.putAll(changes);
+            put(id, fields);
+        }
+    }
+
+    /**
+     * Take the changes of a job that are waiting to be written, so
+     * they go out with a write of the other fields.  This includes
+     * the ones a flush took and hasn't written yet, and waits for a
+     * flush writing the job, so an older value isn't written last.
+     */
+    public synchronized Map<String, String> takePending(String id) {
+        waitForWrite(id);
+        Map<String, String> res = flushing.remove(id);
+        Map<String, String> p = pending.remove(id);
+        if (res == null)
+            return p;
+        if (p != null)
+            res.putAll(p);
+        return res;
+    }
+
+    /**
+     * Forget the changes of a job that is being deleted, so a flush
+     * doesn't write it back.  Waits for a flush writing the job.
+     */
+    public synchronized void dropPending(String id) {
+        waitForWrite(id);
+        flushing.remove(id);
+        pending.remove(id);
+    }
+
+    /**
+     * Forget the change to a field that is being deleted, so a flush
+     * doesn't write it back.  Waits for a flush writing the job.
+     */
+    public synchronized void dropPending(String id, String key) {
+        waitForWrite(id);
+        dropKey(flushing, id, key);
+        dropKey(pending, id, key);
+    }
+
+    private static void dropKey(Map<String, Map<String, String>> changes,
+                                String id, String key)
+    {
+        Map<String, String> c = changes.get(id);
+        if (c != null) {
+            c.remove(key);
+            if (c.isEmpty())
+                changes.remove(id);
+        }
+    }
+
+    // Wait until no flush is writing a job.  Called with the lock
+    // held.
+    private void waitForWrite(String id) {
+        boolean interrupted = false;
+        while (writing.contains(id)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Note a change written to the storage.
+     */
+    public synchronized void written(String id, Map<String, String> changes) {
+        ++version;
+        CacheEntry e = entries.get(id);
+        if (e != null) {
+            Map<String, String> fields = new HashMap<String, String>(e.fields);
+            for (Map.Entry<String, String> c : changes.entrySet()) {
+                if (c.getValue() == null)
+                    fields.remove(c.getKey());
+                else
+                    fields.put(c.getKey(), c.getValue());
+            }
+            put(id, fields);
+        }
+    }
+
+    /**
+     * Drop a job.
+     */
+    public synchronized void invalidate(String id) {
+        ++version;
+        if (remove(id))
+            ++invalidations;
+    }
+
+    /**
+     * Drop every job.
+     */
+    public synchronized void invalidateAll() {
+        ++version;
+        invalidations += entries.size();
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Write all the pending changes.  A job deleted, or a field
+     * deleted, after the changes were taken is not written back, see
+     * dropPending.
+     */
+    public void flush() {
+        List<String> todo;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            for (Map.Entry<String, Map<String, String>> e : pending.entrySet()) {
+                Map<String, String> f = flushing.get(e.getKey());
+                if (f == null)
+                    flushing.put(e.getKey(), e.getValue());
+                else
+                    f.putAll(e.getValue());
+            }
+            todo = new ArrayList<String>(pending.keySet());
+            pending.clear();
+        }
+        for (String id : todo) {
+            Map<String, String> changes;
+            synchronized (this) {
+                waitForWrite(id);
+                changes = flushing.remove(id);
+                if (changes == null)
+                    continue;
+                writing.add(id);
+            }
+            try {
+                backing.saveFields(TempletonStorage.Type.JOB, id, changes);
+            } catch (NotFoundException ex) {
+                LOG.warn("Couldn't write " + changes.keySet() + " of "
+                         + id + ": " + ex.getMessage());
+            } finally {
+                synchronized (this) {
+                    writing.remove(id);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void startFlusher() {
+        if (writeBehind.isEmpty())
+            return;
+        Thread t = new Thread("templeton-storage-flusher") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(writeBehindInterval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        flush();
+                    }
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void put(String id, Map<String, String> fields) {
+        remove(id);
+        CacheEntry e = new CacheEntry();
+        e.fields = fields;
+        e.expires = System.currentTimeMillis() + ttl;
+        e.size = sizeOf(id, fields);
+        entries.put(id, e);
+        bytes += e.size;
+
+        Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    private boolean remove(String id) {
+        CacheEntry e = entries.remove(id);
+        if (e == null)
+            return false;
+        bytes -= e.size;
+        return true;
+    }
+
+    // A rough size of a job in memory: two bytes a char and some
+    // overhead per string.
+    private static long sizeOf(String id, Map<String, String> fields) {
+        long n = 64 + 2 * id.length();
+        for (Map.Entry<String, String> e : fields.entrySet())
+            n += 80 + 2 * (e.getKey().length() + e.getValue().length());
+        return n;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getPendingWrites() {
+        return pending.size() + flushing.size();
+    }
+}
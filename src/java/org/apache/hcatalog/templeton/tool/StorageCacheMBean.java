@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+/**
+ * JMX view of the job storage cache.
+ */
+public interface StorageCacheMBean {
+    /** Number of cached jobs. */
+    int getEntries();
+
+    /** Rough size of the cached jobs in bytes. */
+    long getBytes();
+
+    /** Reads answered from the cache. */
+    long getHits();
+
+    /** Reads that went to the storage. */
+    long getMisses();
+
+    /** Jobs dropped to stay under the limits or once expired. */
+    long getEvictions();
+
+    /** Jobs dropped because they changed. */
+    long getInvalidations();
+
+    /** Jobs with writes waiting to be flushed. */
+    int getPendingWrites();
+}
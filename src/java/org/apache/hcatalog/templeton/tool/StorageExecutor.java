@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The threads that run the blocking storage calls behind
+ * AsyncTempletonStorage.  There is a fixed number of them, shared by
+ * every storage instance in the process, so a burst of requests
+ * queues up rather than opening a connection per call.
+ */
+public class StorageExecutor {
+    public static final String IO_THREADS_NAME = "templeton.storage.io-threads";
+
+    private static ExecutorService theExecutor;
+
+    private StorageExecutor() {}
+
+    /**
+     * Get the shared executor, making it the first time.
+     */
+    public static synchronized ExecutorService getInstance(Configuration conf) {
+        if (theExecutor == null) {
+            int n = Math.max(1, conf.getInt(IO_THREADS_NAME, 8));
+            theExecutor = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "templeton-storage-"
+                                              + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return theExecutor;
+    }
+}
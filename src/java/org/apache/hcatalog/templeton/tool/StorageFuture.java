@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a storage call that finishes later, filled in by
+ * whoever does the work, usually a ZooKeeper callback.
+ */
+public class StorageFuture<V> implements Future<V> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private V value;
+    private Throwable error;
+
+    /**
+     * A future that is already done.
+     */
+    public static <V> StorageFuture<V> of(V value) {
+        StorageFuture<V> f = new StorageFuture<V>();
+        f.set(value);
+        return f;
+    }
+
+    /**
+     * Finish with a value.  Only the first set or fail counts.
+     */
+    public synchronized void set(V value) {
+        if (done.getCount() == 0)
+            return;
+        this.value = value;
+        done.countDown();
+    }
+
+    /**
+     * Finish with an error.  Only the first set or fail counts.
+     */
+    public synchronized void fail(Throwable error) {
+        if (done.getCount() == 0)
+            return;
+        this.error = error;
+        done.countDown();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public V get()
+        throws InterruptedException, ExecutionException
+    {
+        done.await();
+        return result();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (! done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private synchronized V result()
+        throws ExecutionException
+    {
+        if (error != null)
+            throw new ExecutionException(error);
+        return value;
+    }
+
+    /**
+     * Wait for a future, with the failure as an IOException.
+     */
+    public static <V> V getResult(Future<V> f)
+        throws IOException
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for storage", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the reads of many ids, see
+     * AsyncTempletonStorage.multiGet.  An id that couldn't be read
+     * gets an empty map, as getFields would give it.
+     */
+    public static Map<String, Map<String, String>>
+        getAll(List<String> ids, List<Future<Map<String, String>>> reads)
+        throws IOException
+    {
+        Map<String, Map<String, String>> res
+            = new LinkedHashMap<String, Map<String, String>>();
+        for (int i = 0; i < ids.size(); ++i) {
+            Map<String, String> fields = null;
+            try {
+                fields = reads.get(i).get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for storage", e);
+            } catch (ExecutionException e) {
+                // Left empty
+            }
+            if (fields == null)
+                fields = new LinkedHashMap<String, String>();
+            res.put(ids.get(i), fields);
+        }
+        return res;
+    }
+}
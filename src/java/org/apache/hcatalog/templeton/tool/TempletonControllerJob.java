@@ -75,6 +75,8 @@ public class TempletonControllerJob extends Configured implements Tool {
     public static final String STATUSDIR_NAME = "templeton.statusdir";
     public static final String JAR_ARGS_NAME  = "templeton.args";
     public static final String OVERRIDE_CLASSPATH = "templeton.override-classpath";
+    public static final String PROGRESS_INTERVAL_NAME
+        = "templeton.controller.progress-interval";
 
     public static final String STDOUT_FNAME  = "stdout";
     public static final String STDERR_FNAME  = "stderr";
@@ -141,10 +143,16 @@ public class TempletonControllerJob extends Configured implements Tool {
             String statusdir = conf.get(STATUSDIR_NAME);
             Counter cnt = context.getCounter(ControllerCounters.SIMPLE_COUNTER);
 
+            // One storage connection for the life of the mapper.
+            JobState state = new JobState(context.getJobID().toString(), conf);
+            ProgressSink progress
+                = new ProgressSink(state, conf.getLong(PROGRESS_INTERVAL_NAME, 10000));
+            progress.start();
+
             ExecutorService pool = Executors.newCachedThreadPool();
-            executeWatcher(pool, conf, context.getJobID(),
+            executeWatcher(pool, conf, progress,
                            proc.getInputStream(), statusdir, STDOUT_FNAME);
-            executeWatcher(pool, conf, context.getJobID(),
+            executeWatcher(pool, conf, progress,
                            proc.getErrorStream(), statusdir, STDERR_FNAME);
             KeepAlive keepAlive = startCounterKeepAlive(pool, cnt);
 
@@ -153,11 +161,10 @@ public class TempletonControllerJob extends Configured implements Tool {
             pool.shutdown();
             if (! pool.awaitTermination(WATCHER_TIMEOUT_SECS, TimeUnit.SECONDS))
                 pool.shutdownNow();
+            progress.close();
 
             writeExitValue(conf, proc.exitValue(), statusdir);
-            JobState state = new JobState(context.getJobID().toString(), conf);
-            state.setExitValue(proc.exitValue());
-            state.setCompleteStatus("done");
+            state.setFinished(proc.exitValue(), "done");
             state.close();
 
             if (proc.exitValue() != 0)
@@ -168,11 +175,11 @@ public class TempletonControllerJob extends Configured implements Tool {
         }
 
         private void executeWatcher(ExecutorService pool, Configuration conf,
-                                    JobID jobid, InputStream in, String statusdir,
-                                    String name)
+                                    ProgressSink progress, InputStream in,
+                                    String statusdir, String name)
             throws IOException
         {
-            Watcher w = new Watcher(conf, jobid, in, statusdir, name);
+            Watcher w = new Watcher(conf, progress, in, statusdir, name);
             pool.execute(w);
         }
 
@@ -200,18 +207,143 @@ public class TempletonControllerJob extends Configured implements Tool {
         }
     }
 
+    /**
+     * Keeps the latest percent complete and child id seen by the
+     * Watchers and writes them to the job state at most once per
+     * interval, or right away when the child job changes.  Pig prints
+     * progress all the time, and only the latest value is worth
+     * storing.  A Watcher only records the values: the writes are all
+     * made by the flusher thread, so a slow write never holds up a
+     * Watcher and with it the child process.
+     */
+    public static class ProgressSink implements Runnable {
+        private final JobState state;
+        private final long interval;
+
+        private String percent;
+        private String childid;
+        private boolean dirty = false;
+        private boolean newChild = false;
+        private long lastWrite = 0;
+        private boolean closed = false;
+        private Thread flusher;
+
+        public ProgressSink(JobState state, long interval) {
+            this.state = state;
+            this.interval = interval;
+        }
+
+        /**
+         * Start the thread that writes the values.
+         */
+        public void start() {
+            flusher = new Thread(this, "templeton-progress");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        /**
+         * Record a new percent complete or child id.  Either may be
+         * null.
+         */
+        public synchronized void update(String percent, String childid) {
+            if (closed)
+                return;
+            if (percent != null && ! percent.equals(this.percent)) {
+                this.percent = percent;
+                dirty = true;
+            }
+            if (childid != null && ! childid.equals(this.childid)) {
+                this.childid = childid;
+                dirty = true;
+                newChild = true;
+            }
+            if (dirty)
+                notifyAll();
+        }
+
+        /**
+         * Write any pending value and stop.  The JobState is left
+         * open.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                if (flusher != null)
+                    flusher.join();
+                else
+                    flush();
+            } catch (InterruptedException e) {
+                // Ok to be interrupted
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    boolean last;
+                    synchronized (this) {
+                        while (! closed) {
+                            long wait = interval - (System.currentTimeMillis() - lastWrite);
+                            if (dirty && (newChild || wait <= 0))
+                                break;
+                            wait(dirty ? wait : Math.max(interval, 1));
+                        }
+                        last = closed;
+                    }
+                    flush();
+                    if (last)
+                        return;
+                }
+            } catch (InterruptedException e) {
+                // Ok to be interrupted
+            }
+        }
+
+        // Write the pending values, if any.
+        private void flush() {
+            String p;
+            String c;
+            synchronized (this) {
+                if (! dirty)
+                    return;
+                p = percent;
+                c = childid;
+                dirty = false;
+                newChild = false;
+                lastWrite = System.currentTimeMillis();
+            }
+            try {
+                write(p, c);
+            } catch (IOException e) {
+                System.err.println("templeton: state error: " + e);
+            }
+        }
+
+        /**
+         * Store the values.
+         */
+        protected void write(String percent, String childid)
+            throws IOException
+        {
+            state.setProgress(percent, childid);
+        }
+    }
+
     public static class Watcher implements Runnable {
         private InputStream in;
         private OutputStream out;
-        private JobID jobid;
-        private Configuration conf;
+        private ProgressSink progress;
 
-        public Watcher(Configuration conf, JobID jobid, InputStream in,
+        public Watcher(Configuration conf, ProgressSink progress, InputStream in,
                        String statusdir, String name)
             throws IOException
         {
-            this.conf = conf;
-            this.jobid = jobid;
+            this.progress = progress;
             this.in = in;
 
             if (name.equals(STDERR_FNAME))
@@ -237,26 +369,10 @@ public class TempletonControllerJob extends Configured implements Tool {
                 String line;
                 while ((line = reader.readLine()) != null) {
                     writer.println(line);
-                    JobState state = null;
-                    try {
-                        String percent = TempletonUtils.extractPercentComplete(line);
-                        String childid = TempletonUtils.extractChildJobId(line);
-
-                        if (percent != null || childid != null) {
-                            state = new JobState(jobid.toString(), conf);
-                            state.setPercentComplete(percent);
-                            state.setChildId(childid);
-                        }
-                    } catch (IOException e) {
-                        System.err.println("templeton: state error: " + e);
-                    } finally {
-                        if (state != null) {
-                            try {
-                                state.close();
-                            } catch (IOException e) {
-                            }
-                        }
-                    }
+                    String percent = TempletonUtils.extractPercentComplete(line);
+                    String childid = TempletonUtils.extractChildJobId(line);
+                    if (percent != null || childid != null)
+                        progress.update(percent, childid);
                 }
                 writer.flush();
             } catch (IOException e) {
@@ -43,8 +43,11 @@ import org.apache.hadoop.conf.Configuration;
  */
 public interface TempletonStorage {
     // These are the possible types referenced by 'type' below.
+    // USERINDEX is the index of the jobs of each user: the id is the
+    // user and the keys are job ids.  KEYINDEX holds the other
+    // indexes of the jobs, see JobIndexes.
     public enum Type {
-        UNKNOWN, JOB, JOBTRACKING, TEMPLETONOVERHEAD
+        UNKNOWN, JOB, JOBTRACKING, TEMPLETONOVERHEAD, USERINDEX, KEYINDEX
     }
     
     public static final String STORAGE_CLASS    = "templeton.storage.class";
@@ -67,6 +70,27 @@ public interface TempletonStorage {
     public void saveField(Type type, String id, String key, String val)
         throws NotFoundException;
 
+    /**
+     * Save many key/value pairs for a specific id together.  A null
+     * value removes the field.  Where the storage allows it, readers
+     * see either all of the change or none of it.
+     * @param type The data type (as listed above)
+     * @param id The String id of this data grouping (jobid, etc.)
+     * @param fields The names and values of the fields to save
+     */
+    public void saveFields(Type type, String id, Map<String, String> fields)
+        throws NotFoundException;
+
+    /**
+     * Delete a single key/value pair for a specific id.  A missing
+     * field is not an error.
+     * @param type The data type (as listed above)
+     * @param id The String id of this data grouping (jobid, etc.)
+     * @param key The name of the field to delete
+     */
+    public void deleteField(Type type, String id, String key)
+        throws NotFoundException;
+
     /**
      * Get the value of one field for a given data type.  If the type
      * is UNKNOWN, search for the id in all types.
@@ -92,6 +116,16 @@ public interface TempletonStorage {
      */
     public Map<String, String> getFields(Type type, String id);
 
+    /**
+     * Get the names of the fields stored for this id, without their
+     * values.  The jobs in an index are listed this way, in one call.
+     *
+     * @param type The data type (as listed above)
+     * @param id The String id of this data grouping (jobid, etc.)
+     * @return The names of the fields found for this type/id.
+     */
+    public List<String> getKeys(Type type, String id);
+
     /**
      * Delete a data grouping (all data for a jobid, all tracking data
      * for a job, etc.).  If the type is UNKNOWN, search for the id
@@ -130,7 +164,8 @@ public interface TempletonStorage {
 
     /**
      * Get the id of each data grouping of a given type that has the
-     * specific key/value pair.
+     * specific key/value pair.  The jobs with a key in JobIndexes
+     * are found from the index, without looking at the other jobs.
      * @param type The data type (as listed above)
      * @param key The name of the field to search for
      * @param value The value of the field to search for
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * A list of ZooKeeper writes sent together.  Every operation is sent
+ * with the asynchronous API before waiting on any of them, so the
+ * whole batch costs one round trip.  ZooKeeper runs the operations of
+ * a session in order, so a parent created earlier in the batch exists
+ * for a child created later.
+ *
+ * Unlike multi() in newer ZooKeeper releases the batch is not atomic:
+ * each operation succeeds or fails on its own, and the caller checks
+ * the result of each one.
+ */
+public class ZooKeeperBatch {
+    // One operation and its result.
+    private static class Op {
+        static final int CREATE = 0;
+        static final int DELETE = 1;
+
+        int kind;
+        String path;
+        byte[] data;
+        CreateMode mode;
+        int version;
+
+        int rc = KeeperException.Code.OK.intValue();
+        String createdPath;
+    }
+
+    private final ZooKeeper zk;
+    private final List<Op> ops = new ArrayList<Op>();
+    private boolean done = false;
+
+    public ZooKeeperBatch(ZooKeeper zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * Add a create.  Returns the index of the operation.
+     */
+    public int create(String path, byte[] data, CreateMode mode) {
+        Op op = new Op();
+        op.kind = Op.CREATE;
+        op.path = path;
+        op.data = data;
+        op.mode = mode;
+        return add(op);
+    }
+
+    /**
+     * Add a delete.  Returns the index of the operation.
+     */
+    public int delete(String path, int version) {
+        Op op = new Op();
+        op.kind = Op.DELETE;
+        op.path = path;
+        op.version = version;
+        return add(op);
+    }
+
+    private int add(Op op) {
+        if (done)
+            throw new IllegalStateException("batch already run");
+        ops.add(op);
+        return ops.size() - 1;
+    }
+
+    /**
+     * Send every operation and wait for all the results.
+     */
+    public void run()
+        throws IOException
+    {
+        done = true;
+        final CountDownLatch left = new CountDownLatch(ops.size());
+        AsyncCallback.StringCallback created = new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    Op op = (Op) ctx;
+                    op.rc = rc;
+                    op.createdPath = name;
+                    left.countDown();
+                }
+            };
+        AsyncCallback.VoidCallback deleted = new AsyncCallback.VoidCallback() {
+                public void processResult(int rc, String path, Object ctx) {
+                    ((Op) ctx).rc = rc;
+                    left.countDown();
+                }
+            };
+
+        for (Op op : ops) {
+            switch (op.kind) {
+            case Op.CREATE:
+                zk.create(op.path, op.data, Ids.OPEN_ACL_UNSAFE, op.mode, created, op);
+                break;
+            default:
+                zk.delete(op.path, op.version, deleted, op);
+                break;
+            }
+        }
+
+        try {
+            left.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for ZooKeeper", e);
+        }
+    }
+
+    /**
+     * The result of an operation.
+     */
+    public KeeperException.Code result(int i) {
+        return KeeperException.Code.get(ops.get(i).rc);
+    }
+
+    /**
+     * Did the operation succeed?
+     */
+    public boolean isOk(int i) {
+        return ops.get(i).rc == KeeperException.Code.OK.intValue();
+    }
+
+    /**
+     * The path a create made, which differs from the one asked for
+     * with a sequential node.
+     */
+    public String createdPath(int i) {
+        return ops.get(i).createdPath;
+    }
+}
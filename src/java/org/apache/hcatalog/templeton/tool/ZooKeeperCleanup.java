@@ -25,6 +25,7 @@ import java.util.Date;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -58,6 +59,9 @@ public class ZooKeeperCleanup extends Thread {
     // Whether the cycle is running
     private static boolean isRunning = false;
 
+    // Whether the jobs from before the indexes have been indexed
+    private boolean backfilled = false;
+
     /**
      * Create a cleanup object.  We use the appConfig to configure JobState.
      * @param appConf
@@ -88,7 +92,7 @@ public class ZooKeeperCleanup extends Thread {
      * @throws IOException
      */
     public void run() {
-        ZooKeeper zk = null;
+        ZooKeeperConnection conn = null;
         List<String> nodes = null;
         isRunning = true;
         while (!stop) {
@@ -96,7 +100,8 @@ public class ZooKeeperCleanup extends Thread {
                 // Put each check in a separate try/catch, so if that particular
                 // cycle fails, it'll try again on the next cycle.
                 try {
-                    zk = ZooKeeperStorage.zkOpen(appConf);
+                    conn = ZooKeeperConnection.acquire(appConf);
+                    ZooKeeper zk = conn.getZooKeeper();
 
                     nodes = getChildList(zk);
 
@@ -107,19 +112,25 @@ public class ZooKeeperCleanup extends Thread {
                         }
                     }
 
-                    zk.close();
+                    checkIndexes(zk);
                 } catch (Exception e) {
                     LOG.error("Cleanup cycle failed: " + e.getMessage());
                 } finally {
-                    if (zk != null) {
-                        try {
-                            zk.close();
-                        } catch (InterruptedException e) {
-                            // We're trying to exit anyway, just ignore.
-                        }
+                    if (conn != null) {
+                        conn.release();
+                        conn = null;
                     }
                 }
 
+                try {
+                    if (! backfilled) {
+                        JobState.backfillIndexes(appConf);
+                        backfilled = true;
+                    }
+                } catch (Exception e) {
+                    LOG.error("Index backfill failed: " + e.getMessage());
+                }
+
                 long sleepMillis = (long) (Math.random() * interval);
                 LOG.info("Next execution: " + new Date(new Date().getTime()
                                                        + sleepMillis));
@@ -158,8 +169,8 @@ public class ZooKeeperCleanup extends Thread {
         JobState state = null;
         try {
             JobStateTracker tracker = new JobStateTracker(node, zk, true,
-                    appConf.get(TempletonStorage.STORAGE_ROOT +
-                            ZooKeeperStorage.TRACKINGDIR));
+                    appConf.get(TempletonStorage.STORAGE_ROOT) +
+                            ZooKeeperStorage.TRACKINGDIR);
             long now = new Date().getTime();
             state = new JobState(tracker.getJobID(), appConf);
 
@@ -192,6 +203,47 @@ public class ZooKeeperCleanup extends Thread {
         }
     }
 
+    /**
+     * Delete the index entries that are more than maxage old, like
+     * HDFSCleanup does.  A job is deleted once it is maxage old, so an
+     * older entry was left behind, say by a writer that died between
+     * writing a job and its indexes.  An index left empty goes too.
+     */
+    public void checkIndexes(ZooKeeper zk) {
+        String root = appConf.get(TempletonStorage.STORAGE_ROOT);
+        long now = new Date().getTime();
+        for (String dir : new String[] {root + ZooKeeperStorage.USERINDEXDIR,
+                                        root + ZooKeeperStorage.KEYINDEXDIR}) {
+            List<String> indexes;
+            try {
+                indexes = zk.getChildren(dir, false);
+            } catch (Exception e) {
+                // Nothing indexed yet.
+                continue;
+            }
+            for (String index : indexes) {
+                String znode = dir + "/" + index;
+                try {
+                    for (String jobid : zk.getChildren(znode, false)) {
+                        String entry = znode + "/" + jobid;
+                        Stat stat = zk.exists(entry, false);
+                        if (stat != null && now - stat.getMtime() > maxage) {
+                            LOG.info("Deleting " + entry);
+                            zk.delete(entry, -1);
+                        }
+                    }
+                    Stat stat = zk.exists(znode, false);
+                    if (stat != null && stat.getNumChildren() == 0
+                        && now - stat.getMtime() > maxage)
+                        zk.delete(znode, stat.getVersion());
+                } catch (Exception e) {
+                    // Changed while looking, try again on the next cycle.
+                    LOG.info("Couldn't check index " + znode + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
     // Handle to stop this process from the outside if needed.
     public void exit() {
         stop = true;
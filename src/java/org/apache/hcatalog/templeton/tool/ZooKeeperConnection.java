@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.tool;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * One ZooKeeper session per process and ensemble, shared by every
+ * user of the job state.  Users acquire the connection and release it
+ * when done; once nobody holds it the session is kept open for
+ * templeton.zookeeper.linger milliseconds so that back to back calls
+ * don't each set up a session.  An expired session is replaced by a
+ * new one the next time the handle is asked for.
+ */
+public class ZooKeeperConnection {
+    private static final Log LOG = LogFactory.getLog(ZooKeeperConnection.class);
+
+    public static final String ZK_LINGER = "templeton.zookeeper.linger";
+
+    private static final Map<String, ZooKeeperConnection> connections
+        = new HashMap<String, ZooKeeperConnection>();
+
+    private static Timer closer;
+
+    /**
+     * Get the shared connection to the ensemble in the config.
+     * Release it when done.
+     */
+    public static ZooKeeperConnection acquire(Configuration conf) {
+        String hosts = conf.get(ZooKeeperStorage.ZK_HOSTS);
+        int timeout = conf.getInt(ZooKeeperStorage.ZK_SESSION_TIMEOUT, 30000);
+        long linger = conf.getLong(ZK_LINGER, 60000);
+        String key = hosts + "/" + timeout;
+
+        synchronized (connections) {
+            ZooKeeperConnection c = connections.get(key);
+            if (c == null) {
+                c = new ZooKeeperConnection(key, hosts, timeout, linger);
+                connections.put(key, c);
+            }
+            c.retain();
+            return c;
+        }
+    }
+
+    private final String key;
+    private final String hosts;
+    private final int sessionTimeout;
+    private final long linger;
+
+    private ZooKeeper zk;
+    private CountDownLatch connected;
+    private boolean expired = false;
+    private int refs = 0;
+    private TimerTask pendingClose;
+
+    private ZooKeeperConnection(String key, String hosts, int sessionTimeout,
+                                long linger)
+    {
+        this.key = key;
+        this.hosts = hosts;
+        this.sessionTimeout = sessionTimeout;
+        this.linger = linger;
+    }
+
+    private synchronized void retain() {
+        ++refs;
+        if (pendingClose != null) {
+            pendingClose.cancel();
+            pendingClose = null;
+        }
+    }
+
+    /**
+     * Give back the connection.  The session is closed once it has
+     * not been used for the linger time.
+     */
+    public void release() {
+        synchronized (connections) {
+            synchronized (this) {
+                if (refs <= 0)
+                    return;
+                if (--refs > 0)
+                    return;
+                if (linger <= 0) {
+                    closeNow();
+                    return;
+                }
+                pendingClose = new TimerTask() {
+                        public void run() {
+                            synchronized (connections) {
+                                synchronized (ZooKeeperConnection.this) {
+                                    if (refs == 0 && pendingClose == this)
+                                        closeNow();
+                                }
+                            }
+                        }
+                    };
+                if (closer == null)
+                    closer = new Timer("zookeeper-closer", true);
+                closer.schedule(pendingClose, linger);
+            }
+        }
+    }
+
+    // Close the session and forget the connection.  Called with both
+    // locks held.
+    private void closeNow() {
+        pendingClose = null;
+        if (connections.get(key) == this)
+            connections.remove(key);
+        closeSession();
+    }
+
+    private void closeSession() {
+        if (zk != null) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                // Closing anyway
+            }
+            zk = null;
+        }
+    }
+
+    /**
+     * The ZooKeeper handle.  Opens the session if needed, or a new
+     * one if it expired, and waits up to the session timeout for it
+     * to connect.
+     */
+    public ZooKeeper getZooKeeper()
+        throws IOException
+    {
+        CountDownLatch wait;
+        ZooKeeper res;
+        synchronized (this) {
+            if (zk != null
+                && (expired || zk.getState() == ZooKeeper.States.CLOSED)) {
+                LOG.info("ZooKeeper session expired, opening a new one");
+                closeSession();
+            }
+            if (zk == null) {
+                expired = false;
+                connected = new CountDownLatch(1);
+                zk = new ZooKeeper(hosts, sessionTimeout, makeWatcher(connected));
+            }
+            wait = connected;
+            res = zk;
+        }
+
+        try {
+            if (! wait.await(sessionTimeout, TimeUnit.MILLISECONDS))
+                LOG.warn("Not yet connected to ZooKeeper at " + hosts);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted connecting to ZooKeeper", e);
+        }
+        return res;
+    }
+
+    private Watcher makeWatcher(final CountDownLatch latch) {
+        return new Watcher() {
+            public void process(WatchedEvent event) {
+                switch (event.getState()) {
+                case SyncConnected:
+                    latch.countDown();
+                    break;
+                case Expired:
+                    synchronized (ZooKeeperConnection.this) {
+                        if (connected == latch)
+                            expired = true;
+                    }
+                    latch.countDown();
+                    break;
+                default:
+                    break;
+                }
+            }
+        };
+    }
+}
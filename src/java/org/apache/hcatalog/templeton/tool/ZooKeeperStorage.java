@@ -18,38 +18,56 @@
 package org.apache.hcatalog.templeton.tool;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
 /**
  * A storage implementation based on storing everything in ZooKeeper.
  * This keeps everything in a central location that is guaranteed
  * to be available and accessible.
  *
- * Data is stored with each key/value pair being a node in ZooKeeper.
+ * The fields of each job are serialized together into the data of
+ * its znode, see JobRecord, so a job is read in one round trip and
+ * written with one versioned setData.  Jobs written in the old
+ * layout, with each key/value pair being a child znode, are still
+ * read, and are moved to a record when they are next written.  The
+ * user index keeps a child znode per entry.
+ *
+ * The async calls use the callbacks of the ZooKeeper client, so many
+ * reads share one round trip.  The rare cases that need several
+ * dependent calls, such as old layout jobs or a write that lost a
+ * race, are finished on the StorageExecutor threads.
  */
-public class ZooKeeperStorage implements TempletonStorage {
+public class ZooKeeperStorage implements AsyncTempletonStorage {
 
     public static final String TRACKINGDIR = "/created";
+    public static final String USERINDEXDIR = "/users";
+    public static final String KEYINDEXDIR = "/indexes";
 
     // Locations for each of the storage types
     public String storage_root = null;
     public String job_path = null;
     public String job_trackingpath = null;
     public String overhead_path = null;
+    public String user_index_path = null;
+    public String key_index_path = null;
 
     public static final String ZK_HOSTS = "templeton.zookeeper.hosts";
     public static final String ZK_SESSION_TIMEOUT
@@ -57,9 +75,13 @@ public class ZooKeeperStorage implements TempletonStorage {
 
     public static final String ENCODING = "UTF-8";
 
+    // How many times to retry a record write that lost a race.
+    public static final int MAX_UPDATE_TRIES = 20;
+
     private static final Log LOG = LogFactory.getLog(ZooKeeperStorage.class);
 
-    private ZooKeeper zk;
+    private ZooKeeperConnection conn;
+    private ExecutorService executor;
 
     /**
      * Open a ZooKeeper connection for the JobState.
@@ -92,21 +114,26 @@ public class ZooKeeperStorage implements TempletonStorage {
     }
 
     /**
-     * Close this ZK connection.
+     * Give back the shared ZK connection.
      */
     public void close()
         throws IOException
     {
-        if (zk != null) {
-            try {
-                zk.close();
-                zk = null;
-            } catch (InterruptedException e) {
-                throw new IOException("Closing ZooKeeper connection", e);
-            }
+        if (conn != null) {
+            conn.release();
+            conn = null;
         }
     }
 
+    // The shared ZooKeeper handle, see ZooKeeperConnection.
+    private ZooKeeper zk()
+        throws IOException
+    {
+        if (conn == null)
+            throw new IOException("ZooKeeper storage is not open");
+        return conn.getZooKeeper();
+    }
+
     public void startCleanup(Configuration config) {
         try {
             ZooKeeperCleanup.startInstance(config);
@@ -116,54 +143,220 @@ public class ZooKeeperStorage implements TempletonStorage {
     }
 
     /**
-     * Create a node in ZooKeeper
+     * Create a node in ZooKeeper.  A job, tracking or overhead node
+     * gets a record holding its created time.  Does nothing if the
+     * node already exists.
      */
     public void create(Type type, String id)
         throws IOException
     {
-        try {
-            String[] paths = getPaths(makeZnode(type, id));
-            boolean wasCreated = false;
-            for (String znode : paths) {
-                try {
-                    zk.create(znode, new byte[0],
-                              Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                    wasCreated = true;
-                } catch (KeeperException.NodeExistsException e) {
-                }
+        createNode(type, id, new HashMap<String, String>());
+    }
+
+    // Create the node with these fields and return true, or return
+    // false if it already exists.  A job and its tracking node are
+    // sent together in one batch, see ZooKeeperBatch, and the parents
+    // are only created when one of them turns out to be missing.
+    private boolean createNode(Type type, String id, Map<String, String> fields)
+        throws IOException
+    {
+        String znode = makeZnode(type, id);
+        byte[] data = new byte[0];
+        if (isRecordType(type)) {
+            Map<String, String> rec = new HashMap<String, String>(fields);
+            if (! rec.containsKey("created"))
+                rec.put("created", Long.toString(System.currentTimeMillis()));
+            data = JobRecord.encode(rec);
+        }
+        boolean track = type.equals(Type.JOB);
+        String trackZnode = job_trackingpath + "/";
+
+        ZooKeeperBatch batch = new ZooKeeperBatch(zk());
+        int node = batch.create(znode, data, CreateMode.PERSISTENT);
+        int tracker = -1;
+        if (track)
+            tracker = batch.create(trackZnode, id.getBytes(),
+                                   CreateMode.PERSISTENT_SEQUENTIAL);
+        batch.run();
+
+        KeeperException.Code nodeRc = batch.result(node);
+        KeeperException.Code trackRc = track ? batch.result(tracker)
+            : KeeperException.Code.OK;
+        String trackPath = track ? batch.createdPath(tracker) : null;
+
+        if (nodeRc == KeeperException.Code.NONODE
+            || trackRc == KeeperException.Code.NONODE) {
+            ZooKeeperBatch retry = new ZooKeeperBatch(zk());
+            int retryNode = -1;
+            int retryTracker = -1;
+            if (nodeRc == KeeperException.Code.NONODE) {
+                addParents(retry, znode);
+                retryNode = retry.create(znode, data, CreateMode.PERSISTENT);
+            }
+            if (trackRc == KeeperException.Code.NONODE) {
+                addParents(retry, trackZnode);
+                retryTracker = retry.create(trackZnode, id.getBytes(),
+                                            CreateMode.PERSISTENT_SEQUENTIAL);
             }
-            if (wasCreated) {
+            retry.run();
+            if (retryNode >= 0)
+                nodeRc = retry.result(retryNode);
+            if (retryTracker >= 0) {
+                trackRc = retry.result(retryTracker);
+                trackPath = retry.createdPath(retryTracker);
+            }
+        }
+
+        if (nodeRc != KeeperException.Code.OK) {
+            // Don't leave a tracking node behind for a job we didn't
+            // create.
+            if (track && trackRc == KeeperException.Code.OK)
+                quietDelete(trackPath);
+            if (nodeRc == KeeperException.Code.NODEEXISTS)
+                return false;
+            throw new IOException("Creating " + id,
+                                  KeeperException.create(nodeRc, znode));
+        }
+        if (trackRc != KeeperException.Code.OK) {
+            LOG.warn("Error tracking " + id + ": " + trackRc);
+            // If we couldn't create the tracker node, don't create
+            // the main node.
+            quietDelete(znode);
+            throw new IOException("Unable to create " + znode);
+        }
+        return true;
+    }
+
+    // Add creates of the missing parents of a path, which may already
+    // exist.
+    private static void addParents(ZooKeeperBatch batch, String znode) {
+        String[] paths = getPaths(znode);
+        for (int i = 0; i < paths.length - 1; ++i)
+            batch.create(paths[i], new byte[0], CreateMode.PERSISTENT);
+    }
+
+    // Delete a node, leaving anything that goes wrong to the cleanup.
+    private void quietDelete(String znode) {
+        try {
+            zk().delete(znode, -1);
+        } catch (Exception e) {
+            LOG.info("Couldn't delete " + znode);
+        }
+    }
+
+    /**
+     * Is this type kept as one record per id?  The indexes keep each
+     * entry in its own znode instead, since the entries come and go
+     * one at a time and there can be many of them.
+     */
+    public static boolean isRecordType(Type type) {
+        return ! JobIndexes.isIndexType(type);
+    }
+
+    /**
+     * Change some fields of a record with an optimistic read, modify,
+     * write: the write only succeeds if nobody wrote the record since
+     * it was read, otherwise it is tried again.  A null value removes
+     * the field, and a missing record is only created by a change that
+     * sets a field.  Nodes in the old layout, with a znode per field, are
+     * moved to a record.  A job is moved between the indexes once its
+     * record is written, see JobIndexes.
+     */
+    private void updateRecord(Type type, String id, Map<String, String> changes)
+        throws IOException
+    {
+        String znode = makeZnode(type, id);
+        try {
+            for (int i = 0; i < MAX_UPDATE_TRIES; ++i) {
+                Stat stat = new Stat();
+                byte[] data;
                 try {
-                    // Really not sure if this should go here.  Will have
-                    // to see how the storage mechanism evolves.
-                    if (type.equals(Type.JOB)) {
-                        JobStateTracker jt = new JobStateTracker(id, zk, false,
-                                job_trackingpath);
-                        jt.create();
+                    data = zk().getData(znode, false, stat);
+                } catch (KeeperException.NoNodeException e) {
+                    // Removing fields of a missing record, say one the
+                    // cleanup took away, mustn't bring it back.
+                    if (! setsField(changes))
+                        return;
+                    if (createNode(type, id, changes)) {
+                        updateIndexes(type, id, null, changes);
+                        return;
                     }
-                } catch (Exception e) {
-                    LOG.warn("Error tracking: " + e.getMessage());
-                    // If we couldn't create the tracker node, don't
-                    // create the main node.
-                    zk.delete(makeZnode(type, id), -1);
+                    continue;
                 }
-            }
-            if (zk.exists(makeZnode(type, id), false) == null)
-                throw new IOException("Unable to create " + makeZnode(type, id));
-            if (wasCreated) {
+
+                Map<String, String> rec = JobRecord.decode(data);
+                List<String> legacy = null;
+                if (rec == null) {
+                    legacy = zk().getChildren(znode, false);
+                    rec = readFieldZnodes(type, id, legacy);
+                }
+                Map<String, String> before = new HashMap<String, String>(rec);
+                rec.putAll(changes);
+
                 try {
-                    saveField(type, id, "created",
-                              Long.toString(System.currentTimeMillis()));
-                } catch (NotFoundException nfe) {
-                    // Wow, something's really wrong.
-                    throw new IOException("Couldn't write to node " + id, nfe);
+                    zk().setData(znode, JobRecord.encode(rec), stat.getVersion());
+                } catch (KeeperException.BadVersionException e) {
+                    continue;
+                }
+
+                if (legacy != null && ! legacy.isEmpty()) {
+                    ZooKeeperBatch batch = new ZooKeeperBatch(zk());
+                    for (String child : legacy)
+                        batch.delete(makeFieldZnode(type, id, child), -1);
+                    batch.run();
                 }
+                updateIndexes(type, id, before, rec);
+                return;
             }
         } catch (KeeperException e) {
-            throw new IOException("Creating " + id, e);
+            throw new IOException("Writing " + znode, e);
         } catch (InterruptedException e) {
-            throw new IOException("Creating " + id, e);
+            throw new IOException("Writing " + znode, e);
         }
+        throw new IOException("Too many concurrent writes to " + znode);
+    }
+
+    // Does the change set any field, rather than only remove them?
+    private static boolean setsField(Map<String, String> changes) {
+        for (String val : changes.values())
+            if (val != null)
+                return true;
+        return false;
+    }
+
+    private void updateIndexes(Type type, String id, Map<String, String> before,
+                               Map<String, String> after)
+    {
+        if (type == Type.JOB)
+            JobIndexes.update(this, id, before, after);
+    }
+
+    // Read the fields of an id, from its record or from a znode per
+    // field.
+    private Map<String, String> readFields(Type type, String id)
+        throws KeeperException, IOException, InterruptedException
+    {
+        String znode = makeZnode(type, id);
+        Map<String, String> rec = JobRecord.decode(zk().getData(znode, false, null));
+        if (rec != null)
+            return rec;
+        return readFieldZnodes(type, id, zk().getChildren(znode, false));
+    }
+
+    private Map<String, String> readFieldZnodes(Type type, String id,
+                                                List<String> names)
+        throws KeeperException, IOException, InterruptedException
+    {
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (String name : names) {
+            try {
+                byte[] b = zk().getData(makeFieldZnode(type, id, name), false, null);
+                map.put(name, new String(b, ENCODING));
+            } catch (KeeperException.NoNodeException e) {
+                // Deleted while reading
+            }
+        }
+        return map;
     }
 
     /**
@@ -180,6 +373,12 @@ public class ZooKeeperStorage implements TempletonStorage {
         case JOBTRACKING:
             typepath = job_trackingpath;
             break;
+        case USERINDEX:
+            typepath = user_index_path;
+            break;
+        case KEYINDEX:
+            typepath = key_index_path;
+            break;
         }
         return typepath;
     }
@@ -206,19 +405,19 @@ public class ZooKeeperStorage implements TempletonStorage {
      * @param name
      * @param val
      * @throws KeeperException
-     * @throws UnsupportedEncodingException
+     * @throws IOException
      * @throws InterruptedException
      */
     private void setFieldData(Type type, String id, String name, String val)
-        throws KeeperException, UnsupportedEncodingException, InterruptedException
+        throws KeeperException, IOException, InterruptedException
     {
         try {
-            zk.create(makeFieldZnode(type, id, name),
+            zk().create(makeFieldZnode(type, id, name),
                       val.getBytes(ENCODING),
                       Ids.OPEN_ACL_UNSAFE,
                       CreateMode.PERSISTENT);
         } catch(KeeperException.NodeExistsException e) {
-            zk.setData(makeFieldZnode(type, id, name),
+            zk().setData(makeFieldZnode(type, id, name),
                        val.getBytes(ENCODING),
                        -1);
         }
@@ -243,8 +442,18 @@ public class ZooKeeperStorage implements TempletonStorage {
         throws NotFoundException {
         try {
             if (val != null) {
-                create(type, id);
-                setFieldData(type, id, key, val);
+                if (isRecordType(type)) {
+                    Map<String, String> changes = new HashMap<String, String>();
+                    changes.put(key, val);
+                    updateRecord(type, id, changes);
+                } else {
+                    try {
+                        setFieldData(type, id, key, val);
+                    } catch (KeeperException.NoNodeException e) {
+                        create(type, id);
+                        setFieldData(type, id, key, val);
+                    }
+                }
             }
         } catch(Exception e) {
             throw new NotFoundException("Writing " + key + ": " + val + ", "
@@ -252,10 +461,58 @@ public class ZooKeeperStorage implements TempletonStorage {
         }
     }
 
+    /**
+     * Save many fields.  A record is changed with one versioned
+     * write, so the change is atomic.
+     */
+    @Override
+    public void saveFields(Type type, String id, Map<String, String> fields)
+        throws NotFoundException
+    {
+        try {
+            if (isRecordType(type)) {
+                updateRecord(type, id, new HashMap<String, String>(fields));
+                return;
+            }
+            for (Map.Entry<String, String> e : fields.entrySet()) {
+                if (e.getValue() == null)
+                    deleteField(type, id, e.getKey());
+                else
+                    saveField(type, id, e.getKey(), e.getValue());
+            }
+        } catch (NotFoundException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new NotFoundException("Writing " + fields.keySet() + " of " + id
+                                        + ", " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void deleteField(Type type, String id, String key)
+        throws NotFoundException
+    {
+        try {
+            if (isRecordType(type)) {
+                Map<String, String> changes = new HashMap<String, String>();
+                changes.put(key, null);
+                updateRecord(type, id, changes);
+            } else {
+                zk().delete(makeFieldZnode(type, id, key), -1);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            // Already gone
+        } catch (Exception e) {
+            throw new NotFoundException("Deleting " + key + ": " + e.getMessage());
+        }
+    }
+
     @Override
     public String getField(Type type, String id, String key) {
         try {
-            byte[] b = zk.getData(makeFieldZnode(type, id, key), false, null);
+            if (isRecordType(type))
+                return readFields(type, id).get(key);
+            byte[] b = zk().getData(makeFieldZnode(type, id, key), false, null);
             return new String(b, ENCODING);
         } catch(Exception e) {
             return null;
@@ -264,43 +521,59 @@ public class ZooKeeperStorage implements TempletonStorage {
 
     @Override
     public Map<String, String> getFields(Type type, String id) {
-        HashMap<String, String> map = new HashMap<String, String>();
         try {
-            for (String node: zk.getChildren(makeZnode(type, id), false)) {
-                byte[] b = zk.getData(makeFieldZnode(type, id, node),
-                                      false, null);
-                map.put(node, new String(b, ENCODING));
-            }
+            return readFields(type, id);
         } catch(Exception e) {
-            return map;
+            return new HashMap<String, String>();
         }
-        return map;
     }
 
+    @Override
+    public List<String> getKeys(Type type, String id) {
+        try {
+            if (isRecordType(type))
+                return new ArrayList<String>(readFields(type, id).keySet());
+            return zk().getChildren(makeZnode(type, id), false);
+        } catch(Exception e) {
+            return new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Delete a node.  A record goes in one call; a node with children,
+     * in the old layout or an index, has its children and then itself
+     * deleted in one batch.  A job is also taken out of the indexes.
+     */
     @Override
     public boolean delete(Type type, String id) throws NotFoundException {
+        String znode = makeZnode(type, id);
+        Map<String, String> before = null;
+        if (type == Type.JOB)
+            before = getFields(type, id);
         try {
-            for (String child : zk.getChildren(makeZnode(type, id), false)) {
-                try {
-                    zk.delete(makeFieldZnode(type, id, child), -1);
-                } catch (Exception e) {
-                    // Other nodes may be trying to delete this at the same time,
-                    // so just log errors and skip them.
-                    throw new NotFoundException("Couldn't delete " +
-                                                makeFieldZnode(type, id, child));
-                }
-            }
             try {
-                zk.delete(makeZnode(type, id), -1);
-            } catch (Exception e) {
-                // Same thing -- might be deleted by other nodes, so just go on.
-                throw new NotFoundException("Couldn't delete " +
-                                            makeZnode(type, id));
+                zk().delete(znode, -1);
+                updateIndexes(type, id, before, null);
+                return true;
+            } catch (KeeperException.NotEmptyException e) {
+                // Fall through and take the children with it
             }
+
+            ZooKeeperBatch batch = new ZooKeeperBatch(zk());
+            // Other nodes may be deleting the children at the same
+            // time, so only the result of the last delete matters.
+            for (String child : zk().getChildren(znode, false))
+                batch.delete(makeFieldZnode(type, id, child), -1);
+            int node = batch.delete(znode, -1);
+            batch.run();
+            if (! batch.isOk(node))
+                throw new NotFoundException("Couldn't delete " + znode);
+            updateIndexes(type, id, before, null);
+        } catch (NotFoundException e) {
+            throw e;
         } catch (Exception e) {
-            // Error getting children of node -- probably node has been deleted
-            throw new NotFoundException("Couldn't get children of " +
-                                        makeZnode(type, id));
+            // Probably the node has been deleted
+            throw new NotFoundException("Couldn't delete " + znode);
         }
         return true;
     }
@@ -317,7 +590,7 @@ public class ZooKeeperStorage implements TempletonStorage {
     @Override
     public List<String> getAllForType(Type type) {
         try {
-            return zk.getChildren(getPath(type), false);
+            return zk().getChildren(getPath(type), false);
         } catch (Exception e) {
             return new ArrayList<String>();
         }
@@ -336,19 +609,22 @@ public class ZooKeeperStorage implements TempletonStorage {
         return allNodes;
     }
 
+    /**
+     * Find the ids with a field value.  An indexed job field is read
+     * from its index, anything else reads every id of the type.
+     */
     @Override
     public List<String> getAllForTypeAndKey(Type type, String key, String value) {
+        if (type == Type.JOB && JobIndexes.isIndexed(key))
+            return JobIndexes.lookup(this, key, value);
+
         ArrayList<String> allNodes = new ArrayList<String>();
         try {
-            for (String id : zk.getChildren(getPath(type), false)) {
-                for (String field : zk.getChildren(id, false)) {
-                    if (field.endsWith("/" + key)) {
-                        byte[] b = zk.getData(field, false, null);
-                        if (new String(b, ENCODING).equals(value)) {
-                            allNodes.add(id);
-                        }
-                    }
-                }
+            List<String> ids = zk().getChildren(getPath(type), false);
+            for (Map.Entry<String, Map<String, String>> e
+                     : multiGet(type, ids).entrySet()) {
+                if (value.equals(e.getValue().get(key)))
+                    allNodes.add(e.getKey());
             }
         } catch (Exception e) {
             // Log and go to the next type -- this one might not exist
@@ -357,16 +633,173 @@ public class ZooKeeperStorage implements TempletonStorage {
         return allNodes;
     }
 
+    @Override
+    public Future<Map<String, String>> getFieldsAsync(final Type type,
+                                                      final String id)
+    {
+        Callable<Map<String, String>> slow = new Callable<Map<String, String>>() {
+            public Map<String, String> call() {
+                return getFields(type, id);
+            }
+        };
+        if (! isRecordType(type))
+            return executor.submit(slow);
+
+        final StorageFuture<Map<String, String>> res
+            = new StorageFuture<Map<String, String>>();
+        final FutureFiller<Map<String, String>> filler
+            = new FutureFiller<Map<String, String>>(res, slow);
+        try {
+            zk().getData(makeZnode(type, id), false, new AsyncCallback.DataCallback() {
+                    public void processResult(int rc, String path, Object ctx,
+                                              byte[] data, Stat stat) {
+                        if (rc == KeeperException.Code.NONODE.intValue()) {
+                            res.set(new HashMap<String, String>());
+                            return;
+                        }
+                        if (rc != KeeperException.Code.OK.intValue()) {
+                            res.fail(KeeperException.create(KeeperException.Code.get(rc),
+                                                            path));
+                            return;
+                        }
+                        // Anything thrown here would be lost on the
+                        // event thread and leave the future waiting.
+                        try {
+                            Map<String, String> rec = JobRecord.decode(data);
+                            if (rec != null)
+                                res.set(rec);
+                            else
+                                executor.execute(filler); // Old layout
+                        } catch (Exception e) {
+                            res.fail(e);
+                        }
+                    }
+                }, null);
+        } catch (IOException e) {
+            res.fail(e);
+        }
+        return res;
+    }
+
+    @Override
+    public Future<Void> saveFieldsAsync(final Type type, final String id,
+                                        Map<String, String> fields)
+    {
+        final Map<String, String> changes = new HashMap<String, String>(fields);
+        Callable<Void> slow = new Callable<Void>() {
+            public Void call() throws NotFoundException {
+                saveFields(type, id, changes);
+                return null;
+            }
+        };
+        if (! isRecordType(type)
+            || (type == Type.JOB && JobIndexes.touches(changes.keySet())))
+            return executor.submit(slow);
+
+        // Read and write the record with a versioned setData.  A
+        // missing node, an old layout job, a lost race or a change to
+        // the indexes goes through updateRecord instead.
+        final StorageFuture<Void> res = new StorageFuture<Void>();
+        final FutureFiller<Void> filler = new FutureFiller<Void>(res, slow);
+        final String znode = makeZnode(type, id);
+        try {
+            final ZooKeeper zk = zk();
+            zk.getData(znode, false, new AsyncCallback.DataCallback() {
+                    public void processResult(int rc, String path, Object ctx,
+                                              byte[] data, Stat stat) {
+                        try {
+                            Map<String, String> rec = null;
+                            if (rc == KeeperException.Code.OK.intValue())
+                                rec = JobRecord.decode(data);
+                            if (rec == null) {
+                                executor.execute(filler);
+                                return;
+                            }
+                            rec.putAll(changes);
+                            zk.setData(znode, JobRecord.encode(rec), stat.getVersion(),
+                                       new AsyncCallback.StatCallback() {
+                                           public void processResult(int rc, String path,
+                                                                     Object ctx, Stat stat) {
+                                               try {
+                                                   if (rc == KeeperException.Code.OK.intValue())
+                                                       res.set(null);
+                                                   else
+                                                       executor.execute(filler);
+                                               } catch (Exception e) {
+                                                   res.fail(e);
+                                               }
+                                           }
+                                       }, null);
+                        } catch (Exception e) {
+                            res.fail(e);
+                        }
+                    }
+                }, null);
+        } catch (IOException e) {
+            res.fail(e);
+        }
+        return res;
+    }
+
+    /**
+     * Leave a watch on a record: the watcher hears about the next
+     * change to it, or about it being created or deleted.  This
+     * doesn't wait for the server.
+     */
+    public void watch(Type type, String id, Watcher watcher)
+        throws IOException
+    {
+        zk().exists(makeZnode(type, id), watcher, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                }
+            }, null);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> multiGet(Type type, List<String> ids)
+        throws IOException
+    {
+        List<Future<Map<String, String>>> reads
+            = new ArrayList<Future<Map<String, String>>>();
+        for (String id : ids)
+            reads.add(getFieldsAsync(type, id));
+        return StorageFuture.getAll(ids, reads);
+    }
+
+    // Finish a future by running the blocking version of a call.
+    // This never runs on the ZooKeeper event thread, where a blocking
+    // call could wait on its own callbacks.
+    private static class FutureFiller<V> implements Runnable {
+        private final StorageFuture<V> res;
+        private final Callable<V> call;
+
+        FutureFiller(StorageFuture<V> res, Callable<V> call) {
+            this.res = res;
+            this.call = call;
+        }
+
+        public void run() {
+            try {
+                res.set(call.call());
+            } catch (Exception e) {
+                res.fail(e);
+            }
+        }
+    }
+
     @Override
     public void openStorage(Configuration config) throws IOException {
         storage_root = config.get(STORAGE_ROOT);
         job_path = storage_root + "/jobs";
         job_trackingpath = storage_root + TRACKINGDIR;
         overhead_path = storage_root + "/overhead";
+        user_index_path = storage_root + USERINDEXDIR;
+        key_index_path = storage_root + KEYINDEXDIR;
 
-        if (zk == null) {
-            zk = zkOpen(config);
+        if (conn == null) {
+            conn = ZooKeeperConnection.acquire(config);
         }
+        executor = StorageExecutor.getInstance(config);
     }
 
     @Override
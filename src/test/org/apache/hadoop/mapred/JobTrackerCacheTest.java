@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/*
+ * Test the sharing, dropping and eviction of job tracker proxies.
+ */
+public class JobTrackerCacheTest extends TestCase {
+    private static final InetSocketAddress ADDR = new InetSocketAddress("localhost", 9001);
+
+    // A cache that hands out stub proxies and remembers what it
+    // opened and closed.
+    private static class StubCache extends JobTrackerCache {
+        List<JobSubmissionProtocol> opened = new ArrayList<JobSubmissionProtocol>();
+        List<JobSubmissionProtocol> closed = new ArrayList<JobSubmissionProtocol>();
+
+        StubCache(long idleTimeout) {
+            super(idleTimeout);
+        }
+
+        protected JobSubmissionProtocol open(UserGroupInformation ugi,
+                                             InetSocketAddress addr,
+                                             Configuration conf)
+        {
+            JobSubmissionProtocol p = (JobSubmissionProtocol)
+                Proxy.newProxyInstance(getClass().getClassLoader(),
+                                       new Class[] {JobSubmissionProtocol.class},
+                                       new InvocationHandler() {
+                                           public Object invoke(Object proxy, Method m,
+                                                                Object[] args) {
+                                               return null;
+                                           }
+                                       });
+            opened.add(p);
+            return p;
+        }
+
+        protected void close(JobSubmissionProtocol cnx) {
+            closed.add(cnx);
+        }
+    }
+
+    private static UserGroupInformation ugi(String user) {
+        return UserGroupInformation.createRemoteUser(user);
+    }
+
+    public void testShared() throws Exception {
+        StubCache cache = new StubCache(60000);
+        Configuration conf = new Configuration(false);
+        JobTrackerCache.Connection a = cache.get(ugi("alice"), ADDR, conf);
+        JobTrackerCache.Connection b = cache.get(ugi("alice"), ADDR, conf);
+        JobTrackerCache.Connection c = cache.get(ugi("bob"), ADDR, conf);
+
+        assertSame(a, b);
+        assertNotSame(a, c);
+        assertEquals(2, cache.opened.size());
+        assertEquals(1L, cache.getHits());
+        assertEquals(2L, cache.getMisses());
+        assertEquals(2, cache.getConnections());
+
+        cache.release(a, false);
+        cache.release(b, false);
+        cache.release(c, false);
+        assertTrue(cache.closed.isEmpty());
+        assertSame(a, cache.get(ugi("alice"), ADDR, conf));
+    }
+
+    public void testReleaseFailed() throws Exception {
+        StubCache cache = new StubCache(60000);
+        Configuration conf = new Configuration(false);
+        JobTrackerCache.Connection a = cache.get(ugi("alice"), ADDR, conf);
+        JobTrackerCache.Connection b = cache.get(ugi("alice"), ADDR, conf);
+
+        // Dropped at once, but only closed when the last user is done.
+        cache.release(a, true);
+        assertEquals(1L, cache.getReconnects());
+        assertEquals(0, cache.getConnections());
+        assertTrue(cache.closed.isEmpty());
+
+        JobTrackerCache.Connection fresh = cache.get(ugi("alice"), ADDR, conf);
+        assertNotSame(a, fresh);
+        assertEquals(2, cache.opened.size());
+
+        cache.release(b, false);
+        assertEquals(1, cache.closed.size());
+        assertSame(a.getProxy(), cache.closed.get(0));
+
+        cache.release(fresh, false);
+        assertEquals(1, cache.closed.size());
+        assertEquals(1, cache.getConnections());
+    }
+
+    public void testEvictIdle() throws Exception {
+        StubCache cache = new StubCache(1);
+        Configuration conf = new Configuration(false);
+        JobTrackerCache.Connection idle = cache.get(ugi("alice"), ADDR, conf);
+        JobTrackerCache.Connection busy = cache.get(ugi("bob"), ADDR, conf);
+        cache.release(idle, false);
+        Thread.sleep(10);
+
+        cache.evictIdle();
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(1, cache.getConnections());
+        assertEquals(1, cache.closed.size());
+        assertSame(idle.getProxy(), cache.closed.get(0));
+
+        // A proxy in use is kept however old it is.
+        Thread.sleep(10);
+        cache.evictIdle();
+        assertEquals(1, cache.getConnections());
+        cache.release(busy, false);
+        assertEquals(1, cache.closed.size());
+    }
+
+    public void testDisabled() {
+        assertFalse(new JobTrackerCache(0).isEnabled());
+        assertTrue(new JobTrackerCache(1000).isEnabled());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.BatchDesc;
+import org.apache.hcatalog.templeton.BatchOperationDesc;
+import org.apache.hcatalog.templeton.ExecBean;
+import org.apache.hcatalog.templeton.ExecService;
+import org.apache.hcatalog.templeton.HcatDelegator;
+import org.apache.hcatalog.templeton.Main;
+
+/*
+ * Test the per operation results of a ddl batch.
+ */
+public class BatchTest extends TestCase {
+
+    // Answers every call with the same output.
+    static class FixedExecService implements ExecService {
+        ExecBean bean;
+        List<String> args;
+
+        FixedExecService(String stdout, int exitcode) {
+            bean = new ExecBean(stdout, "", exitcode);
+        }
+
+        public ExecBean run(String program, List<String> args,
+                            Map<String, String> env) {
+            this.args = args;
+            return bean;
+        }
+
+        public ExecBean runUnlimited(String program, List<String> args,
+                                     Map<String, String> env) {
+            return run(program, args, env);
+        }
+    }
+
+    AppConfig appConf;
+
+    public void setUp() {
+        new Main(null);         // Initialize the config
+        appConf = Main.getAppConfigInstance();
+    }
+
+    private BatchDesc makeBatch(int n) {
+        BatchDesc desc = new BatchDesc();
+        desc.operations = new ArrayList<BatchOperationDesc>();
+        for (int i = 0; i < n; ++i) {
+            BatchOperationDesc op = new BatchOperationDesc();
+            op.operation = BatchOperationDesc.ADD_PARTITION;
+            op.database = "default";
+            op.table = "t";
+            op.partition = "dt='" + i + "'";
+            desc.operations.add(op);
+        }
+        return desc;
+    }
+
+    private List<Map> results(Response res) {
+        return (List<Map>) ((Map) res.getEntity()).get("results");
+    }
+
+    public void testAllOk() throws Throwable {
+        FixedExecService exec
+            = new FixedExecService("templeton.batch.step=0\ntempleton.batch.step=1\n"
+                                   + "templeton.batch.step=2\n", 0);
+        Response res = new HcatDelegator(appConf, exec).batch("u", makeBatch(3));
+        assertEquals(200, res.getStatus());
+        for (Map r : results(res))
+            assertEquals("ok", r.get("status"));
+        assertEquals("-f", exec.args.get(0));
+    }
+
+    public void testStopsAtFailure() throws Throwable {
+        FixedExecService exec
+            = new FixedExecService("templeton.batch.step=0\ntempleton.batch.step=1\n"
+                                   + "{\"error\":\"Partition exists\",\"errorCode\":409}\n",
+                                   1);
+        Response res = new HcatDelegator(appConf, exec).batch("u", makeBatch(3));
+        assertEquals(500, res.getStatus());
+        List<Map> r = results(res);
+        assertEquals("ok", r.get(0).get("status"));
+        assertEquals("failed", r.get(1).get("status"));
+        assertEquals("Partition exists", r.get(1).get("error"));
+        assertEquals("skipped", r.get(2).get("status"));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response;
+
+import org.apache.hcatalog.templeton.DdlCache;
+import org.apache.hcatalog.templeton.JsonBuilder;
+import org.junit.Test;
+
+public class DdlCacheTest {
+    private Response makeResponse(int status, String table) {
+        Map<String, Object> m = new HashMap<String, Object>();
+        List<Object> cols = new ArrayList<Object>();
+        cols.add("a");
+        m.put("table", table);
+        m.put("columns", cols);
+        return Response.status(status).entity(m).build();
+    }
+
+    // Cache a response for user u, read now.
+    private static Response put(DdlCache cache, String op, String db, String table,
+                                String detail, Response res)
+    {
+        return cache.put("u", op, db, table, detail, cache.startRead(), res);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        DdlCache cache = new DdlCache(10, 60000);
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+        Response res = put(cache, "descTable", "db", "t", null, makeResponse(200, "t"));
+        assertNotNull(res.getMetadata().getFirst("ETag"));
+
+        Response hit = cache.get("u", "descTable", "db", "t", null);
+        assertNotNull(hit);
+        assertEquals("t", ((Map) hit.getEntity()).get("table"));
+        assertEquals(res.getMetadata().getFirst("ETag"),
+                     hit.getMetadata().getFirst("ETag"));
+
+        // Other users don't share entries.
+        assertNull(cache.get("v", "descTable", "db", "t", null));
+        assertEquals(1L, cache.getHits());
+        assertEquals(2L, cache.getMisses());
+    }
+
+    @Test
+    public void testErrorsNotCached() {
+        DdlCache cache = new DdlCache(10, 60000);
+        put(cache, "descTable", "db", "t", null, makeResponse(500, "t"));
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+    }
+
+    @Test
+    public void testCopies() {
+        DdlCache cache = new DdlCache(10, 60000);
+        put(cache, "listColumns", "db", "t", null, makeResponse(200, "t"));
+        Map m = (Map) cache.get("u", "listColumns", "db", "t", null).getEntity();
+        m.remove("columns");
+        m = (Map) cache.get("u", "listColumns", "db", "t", null).getEntity();
+        assertEquals(1, ((List) m.get("columns")).size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        DdlCache cache = new DdlCache(10, 60000);
+        put(cache, "descTable", "db", "t", null, makeResponse(200, "t"));
+        put(cache, "descTable", "db", "other", null, makeResponse(200, "other"));
+        put(cache, "listTables", "db", null, "*", makeResponse(200, null));
+        put(cache, "descTable", "db2", "t", null, makeResponse(200, "t"));
+
+        cache.invalidate("db", "t");
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+        assertNull(cache.get("u", "listTables", "db", null, "*"));
+        assertNotNull(cache.get("u", "descTable", "db", "other", null));
+        assertNotNull(cache.get("u", "descTable", "db2", "t", null));
+
+        cache.invalidate("db", null);
+        assertNull(cache.get("u", "descTable", "db", "other", null));
+        assertNotNull(cache.get("u", "descTable", "db2", "t", null));
+    }
+
+    @Test
+    public void testStaleRead() {
+        DdlCache cache = new DdlCache(10, 60000);
+        long stamp = cache.startRead();
+        cache.invalidate("db", "t");
+        cache.put("u", "descTable", "db", "t", null, stamp, makeResponse(200, "t"));
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+
+        stamp = cache.startRead();
+        cache.invalidate("db2", null);
+        cache.put("u", "descTable", "db", "t", null, stamp, makeResponse(200, "t"));
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+
+        put(cache, "descTable", "db", "t", null, makeResponse(200, "t"));
+        assertNotNull(cache.get("u", "descTable", "db", "t", null));
+    }
+
+    @Test
+    public void testDisabled() {
+        DdlCache cache = new DdlCache(0, 60000);
+        Response res = makeResponse(200, "t");
+        assertSame(res, put(cache, "descTable", "db", "t", null, res));
+        assertNull(cache.get("u", "descTable", "db", "t", null));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DdlCache cache = new DdlCache(2, 60000);
+        put(cache, "descTable", "db", "a", null, makeResponse(200, "a"));
+        put(cache, "descTable", "db", "b", null, makeResponse(200, "b"));
+        cache.get("u", "descTable", "db", "a", null);
+        put(cache, "descTable", "db", "c", null, makeResponse(200, "c"));
+
+        assertNull(cache.get("u", "descTable", "db", "b", null));
+        assertNotNull(cache.get("u", "descTable", "db", "a", null));
+        assertEquals(1L, cache.getEvictions());
+
+        cache = new DdlCache(2, 1);
+        put(cache, "descTable", "db", "a", null, makeResponse(200, "a"));
+        Thread.sleep(10);
+        assertNull(cache.get("u", "descTable", "db", "a", null));
+    }
+
+    @Test
+    public void testContentHash() {
+        Map<String, Object> a = new LinkedHashMap<String, Object>();
+        a.put("x", "1");
+        a.put("y", makeResponse(200, "t").getEntity());
+        Map<String, Object> b = new LinkedHashMap<String, Object>();
+        b.put("y", makeResponse(200, "t").getEntity());
+        b.put("x", "1");
+        assertEquals(JsonBuilder.contentHash(a), JsonBuilder.contentHash(b));
+
+        b.put("x", 1);
+        assertFalse(JsonBuilder.contentHash(a).equals(JsonBuilder.contentHash(b)));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.ExecBean;
+import org.apache.hcatalog.templeton.ExecBuffer;
+import org.apache.hcatalog.templeton.JsonBuilder;
+
+/*
+ * Test the output capture buffer.
+ */
+public class ExecBufferTest extends TestCase {
+    private byte[] makeData(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; ++i)
+            b[i] = (byte) ('a' + (i % 26));
+        return b;
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    public void testInMemory() throws Exception {
+        byte[] data = makeData(3 * ExecBuffer.CHUNK_SIZE + 17);
+        ExecBuffer buf = new ExecBuffer(10 * ExecBuffer.CHUNK_SIZE, -1);
+        buf.write(data, 0, 100);
+        buf.write(data, 100, data.length - 100);
+
+        assertFalse(buf.isSpilled());
+        assertEquals((long) data.length, buf.size());
+        assertTrue(Arrays.equals(data, readAll(buf.getInputStream())));
+        assertEquals(new String(data, "UTF-8"), buf.toString("UTF-8"));
+        buf.release();
+        assertEquals(0L, buf.size());
+    }
+
+    public void testSpill() throws Exception {
+        byte[] data = makeData(2 * ExecBuffer.CHUNK_SIZE);
+        ExecBuffer buf = new ExecBuffer(1000, -1);
+        buf.write(data, 0, 500);
+        assertFalse(buf.isSpilled());
+        buf.write(data, 500, data.length - 500);
+
+        assertTrue(buf.isSpilled());
+        assertTrue(Arrays.equals(data, readAll(buf.getInputStream())));
+        buf.release();
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] data = makeData(100);
+        ExecBuffer buf = new ExecBuffer(1000, 60);
+        buf.write(data, 0, 50);
+        assertFalse(buf.isTruncated());
+        buf.write(data, 50, 50);
+
+        assertTrue(buf.isTruncated());
+        assertEquals(60L, buf.size());
+        buf.release();
+    }
+
+    public void testBeanStream() throws Exception {
+        ExecBuffer buf = new ExecBuffer(1000, -1);
+        byte[] json = "  {\"database\": \"default\"}\n".getBytes("UTF-8");
+        buf.write(json, 0, json.length);
+
+        ExecBean bean = new ExecBean(buf, "UTF-8", "", 0);
+        assertNull(bean.stdout);
+        assertTrue(bean.hasStdout());
+        Map m = JsonBuilder.jsonToMap(bean.stdoutStream());
+        assertEquals("default", m.get("database"));
+
+        bean.fillStdout();
+        assertEquals("  {\"database\": \"default\"}\n", bean.stdout);
+    }
+}
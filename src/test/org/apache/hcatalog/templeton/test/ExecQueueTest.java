@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.BusyException;
+import org.apache.hcatalog.templeton.ExecQueue;
+
+/*
+ * Test the admission order and limits of the exec queue.
+ */
+public class ExecQueueTest extends TestCase {
+    // Waits for a slot and records when it got one.
+    static class Acquirer extends Thread {
+        ExecQueue queue;
+        String user;
+        int lane;
+        List<String> order;
+        boolean busy = false;
+
+        Acquirer(ExecQueue queue, String user, int lane, List<String> order) {
+            this.queue = queue;
+            this.user = user;
+            this.lane = lane;
+            this.order = order;
+        }
+
+        public void run() {
+            try {
+                queue.acquire(user, lane);
+                order.add(user);
+                queue.release(user);
+            } catch (BusyException e) {
+                busy = true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void waitForDepth(ExecQueue queue, int depth) throws Exception {
+        for (int i = 0; i < 500 && queue.getQueueDepth() < depth; ++i)
+            Thread.sleep(10);
+        assertEquals(depth, queue.getQueueDepth());
+    }
+
+    public void testReadLaneFirst() throws Throwable {
+        ExecQueue queue = new ExecQueue(1, 0, 10, 10000);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue.acquire("a", ExecQueue.WRITE);
+
+        Acquirer writer = new Acquirer(queue, "w", ExecQueue.WRITE, order);
+        writer.start();
+        waitForDepth(queue, 1);
+        Acquirer reader = new Acquirer(queue, "r", ExecQueue.READ, order);
+        reader.start();
+        waitForDepth(queue, 2);
+
+        queue.release("a");
+        writer.join();
+        reader.join();
+        assertEquals("r", order.get(0));
+        assertEquals("w", order.get(1));
+    }
+
+    public void testWriteNotStarved() throws Throwable {
+        ExecQueue queue = new ExecQueue(1, 0, 10, 10000);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue.acquire("a", ExecQueue.WRITE);
+
+        List<Acquirer> all = new ArrayList<Acquirer>();
+        Acquirer writer = new Acquirer(queue, "w", ExecQueue.WRITE, order);
+        writer.start();
+        all.add(writer);
+        waitForDepth(queue, 1);
+        for (int i = 0; i <= ExecQueue.READ_BURST; ++i) {
+            Acquirer reader = new Acquirer(queue, "r" + i, ExecQueue.READ, order);
+            reader.start();
+            all.add(reader);
+            waitForDepth(queue, i + 2);
+        }
+
+        queue.release("a");
+        for (Acquirer x : all)
+            x.join();
+        assertEquals(ExecQueue.READ_BURST + 2, order.size());
+        assertEquals("w", order.get(ExecQueue.READ_BURST));
+    }
+
+    public void testInterrupt() throws Throwable {
+        final ExecQueue queue = new ExecQueue(1, 0, 10, 10000);
+        queue.acquire("a", ExecQueue.WRITE);
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+                public void run() {
+                    try {
+                        queue.acquire("b", ExecQueue.WRITE);
+                    } catch (Throwable e) {
+                        interrupted[0] = isInterrupted();
+                    }
+                }
+            };
+        t.start();
+        waitForDepth(queue, 1);
+        t.interrupt();
+        t.join();
+        assertTrue(interrupted[0]);
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    public void testPerUserLimit() throws Throwable {
+        ExecQueue queue = new ExecQueue(4, 1, 10, 10000);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue.acquire("a", ExecQueue.WRITE);
+
+        // A second process for "a" waits even though slots are free.
+        Acquirer again = new Acquirer(queue, "a", ExecQueue.WRITE, order);
+        again.start();
+        waitForDepth(queue, 1);
+        queue.acquire("b", ExecQueue.WRITE);
+        assertEquals(2, queue.getRunning());
+
+        queue.release("a");
+        again.join();
+        assertEquals("a", order.get(0));
+        queue.release("b");
+        assertEquals(0, queue.getRunning());
+    }
+
+    public void testBusy() throws Throwable {
+        ExecQueue queue = new ExecQueue(1, 0, 1, 50);
+        queue.acquire("a", ExecQueue.WRITE);
+
+        // Waits, then gives up.
+        try {
+            queue.acquire("b", ExecQueue.WRITE);
+            fail("expected BusyException");
+        } catch (BusyException e) {
+            assertEquals(503, e.getResponse().getStatus());
+            assertNotNull(e.getResponse().getMetadata().getFirst("Retry-After"));
+        }
+        assertEquals(1L, queue.getTimeoutCount());
+
+        // The queue only holds one waiter.
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue = new ExecQueue(1, 0, 1, 10000);
+        queue.acquire("a", ExecQueue.WRITE);
+        Acquirer waiter = new Acquirer(queue, "c", ExecQueue.WRITE, order);
+        waiter.start();
+        waitForDepth(queue, 1);
+        try {
+            queue.acquire("d", ExecQueue.WRITE);
+            fail("expected BusyException");
+        } catch (BusyException e) {
+            // Expected
+        }
+        assertEquals(1L, queue.getRejectedCount());
+        queue.release("a");
+        waiter.join();
+        assertEquals(2L, queue.getAdmittedCount());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.ExecBean;
+import org.apache.hcatalog.templeton.HcatWorkerPool;
+import org.apache.hcatalog.templeton.Main;
+import org.apache.hcatalog.templeton.MaxByteArrayOutputStream;
+import org.apache.hcatalog.templeton.tool.HcatWorker;
+
+/*
+ * Test the hcat worker protocol and which calls the pool takes.
+ */
+public class HcatWorkerTest extends TestCase {
+    public void testServe() throws Exception {
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(req);
+        out.writeInt(2);
+        HcatWorker.writeString(out, "-g");
+        HcatWorker.writeString(out, "users");
+        out.flush();
+
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        new HcatWorker(-1).serve(
+            new DataInputStream(new ByteArrayInputStream(req.toByteArray())),
+            new DataOutputStream(res));
+
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(res.toByteArray()));
+        assertEquals(HcatWorker.READY, in.readInt());
+        assertEquals(1, in.readInt());
+        assertFalse(in.readBoolean());
+        assertEquals("", HcatWorker.readString(in));
+        assertTrue(HcatWorker.readString(in).indexOf("unsupported argument -g") > -1);
+        assertEquals(-1, in.read());
+    }
+
+    public void testTruncated() throws Exception {
+        MaxByteArrayOutputStream buf = new MaxByteArrayOutputStream(4);
+        buf.write("abc".getBytes("UTF-8"));
+        assertFalse(buf.isTruncated());
+        buf.write("def".getBytes("UTF-8"));
+        assertTrue(buf.isTruncated());
+        assertEquals("abcd", buf.toString("UTF-8"));
+
+        ExecBean res = new ExecBean("abcd", "", 0);
+        assertFalse(res.isTruncated());
+        res.setTruncated(true);
+        assertTrue(res.isTruncated());
+    }
+
+    public void testCanRun() {
+        new Main(null);         // Initialize the config
+        AppConfig appConf = Main.getAppConfigInstance();
+        HcatWorkerPool pool = HcatWorkerPool.getInstance(appConf);
+        String hcat = appConf.clusterHcat();
+
+        assertTrue(pool.canRun(hcat, Arrays.asList("-e", "show tables;",
+                                                   "-D", "hive.format=json")));
+        assertTrue(pool.canRun(hcat, Arrays.asList("-f", "/tmp/x.hcat")));
+        assertFalse(pool.canRun(hcat, Arrays.asList("-e", "show tables;",
+                                                    "-g", "users")));
+        assertFalse(pool.canRun("/bin/ls", Arrays.asList("-e", "x")));
+    }
+
+    public void testWorkerKey() {
+        Map<String, String> a = new HashMap<String, String>();
+        a.put("HADOOP_USER_NAME", "alice");
+        a.put("HADOOP_CLASSPATH", "/x");
+        Map<String, String> b = new HashMap<String, String>(a);
+        assertEquals(HcatWorkerPool.workerKey(a), HcatWorkerPool.workerKey(b));
+        b.put("HADOOP_USER_NAME", "bob");
+        assertFalse(HcatWorkerPool.workerKey(a).equals(HcatWorkerPool.workerKey(b)));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hcatalog.templeton.JobStatusCache;
+
+/*
+ * Test the job status snapshot.
+ */
+public class JobStatusCacheTest extends TestCase {
+    private JobStatus job(JobID id, int state) {
+        return new JobStatus(id, 0.5f, 0.0f, state);
+    }
+
+    public void testLookup() {
+        JobStatusCache cache = new JobStatusCache(1000, 5000);
+        JobID a = new JobID("201210180000", 1);
+        JobID b = new JobID("201210180000", 2);
+
+        assertNull(cache.lookup(a, 100));
+
+        cache.update(new JobStatus[] {job(a, JobStatus.RUNNING)}, 1000);
+        assertEquals(1, cache.getSnapshotSize());
+        assertEquals(JobStatus.RUNNING, cache.lookup(a, 2000).getRunState());
+        assertNull(cache.lookup(b, 2000));
+
+        // Too old.
+        assertNull(cache.lookup(a, 6001));
+
+        cache.update(new JobStatus[] {job(a, JobStatus.SUCCEEDED),
+                                      job(b, JobStatus.PREP)}, 7000);
+        assertEquals(JobStatus.SUCCEEDED, cache.lookup(a, 7000).getRunState());
+        assertEquals(JobStatus.PREP, cache.lookup(b, 7000).getRunState());
+        assertEquals(2L, cache.getPolls());
+    }
+
+    public void testDisabled() {
+        assertFalse(new JobStatusCache(0, 5000).isEnabled());
+        assertTrue(new JobStatusCache(1000, 5000).isEnabled());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.ws.rs.core.Response;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.ExecBean;
+import org.apache.hcatalog.templeton.HcatDelegator;
+import org.apache.hcatalog.templeton.JsonBuilder;
+import org.apache.hcatalog.templeton.JsonStream;
+
+/*
+ * Test streaming json from exec output.
+ */
+public class JsonStreamTest extends TestCase {
+    private Set<String> fields(String json) throws Exception {
+        return JsonStream.topLevelFields(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    public void testTopLevelFields() throws Exception {
+        Set<String> f = fields("{\"a\": {\"error\": 1}, \"b\": [1, {\"c\": 2}]}");
+        assertEquals(2, f.size());
+        assertTrue(f.contains("a"));
+        assertTrue(f.contains("b"));
+        assertFalse(f.contains("error"));
+
+        assertTrue(fields("  ").isEmpty());
+        assertNull(fields("[1, 2]"));
+        assertNull(fields("{\"a\": 1} {}"));
+        try {
+            fields("{\"a\": junk}");
+            fail("not json");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testInternalCallersParse() throws Throwable {
+        AppConfig conf = new AppConfig();
+        conf.set(HcatDelegator.STREAM_JSON_NAME, "true");
+        BatchTest.FixedExecService exec = new BatchTest.FixedExecService(
+            "{\"columns\": [{\"name\": \"x\", \"type\": \"string\"}],"
+            + " \"tableInfo\": {\"parameters\": {\"k\": \"v\"}}}", 0);
+        HcatDelegator d = new HcatDelegator(conf, exec);
+
+        // Sent to the client as is.
+        Response res = d.descTable("u", "default", "t", true);
+        assertEquals(200, res.getStatus());
+        assertTrue(res.getEntity() instanceof JsonStream);
+
+        // Read by the delegator itself.
+        res = d.descOneColumn("u", "default", "t", "x");
+        assertEquals(200, res.getStatus());
+        assertEquals("x", ((Map) ((Map) res.getEntity()).get("column")).get("name"));
+
+        res = d.listTableProperties("u", "default", "t");
+        assertEquals(200, res.getStatus());
+        assertEquals("v", ((Map) ((Map) res.getEntity()).get("properties")).get("k"));
+
+        res = d.descTableProperty("u", "default", "t", "k");
+        assertEquals("v", ((Map) ((Map) res.getEntity()).get("property")).get("k"));
+    }
+
+    public void testStream() throws Exception {
+        ExecBean eb = new ExecBean("{\"columns\": [{\"name\": \"x\"}], "
+                                   + "\"tableName\": \"t\", \"database\": \"old\"}",
+                                   "", 0);
+        String json = JsonBuilder.createStream(eb)
+            .remove("tableName")
+            .put("database", "db")
+            .put("table", "t")
+            .buildJson();
+
+        Map m = JsonBuilder.jsonToMap(json);
+        assertEquals(3, m.size());
+        assertEquals("db", m.get("database"));
+        assertEquals("t", m.get("table"));
+        assertEquals("x", ((Map) ((List) m.get("columns")).get(0)).get("name"));
+    }
+
+    public void testStreamEmpty() throws Exception {
+        ExecBean eb = new ExecBean("", "", 0);
+        String json = JsonBuilder.createStream(eb).put("database", "db").buildJson();
+        assertEquals("{\"database\":\"db\"}", json);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.LauncherDelegator;
+import org.apache.hcatalog.templeton.tool.LocalStorage;
+import org.apache.hcatalog.templeton.tool.StorageCache;
+import org.apache.hcatalog.templeton.tool.TempletonControllerJob;
+
+/*
+ * Test that the controller job is given the settings it needs.
+ */
+public class LauncherDelegatorTest extends TestCase {
+    private List<String> launcherArgs(AppConfig conf) {
+        return new LauncherDelegator(conf)
+            .makeLauncherArgs(conf, "/tmp/status", null, new ArrayList<String>());
+    }
+
+    public void testLocalStorageVars() {
+        AppConfig conf = new AppConfig();
+        conf.set(LocalStorage.LOCAL_DIR_NAME, "relative/store");
+        conf.set(LocalStorage.TTL_NAME, "60000");
+        conf.set(TempletonControllerJob.PROGRESS_INTERVAL_NAME, "5000");
+
+        List<String> args = launcherArgs(conf);
+        String dir = new File("relative/store").getAbsolutePath();
+        assertTrue(args.contains(LocalStorage.LOCAL_DIR_NAME + "=" + dir));
+        assertTrue(args.contains(LocalStorage.TTL_NAME + "=60000"));
+        assertTrue(args.contains(TempletonControllerJob.PROGRESS_INTERVAL_NAME + "=5000"));
+    }
+
+    public void testCacheVars() {
+        AppConfig conf = new AppConfig();
+        conf.set(StorageCache.STORAGE_CLASS_NAME, LocalStorage.class.getName());
+        conf.set(StorageCache.WRITE_BEHIND_NAME, "percentComplete,childid");
+        conf.set(StorageCache.WRITE_BEHIND_INTERVAL_NAME, "2000");
+        conf.set(StorageCache.TTL_NAME, "3000");
+
+        List<String> args = launcherArgs(conf);
+        assertTrue(args.contains(StorageCache.STORAGE_CLASS_NAME + "="
+                                 + LocalStorage.class.getName()));
+        assertTrue(args.contains(StorageCache.WRITE_BEHIND_NAME
+                                 + "=percentComplete,childid"));
+        assertTrue(args.contains(StorageCache.WRITE_BEHIND_INTERVAL_NAME + "=2000"));
+        assertTrue(args.contains(StorageCache.TTL_NAME + "=3000"));
+        int i = args.indexOf(StorageCache.TTL_NAME + "=3000");
+        assertEquals("-D", args.get(i - 1));
+    }
+}
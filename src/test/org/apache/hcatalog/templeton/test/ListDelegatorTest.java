@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hadoop.mapred.TempletonJobTracker;
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.BadParam;
+import org.apache.hcatalog.templeton.LauncherDelegator;
+import org.apache.hcatalog.templeton.ListDelegator;
+import org.apache.hcatalog.templeton.tool.JobIndexes;
+import org.apache.hcatalog.templeton.tool.JobState;
+import org.apache.hcatalog.templeton.tool.LocalStorage;
+import org.apache.hcatalog.templeton.tool.TempletonStorage;
+
+/*
+ * Test listing the jobs of a user from the user index.
+ */
+public class ListDelegatorTest extends TestCase {
+    private static final String A = "job_201210180000_0001";
+    private static final String B = "job_201210180000_0002";
+    private static final String C = "job_201210180000_0010";
+    private static final String D = "job_201210180000_0003";
+
+    private File dir;
+    private AppConfig conf;
+
+    // The JobTracker, as a map from job id to status.
+    private Map<String, JobStatus> statuses = new HashMap<String, JobStatus>();
+
+    private class StubList extends ListDelegator {
+        StubList() {
+            super(conf);
+        }
+
+        @Override
+        protected TempletonJobTracker openTracker(String user) {
+            return null;
+        }
+
+        @Override
+        protected JobStatus getJobStatus(TempletonJobTracker tracker, JobID jobid) {
+            return statuses.get(jobid.toString());
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        dir = File.createTempFile("listdelegator", "");
+        dir.delete();
+        dir.mkdirs();
+
+        conf = new AppConfig();
+        conf.set(TempletonStorage.STORAGE_CLASS, LocalStorage.class.getName());
+        conf.set(LocalStorage.LOCAL_DIR_NAME, dir.getAbsolutePath());
+
+        // Out of order, and ordered by number rather than by name.
+        LauncherDelegator launcher = new LauncherDelegator(conf);
+        launcher.registerJob(C, "alice", null);
+        launcher.registerJob(A, "alice", "http://example.com/a");
+        launcher.registerJob(D, "bob", null);
+        launcher.registerJob(B, "alice", null);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtil.fullyDelete(dir);
+    }
+
+    private void setStatus(String id, int state) {
+        statuses.put(id, new JobStatus(JobID.forName(id), 0.5f, 0.0f, state));
+    }
+
+    public void testIndex() throws Throwable {
+        TempletonStorage storage = JobState.getStorage(conf);
+        try {
+            assertEquals(3, storage.getAllForTypeAndKey(TempletonStorage.Type.JOB,
+                                                         JobIndexes.USER, "alice").size());
+            assertEquals(Arrays.asList(D),
+                         storage.getAllForTypeAndKey(TempletonStorage.Type.JOB,
+                                                     JobIndexes.USER, "bob"));
+        } finally {
+            storage.closeStorage();
+        }
+        assertEquals("alice", new JobState(A, conf).getUser());
+        assertEquals("http://example.com/a", new JobState(A, conf).getCallback());
+    }
+
+    public void testAll() throws Throwable {
+        ListDelegator d = new StubList();
+        assertEquals(Arrays.asList(A, B, C), d.run("alice"));
+        assertEquals(Arrays.asList(D), d.run("bob"));
+        assertTrue(d.run("carol").isEmpty());
+    }
+
+    public void testBackfill() throws Throwable {
+        // A job from before the user index.
+        TempletonStorage storage = JobState.getStorage(conf);
+        try {
+            storage.deleteField(TempletonStorage.Type.USERINDEX, "bob", D);
+        } finally {
+            storage.closeStorage();
+        }
+        ListDelegator d = new StubList();
+        assertTrue(d.run("bob").isEmpty());
+
+        JobState.backfillIndexes(conf);
+        assertEquals(Arrays.asList(D), d.run("bob"));
+        assertEquals(Arrays.asList(A, B, C), d.run("alice"));
+    }
+
+    public void testOffsetLimit() throws Throwable {
+        ListDelegator d = new StubList();
+        assertEquals(Arrays.asList(B, C), d.run("alice", null, 1, 10));
+        assertEquals(Arrays.asList(A, B), d.run("alice", null, 0, 2));
+        assertEquals(Arrays.asList(B), d.run("alice", null, 1, 1));
+        assertTrue(d.run("alice", null, 3, 10).isEmpty());
+        assertTrue(d.run("alice", null, 0, 0).isEmpty());
+    }
+
+    public void testInvalidState() throws Throwable {
+        try {
+            new StubList().run("alice", "done", 0, 10);
+            fail("Listed an invalid state");
+        } catch (BadParam e) {
+            // Expected.
+        }
+        try {
+            new StubList().run("alice", "RUNNING", 0, 10);
+            fail("Listed an invalid state");
+        } catch (BadParam e) {
+            // Expected.
+        }
+    }
+
+    public void testState() throws Throwable {
+        setStatus(A, JobStatus.RUNNING);
+        setStatus(B, JobStatus.SUCCEEDED);
+        setStatus(C, JobStatus.RUNNING);
+        setStatus(D, JobStatus.RUNNING);
+
+        ListDelegator d = new StubList();
+        assertEquals(Arrays.asList(A, C), d.run("alice", "running", 0, 10));
+        assertEquals(Arrays.asList(B), d.run("alice", "succeeded", 0, 10));
+        assertTrue(d.run("alice", "failed", 0, 10).isEmpty());
+
+        // The offset and limit count the matching jobs only.
+        assertEquals(Arrays.asList(C), d.run("alice", "running", 1, 10));
+        assertEquals(Arrays.asList(A), d.run("alice", "running", 0, 1));
+    }
+
+    public void testChildState() throws Throwable {
+        String child = "job_201210180000_0100";
+        setStatus(A, JobStatus.SUCCEEDED);
+        setStatus(B, JobStatus.SUCCEEDED);
+        setStatus(child, JobStatus.FAILED);
+        JobState state = new JobState(A, conf);
+        state.setChildId(child);
+        state.close();
+
+        // B is no longer known to the JobTracker.
+        statuses.remove(B);
+
+        ListDelegator d = new StubList();
+        assertEquals(Arrays.asList(A), d.run("alice", "failed", 0, 10));
+        assertTrue(d.run("alice", "succeeded", 0, 10).isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import junit.framework.TestCase;
+
+import org.apache.hcatalog.templeton.AppConfig;
+import org.apache.hcatalog.templeton.HcatDelegator;
+import org.apache.hcatalog.templeton.JsonBuilder;
+import org.apache.hcatalog.templeton.Main;
+import org.apache.hcatalog.templeton.PartitionDesc;
+import org.apache.hcatalog.templeton.PartitionListDesc;
+import org.apache.hcatalog.templeton.PartitionQuery;
+
+/*
+ * Test that many partitions are added and dropped with one hcat call,
+ * and the paged partition listing.
+ */
+public class PartitionsTest extends TestCase {
+    AppConfig appConf;
+
+    public void setUp() {
+        new Main(null);         // Initialize the config
+        appConf = Main.getAppConfigInstance();
+    }
+
+    private PartitionDesc makePartition(String spec, String location) {
+        PartitionDesc p = new PartitionDesc();
+        p.partition = spec;
+        p.location = location;
+        return p;
+    }
+
+    public void testAddPartitions() throws Throwable {
+        PartitionListDesc desc = new PartitionListDesc();
+        desc.partitions = new ArrayList<PartitionDesc>();
+        desc.partitions.add(makePartition("dt='1'", null));
+        desc.partitions.add(makePartition("dt='2'", "/data/2"));
+        desc.ifNotExists = true;
+
+        BatchTest.FixedExecService exec = new BatchTest.FixedExecService("", 0);
+        Response res = new HcatDelegator(appConf, exec)
+            .addPartitions("u", "default", "t", desc);
+        assertEquals(200, res.getStatus());
+        assertTrue(exec.args.contains("use default; alter table t add if not exists"
+                                      + " partition (dt='1')"
+                                      + " partition (dt='2') location '/data/2';"));
+    }
+
+    public void testDropPartitions() throws Throwable {
+        BatchTest.FixedExecService exec = new BatchTest.FixedExecService("", 0);
+        Response res = new HcatDelegator(appConf, exec)
+            .dropPartitions("u", "default", "t",
+                            Arrays.asList("dt='1'", "dt='2'"), true, null, null);
+        assertEquals(200, res.getStatus());
+        assertTrue(exec.args.contains("use default; alter table t drop if exists"
+                                      + " partition (dt='1'), partition (dt='2');"));
+    }
+
+    public void testPage() {
+        List<String> names = new ArrayList<String>(Arrays.asList("c", "a", "e", "b", "d"));
+        PartitionQuery q = new PartitionQuery();
+        q.limit = 2;
+        assertEquals(Arrays.asList("a", "b"), q.page(names));
+
+        q.next = q.nextToken();
+        assertEquals(Arrays.asList("c", "d"), q.page(names));
+
+        // Still starts after "d" once "d" is gone.
+        q.next = q.nextToken();
+        names.remove("d");
+        assertEquals(Arrays.asList("e"), q.page(names));
+        assertNull(q.nextToken());
+
+        q.next = null;
+        q.offset = 1;
+        assertEquals(Arrays.asList("b", "c"), q.page(names));
+    }
+
+    public void testPageFromFirstNames() {
+        PartitionQuery q = new PartitionQuery();
+        q.offset = 1;
+        q.limit = 2;
+        assertEquals(4, q.fetchCount());
+        List<String> first = new ArrayList<String>(Arrays.asList("d", "b", "c", "a"));
+        assertEquals(Arrays.asList("b", "c"), q.page(first, 4));
+        assertEquals(2, PartitionQuery.tokenPosition(q.nextToken()));
+        assertEquals("c", PartitionQuery.decodeToken(q.nextToken()));
+
+        // The next page needs the names up to position 2 + 1 + 2 + 1.
+        q.next = q.nextToken();
+        q.offset = 0;
+        assertEquals(6, q.fetchCount());
+        assertEquals(Arrays.asList("d", "e"),
+                     q.page(new ArrayList<String>(Arrays.asList("a", "b", "c", "d", "e", "f")),
+                            6));
+
+        // Fewer names than asked for is the end of the list.
+        assertEquals(Arrays.asList("d"),
+                     q.page(new ArrayList<String>(Arrays.asList("a", "b", "c", "d")), 6));
+        assertNull(q.nextToken());
+
+        // Names added ahead of the token push the page past the ones
+        // fetched.
+        assertNull(q.page(new ArrayList<String>(Arrays.asList("a", "aa", "ab", "b", "c", "d")),
+                          6));
+
+        // A token without a position, "c" in base64, needs every name.
+        q.next = "Yw";
+        assertEquals("c", PartitionQuery.decodeToken(q.next));
+        assertEquals(-1, q.fetchCount());
+    }
+
+    public void testListPartitionsPage() throws Throwable {
+        String json = "{\"partitions\": ["
+            + "{\"name\": \"dt='2'\", \"values\": []},"
+            + "{\"name\": \"dt='1'\", \"values\": []},"
+            + "{\"name\": \"dt='3'\", \"values\": []}]}";
+        BatchTest.FixedExecService exec = new BatchTest.FixedExecService(json, 0);
+        PartitionQuery q = new PartitionQuery();
+        q.limit = 2;
+        q.fields = Arrays.asList(PartitionQuery.NAME);
+        Response res = new HcatDelegator(appConf, exec)
+            .listPartitions("u", "default", "t", q);
+        assertEquals(200, res.getStatus());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) res.getEntity()).write(out);
+        Map page = JsonBuilder.jsonToMap(out.toString("UTF-8"));
+        List<Map> parts = (List<Map>) page.get("partitions");
+        assertEquals(2, parts.size());
+        assertEquals("dt='1'", parts.get(0).get("name"));
+        assertFalse(parts.get(0).containsKey("values"));
+        assertEquals("dt='2'", parts.get(1).get("name"));
+        assertEquals(PartitionQuery.makeToken(1, "dt='2'"), page.get("next"));
+        assertEquals("t", page.get("table"));
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test.tool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hcatalog.templeton.tool.CachingStorage;
+import org.apache.hcatalog.templeton.tool.LocalStorage;
+import org.apache.hcatalog.templeton.tool.LocalStore;
+import org.apache.hcatalog.templeton.tool.NotFoundException;
+import org.apache.hcatalog.templeton.tool.StorageCache;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the caching storage over the local disk storage.
+ */
+public class CachingStorageTest {
+    private static final String ID = "job_201210180000_0001";
+
+    private File dir;
+    private LocalStorage backing;
+    private LocalStore other;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("cachingstorage", "");
+        dir.delete();
+        dir.mkdirs();
+
+        Configuration conf = new Configuration(false);
+        conf.set(LocalStorage.LOCAL_DIR_NAME, dir.getAbsolutePath());
+        backing = new LocalStorage();
+        backing.openStorage(conf);
+        other = LocalStore.open(dir, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backing.closeStorage();
+        FileUtil.fullyDelete(dir);
+    }
+
+    private CachingStorage storage(StorageCache cache) {
+        return new CachingStorage(cache);
+    }
+
+    private static Map<String, String> fields(String... kv) {
+        Map<String, String> res = new HashMap<String, String>();
+        for (int i = 0; i < kv.length; i += 2)
+            res.put(kv[i], kv[i + 1]);
+        return res;
+    }
+
+    @Test
+    public void testReadCache() throws Exception {
+        StorageCache cache = new StorageCache(backing, 60000, 100, 1024 * 1024,
+                                              new String[0], 60000);
+        CachingStorage storage = storage(cache);
+        storage.saveFields(Type.JOB, ID, fields("user", "ctdean"));
+
+        assertEquals("ctdean", storage.getField(Type.JOB, ID, "user"));
+        assertEquals(1L, cache.getMisses());
+        assertEquals("ctdean", storage.getField(Type.JOB, ID, "user"));
+        assertEquals(1L, cache.getHits());
+
+        // Our own writes are seen at once, another process's once
+        // the entry is dropped.
+        storage.saveField(Type.JOB, ID, "exitValue", "0");
+        assertEquals("0", storage.getField(Type.JOB, ID, "exitValue"));
+        other.update(Type.JOB, ID, fields("completed", "done"));
+        assertNull(storage.getField(Type.JOB, ID, "completed"));
+        cache.invalidate(ID);
+        assertEquals("done", storage.getField(Type.JOB, ID, "completed"));
+
+        Map<String, Map<String, String>> all
+            = storage.multiGet(Type.JOB, Arrays.asList(ID, "job_201210180000_0002"));
+        assertEquals("done", all.get(ID).get("completed"));
+        assertTrue(all.get("job_201210180000_0002").isEmpty());
+
+        assertTrue(storage.delete(Type.JOB, ID));
+        assertTrue(storage.getFields(Type.JOB, ID).isEmpty());
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        StorageCache cache = new StorageCache(backing, 1, 100, 1024 * 1024,
+                                              new String[0], 60000);
+        CachingStorage storage = storage(cache);
+        storage.saveFields(Type.JOB, ID, fields("user", "ctdean"));
+        assertEquals("ctdean", storage.getField(Type.JOB, ID, "user"));
+        other.update(Type.JOB, ID, fields("user", "bob"));
+        Thread.sleep(10);
+        assertEquals("bob", storage.getField(Type.JOB, ID, "user"));
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        StorageCache cache = new StorageCache(backing, 60000, 2, 1024 * 1024,
+                                              new String[0], 60000);
+        CachingStorage storage = storage(cache);
+        for (int i = 0; i < 5; ++i) {
+            String id = "job_201210180000_000" + i;
+            storage.saveFields(Type.JOB, id, fields("user", "ctdean"));
+            storage.getFields(Type.JOB, id);
+        }
+        assertEquals(2, cache.getEntries());
+        assertEquals(3L, cache.getEvictions());
+
+        cache = new StorageCache(backing, 60000, 100, 1000, new String[0], 60000);
+        storage = storage(cache);
+        for (int i = 0; i < 5; ++i)
+            storage.getFields(Type.JOB, "job_201210180000_000" + i);
+        assertTrue(cache.getEntries() < 5);
+        assertTrue(cache.getBytes() <= 1000);
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        StorageCache cache = new StorageCache(backing, 60000, 100, 1024 * 1024,
+                                              new String[] {"percentComplete", "user"},
+                                              60000);
+        CachingStorage storage = storage(cache);
+        storage.saveFields(Type.JOB, ID, fields("user", "ctdean", "childid", "c1"));
+        storage.getFields(Type.JOB, ID);
+
+        // The progress is held, and the child id isn't written again.
+        storage.saveFields(Type.JOB, ID, fields("percentComplete", "10% complete",
+                                                "childid", "c1"));
+        assertEquals(1, cache.getPendingWrites());
+        assertEquals("10% complete", storage.getField(Type.JOB, ID, "percentComplete"));
+        assertNull(other.read(Type.JOB, ID).get("percentComplete"));
+
+        // The index fields are never held.
+        storage.saveField(Type.JOB, ID, "user", "bob");
+        assertEquals("bob", other.read(Type.JOB, ID).get("user"));
+        assertEquals("10% complete", other.read(Type.JOB, ID).get("percentComplete"));
+        assertEquals(0, cache.getPendingWrites());
+
+        // Nor is the completion, which takes the held progress along.
+        storage.saveField(Type.JOB, ID, "percentComplete", "100% complete");
+        storage.saveFields(Type.JOB, ID, fields("exitValue", "0", "completed", "done"));
+        Map<String, String> stored = other.read(Type.JOB, ID);
+        assertEquals("100% complete", stored.get("percentComplete"));
+        assertEquals("done", stored.get("completed"));
+
+        storage.saveField(Type.JOB, ID, "percentComplete", "done");
+        cache.flush();
+        assertEquals("done", other.read(Type.JOB, ID).get("percentComplete"));
+    }
+
+    @Test
+    public void testDeletePending() throws Exception {
+        StorageCache cache = new StorageCache(backing, 60000, 100, 1024 * 1024,
+                                              new String[] {"percentComplete"},
+                                              60000);
+        CachingStorage storage = storage(cache);
+        storage.saveField(Type.JOB, ID, "childid", "c1");
+        storage.saveField(Type.JOB, ID, "percentComplete", "10% complete");
+        storage.deleteField(Type.JOB, ID, "percentComplete");
+        assertEquals(0, cache.getPendingWrites());
+        assertNull(storage.getField(Type.JOB, ID, "percentComplete"));
+        cache.flush();
+        assertNull(other.read(Type.JOB, ID).get("percentComplete"));
+
+        // A deleted job isn't written back.
+        storage.saveField(Type.JOB, ID, "percentComplete", "20% complete");
+        storage.delete(Type.JOB, ID);
+        cache.flush();
+        assertTrue(other.read(Type.JOB, ID).isEmpty());
+    }
+
+    // Blocks in the first write until let go.
+    private static class SlowStorage extends LocalStorage {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        volatile String first;
+
+        @Override
+        public void saveFields(Type type, String id, Map<String, String> fields)
+            throws NotFoundException
+        {
+            if (first == null) {
+                first = id;
+                writing.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    // Write anyway
+                }
+            }
+            super.saveFields(type, id, fields);
+        }
+    }
+
+    @Test
+    public void testDeleteWhileFlushing() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.set(LocalStorage.LOCAL_DIR_NAME, dir.getAbsolutePath());
+        final SlowStorage slow = new SlowStorage();
+        slow.openStorage(conf);
+        final StorageCache cache = new StorageCache(slow, 60000, 100, 1024 * 1024,
+                                                    new String[] {"percentComplete"},
+                                                    60000);
+        final CachingStorage storage = storage(cache);
+        String a = "job_201210180000_0002";
+        String b = "job_201210180000_0003";
+        storage.saveField(Type.JOB, a, "percentComplete", "10% complete");
+        storage.saveField(Type.JOB, b, "percentComplete", "10% complete");
+
+        Thread flusher = new Thread() {
+                public void run() {
+                    cache.flush();
+                }
+            };
+        flusher.start();
+        slow.writing.await();
+
+        // Taken by the flush but not yet written.
+        String waiting = slow.first.equals(a) ? b : a;
+        try {
+            storage.delete(Type.JOB, waiting);
+            fail("Deleted a job that was never stored");
+        } catch (NotFoundException e) {
+            // Expected
+        }
+
+        // Being written: the delete waits for the write.
+        Thread deleter = new Thread() {
+                public void run() {
+                    try {
+                        storage.delete(Type.JOB, slow.first);
+                    } catch (NotFoundException e) {
+                        // Checked below
+                    }
+                }
+            };
+        deleter.start();
+        Thread.sleep(100);
+        slow.go.countDown();
+        flusher.join();
+        deleter.join();
+
+        assertTrue(other.read(Type.JOB, a).isEmpty());
+        assertTrue(other.read(Type.JOB, b).isEmpty());
+        slow.closeStorage();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test.tool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hcatalog.templeton.tool.HDFSStorage;
+import org.apache.hcatalog.templeton.tool.JobRecord;
+import org.apache.hcatalog.templeton.tool.TempletonStorage;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the HDFS storage against the local file system.
+ */
+public class HDFSStorageTest {
+    private File dir;
+    private HDFSStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("hdfsstorage", "");
+        dir.delete();
+        dir.mkdirs();
+
+        Configuration conf = new Configuration();
+        conf.set("fs.default.name", "file:///");
+        conf.set(TempletonStorage.STORAGE_ROOT, dir.getAbsolutePath());
+        storage = new HDFSStorage();
+        storage.openStorage(conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.closeStorage();
+        FileUtil.fullyDelete(dir);
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        String id = "job_201210180000_0001";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", "ctdean");
+        vals.put("callback", "http://example.com/\nnext");
+        storage.saveFields(Type.JOB, id, vals);
+        storage.saveField(Type.JOB, id, "percentComplete", "10% complete");
+        storage.deleteField(Type.JOB, id, "callback");
+
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertEquals("ctdean", all.get("user"));
+        assertEquals("10% complete", all.get("percentComplete"));
+        assertNull(all.get("callback"));
+        assertNotNull(all.get("created"));
+        assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+
+        // One file for the whole job.
+        File f = new File(dir, "jobs/" + id);
+        assertTrue(f.isFile());
+        assertEquals(Arrays.asList(id), storage.getAllForType(Type.JOB));
+
+        storage.delete(Type.JOB, id);
+        assertFalse(f.exists());
+        assertTrue(storage.getFields(Type.JOB, id).isEmpty());
+        assertTrue(storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean").isEmpty());
+    }
+
+    @Test
+    public void testOldLayout() throws Exception {
+        String id = "job_201210180000_0002";
+        File job = new File(dir, "jobs/" + id);
+        job.mkdirs();
+        write(new File(job, "user"), "ctdean");
+        write(new File(job, "callback"), "http://example.com");
+
+        assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+        assertEquals(2, storage.getFields(Type.JOB, id).size());
+
+        storage.saveField(Type.JOB, id, "exitValue", "0");
+        assertTrue(job.isFile());
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertEquals("ctdean", all.get("user"));
+        assertEquals("http://example.com", all.get("callback"));
+        assertEquals("0", all.get("exitValue"));
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+        String id = "job_201210180000_0003";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", "ctdean");
+        vals.put("callback", "http://example.com");
+        vals.put("completed", "done");
+        storage.saveFields(Type.JOB, id, vals);
+
+        assertEquals(Arrays.asList(id),
+                     storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean"));
+        assertEquals(Arrays.asList(id), storage.getKeys(Type.USERINDEX, "ctdean"));
+        assertTrue(storage.getKeys(Type.USERINDEX, "rachel").isEmpty());
+        assertEquals(Arrays.asList(id),
+                     storage.getAllForTypeAndKey(Type.JOB, "callbackPending", "true"));
+        storage.saveField(Type.JOB, id, "notified", "1");
+        assertTrue(storage.getAllForTypeAndKey(Type.JOB, "callbackPending", "true")
+                   .isEmpty());
+        assertTrue(JobRecord.isRecord(read(new File(dir, "jobs/" + id))));
+    }
+
+    @Test
+    public void testWriterDied() throws Exception {
+        String id = "job_201210180000_0004";
+        storage.saveField(Type.JOB, id, "user", "ctdean");
+
+        // Moved aside by a writer that died before putting the new
+        // record in place.
+        File job = new File(dir, "jobs/" + id);
+        File aside = new File(dir, "work/JOB-" + id + ".old");
+        assertTrue(job.renameTo(aside));
+        assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+
+        storage.saveField(Type.JOB, id, "exitValue", "0");
+        assertTrue(job.isFile());
+        assertFalse(aside.exists());
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertEquals("ctdean", all.get("user"));
+        assertEquals("0", all.get("exitValue"));
+
+        // A deleted job doesn't come back from where it was moved.
+        assertTrue(job.renameTo(aside));
+        storage.delete(Type.JOB, id);
+        assertFalse(aside.exists());
+        assertTrue(storage.getFields(Type.JOB, id).isEmpty());
+    }
+
+    @Test
+    public void testStaleLock() throws Exception {
+        String id = "job_201210180000_0005";
+        File work = new File(dir, "work");
+        work.mkdirs();
+        File lock = new File(work, "JOB-" + id + ".lock");
+        write(lock, "");
+        assertTrue(lock.setLastModified(System.currentTimeMillis()
+                                        - 2 * HDFSStorage.LOCK_TIMEOUT));
+
+        storage.saveField(Type.JOB, id, "user", "ctdean");
+        assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+        assertFalse(lock.exists());
+        assertEquals(0, work.list().length);
+    }
+
+    private static void write(File f, String s) throws Exception {
+        FileWriter w = new FileWriter(f);
+        w.write(s);
+        w.close();
+    }
+
+    private static byte[] read(File f) throws Exception {
+        byte[] b = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < b.length)
+                n += in.read(b, n, b.length - n);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test.tool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hcatalog.templeton.tool.JobIndexes;
+import org.apache.hcatalog.templeton.tool.LocalStorage;
+import org.apache.hcatalog.templeton.tool.LocalStore;
+import org.apache.hcatalog.templeton.tool.NotFoundException;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the local disk storage.
+ */
+public class LocalStorageTest {
+    private File dir;
+    private LocalStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("localstorage", "");
+        dir.delete();
+        dir.mkdirs();
+
+        Configuration conf = new Configuration(false);
+        conf.set(LocalStorage.LOCAL_DIR_NAME, dir.getAbsolutePath());
+        storage = new LocalStorage();
+        storage.openStorage(conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.closeStorage();
+        FileUtil.fullyDelete(dir);
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        String id = "job_201210180000_0001";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", "ctdean");
+        vals.put("callback", "http://example.com/\u00e9");
+        storage.saveFields(Type.JOB, id, vals);
+        storage.saveField(Type.JOB, id, "percentComplete", "10% complete");
+        storage.deleteField(Type.JOB, id, "callback");
+
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertEquals(3, all.size());
+        assertNotNull(all.get("created"));
+        assertEquals("ctdean", all.get("user"));
+        assertEquals("10% complete", storage.getField(Type.JOB, id, "percentComplete"));
+        assertEquals(Arrays.asList(id), storage.getAllForType(Type.JOB));
+
+        // Another process sees the same store.
+        LocalStore other = LocalStore.open(dir, 0);
+        assertEquals(all, other.read(Type.JOB, id));
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put("exitValue", "0");
+        other.update(Type.JOB, id, changes);
+        other.compact();
+        assertEquals("0", storage.getField(Type.JOB, id, "exitValue"));
+        assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+
+        assertTrue(storage.delete(Type.JOB, id));
+        assertTrue(storage.getFields(Type.JOB, id).isEmpty());
+        try {
+            storage.delete(Type.JOB, id);
+            fail("deleted twice");
+        } catch (NotFoundException e) {
+            // expected
+        }
+        assertTrue(LocalStore.open(dir, 0).ids(Type.JOB).isEmpty());
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+        String id = "job_201210180000_0002";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", "ctdean");
+        vals.put("callback", "http://example.com");
+        vals.put("completed", "done");
+        storage.saveFields(Type.JOB, id, vals);
+
+        assertEquals(Arrays.asList(id),
+                     storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean"));
+        assertEquals(Arrays.asList(id), storage.getAllForTypeAndKey(
+                         Type.JOB, JobIndexes.CALLBACK_PENDING, "true"));
+        storage.saveField(Type.JOB, id, "notified", "1");
+        assertTrue(storage.getAllForTypeAndKey(
+                       Type.JOB, JobIndexes.CALLBACK_PENDING, "true").isEmpty());
+
+        storage.delete(Type.JOB, id);
+        assertTrue(storage.getAllForTypeAndKey(Type.JOB, "completed", "done").isEmpty());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        File ttlDir = new File(dir, "ttl");
+        LocalStore store = LocalStore.open(ttlDir, 50);
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put("user", "ctdean");
+        store.update(Type.JOB, "job_1", changes);
+        assertEquals(Arrays.asList("job_1"), store.ids(Type.JOB));
+
+        Thread.sleep(100);
+        store.update(Type.JOB, "job_2", changes);
+        assertEquals(Arrays.asList("job_2"), store.ids(Type.JOB));
+        store.compact();
+        assertTrue(LocalStore.open(ttlDir, 0).read(Type.JOB, "job_1").isEmpty());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test.tool;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hcatalog.templeton.tool.TempletonControllerJob.ProgressSink;
+import org.junit.Test;
+
+/**
+ * Test that the progress of a controller job is written sparingly.
+ */
+public class ProgressSinkTest {
+    // Remembers each write instead of storing it.
+    private static class Writes extends ProgressSink {
+        final List<String> writes
+            = Collections.synchronizedList(new ArrayList<String>());
+
+        Writes(long interval) {
+            super(null, interval);
+        }
+
+        @Override
+        protected void write(String percent, String childid) {
+            writes.add(percent + " " + childid);
+        }
+    }
+
+    // Wait for the flusher to make n writes.
+    private static void waitForWrites(Writes sink, int n) throws Exception {
+        for (int i = 0; i < 500 && sink.writes.size() < n; ++i)
+            Thread.sleep(10);
+        assertEquals(n, sink.writes.size());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        Writes sink = new Writes(60 * 1000);
+        sink.start();
+        sink.update("10% complete", null);
+        waitForWrites(sink, 1);
+        for (int i = 11; i < 50; ++i)
+            sink.update(i + "% complete", null);
+        // A new child job is written right away.
+        sink.update(null, "job_201210180000_0002");
+        waitForWrites(sink, 2);
+        sink.update("60% complete", null);
+        sink.update("60% complete", "job_201210180000_0002");
+        sink.close();
+        sink.update("70% complete", null);
+
+        assertEquals(3, sink.writes.size());
+        assertEquals("10% complete null", sink.writes.get(0));
+        assertEquals("49% complete job_201210180000_0002", sink.writes.get(1));
+        assertEquals("60% complete job_201210180000_0002", sink.writes.get(2));
+    }
+
+    @Test
+    public void testNoFlusher() {
+        // Only close writes without the flusher.
+        Writes sink = new Writes(0);
+        sink.update("10% complete", "job_201210180000_0002");
+        sink.update("20% complete", null);
+        assertTrue(sink.writes.isEmpty());
+        sink.close();
+        assertEquals(1, sink.writes.size());
+        assertEquals("20% complete job_201210180000_0002", sink.writes.get(0));
+    }
+
+    @Test
+    public void testFlusher() throws Exception {
+        Writes sink = new Writes(50);
+        sink.start();
+        sink.update("10% complete", null);
+        waitForWrites(sink, 1);
+        sink.update("20% complete", null);
+        waitForWrites(sink, 2);
+        sink.close();
+        assertEquals(2, sink.writes.size());
+        assertEquals("20% complete null", sink.writes.get(1));
+    }
+
+    // Blocks in the first write until let go.
+    private static class SlowWrites extends Writes {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+
+        SlowWrites() {
+            super(60 * 1000);
+        }
+
+        @Override
+        protected void write(String percent, String childid) {
+            writing.countDown();
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                // Write anyway
+            }
+            super.write(percent, childid);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowWrite() throws Exception {
+        SlowWrites sink = new SlowWrites();
+        sink.start();
+        sink.update("10% complete", "job_201210180000_0002");
+        sink.writing.await();
+
+        // Not held up by the write in progress.
+        sink.update("20% complete", null);
+        sink.update("30% complete", "job_201210180000_0003");
+        assertTrue(sink.writes.isEmpty());
+
+        // The new child is written once the first write is done.
+        sink.go.countDown();
+        waitForWrites(sink, 2);
+        sink.close();
+        assertEquals(2, sink.writes.size());
+        assertEquals("10% complete job_201210180000_0002", sink.writes.get(0));
+        assertEquals("30% complete job_201210180000_0003", sink.writes.get(1));
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hcatalog.templeton.test.tool;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hcatalog.templeton.tool.JobIndexes;
+import org.apache.hcatalog.templeton.tool.JobRecord;
+import org.apache.hcatalog.templeton.tool.NotFoundException;
+import org.apache.hcatalog.templeton.tool.TempletonStorage;
+import org.apache.hcatalog.templeton.tool.TempletonStorage.Type;
+import org.apache.hcatalog.templeton.tool.ZooKeeperCleanup;
+import org.apache.hcatalog.templeton.tool.ZooKeeperConnection;
+import org.apache.hcatalog.templeton.tool.ZooKeeperStorage;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the ZooKeeper storage against an in-process ZooKeeper.
+ */
+public class ZooKeeperStorageTest {
+    private File dir;
+    private NIOServerCnxn.Factory factory;
+    private Configuration conf;
+    private ZooKeeperStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("zkstorage", "");
+        dir.delete();
+        dir.mkdirs();
+        ZooKeeperServer server = new ZooKeeperServer(dir, dir, 2000);
+        factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", 0));
+        factory.startup(server);
+
+        conf = new Configuration(false);
+        conf.set(ZooKeeperStorage.ZK_HOSTS, "127.0.0.1:" + factory.getLocalPort());
+        conf.set(TempletonStorage.STORAGE_ROOT, "/templeton-test");
+        conf.setLong("templeton.zookeeper.linger", 0);
+        storage = new ZooKeeperStorage();
+        storage.openStorage(conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.closeStorage();
+        factory.shutdown();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory())
+                for (File g : f.listFiles())
+                    g.delete();
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        Map<String, String> fields = new TreeMap<String, String>();
+        fields.put("user", "ctdean");
+        fields.put("callback", "http://example.com/\u00e9");
+        fields.put("empty", "");
+        byte[] b = JobRecord.encode(fields);
+        assertTrue(JobRecord.isRecord(b));
+        assertEquals(fields, JobRecord.decode(b));
+
+        assertFalse(JobRecord.isRecord(new byte[0]));
+        assertNull(JobRecord.decode("user".getBytes("UTF-8")));
+    }
+
+    @Test(timeout = 30000)
+    public void testCorruptRecord() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(JobRecord.MAGIC);
+        out.writeByte(JobRecord.VERSION);
+        out.writeInt(1);
+        out.writeUTF("user");
+        out.writeInt(-1);
+        out.flush();
+        byte[] b = bytes.toByteArray();
+        try {
+            JobRecord.decode(b);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        String id = "job_201210180000_0007";
+        storage.saveField(Type.JOB, id, "percentComplete", "10% complete");
+        ZooKeeper zk = zk();
+        try {
+            zk.setData(storage.makeZnode(Type.JOB, id), b, -1);
+        } finally {
+            zk.close();
+        }
+
+        try {
+            storage.getFieldsAsync(Type.JOB, id).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put("percentComplete", "20% complete");
+        try {
+            storage.saveFieldsAsync(Type.JOB, id, changes).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(storage.multiGet(Type.JOB, Arrays.asList(id)).get(id).isEmpty());
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        String id = "job_201210180000_0001";
+        storage.saveField(Type.JOB, id, "user", "ctdean");
+        storage.saveField(Type.JOB, id, "callback", "http://example.com");
+        storage.saveField(Type.JOB, id, "user", "rachel");
+
+        assertEquals("rachel", storage.getField(Type.JOB, id, "user"));
+        assertNull(storage.getField(Type.JOB, id, "percentComplete"));
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertEquals(3, all.size());
+        assertNotNull(all.get("created"));
+
+        // One znode for the whole job.
+        ZooKeeper zk = zk();
+        try {
+            String znode = storage.makeZnode(Type.JOB, id);
+            assertTrue(zk.getChildren(znode, false).isEmpty());
+            assertTrue(JobRecord.isRecord(zk.getData(znode, false, null)));
+        } finally {
+            zk.close();
+        }
+
+        storage.deleteField(Type.JOB, id, "callback");
+        assertNull(storage.getField(Type.JOB, id, "callback"));
+
+        storage.delete(Type.JOB, id);
+        assertTrue(storage.getFields(Type.JOB, id).isEmpty());
+    }
+
+    @Test
+    public void testOldLayout() throws Exception {
+        String id = "job_201210180000_0002";
+        String znode = storage.makeZnode(Type.JOB, id);
+        ZooKeeper zk = zk();
+        try {
+            zk.create("/templeton-test", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            zk.create("/templeton-test/jobs", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            zk.create(znode, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.create(znode + "/user", "ctdean".getBytes("UTF-8"),
+                      Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.create(znode + "/created", "1".getBytes("UTF-8"),
+                      Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            assertEquals("ctdean", storage.getField(Type.JOB, id, "user"));
+
+            storage.saveField(Type.JOB, id, "exitValue", "0");
+            assertTrue(zk.getChildren(znode, false).isEmpty());
+            Map<String, String> all = storage.getFields(Type.JOB, id);
+            assertEquals("ctdean", all.get("user"));
+            assertEquals("1", all.get("created"));
+            assertEquals("0", all.get("exitValue"));
+        } finally {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testUserIndex() throws Exception {
+        storage.saveField(Type.USERINDEX, "ctdean", "job_1", "1");
+        storage.saveField(Type.USERINDEX, "ctdean", "job_2", "2");
+        assertEquals(2, storage.getFields(Type.USERINDEX, "ctdean").size());
+        assertEquals(Arrays.asList("job_1", "job_2"),
+                     sorted(storage.getKeys(Type.USERINDEX, "ctdean")));
+        assertTrue(storage.getKeys(Type.USERINDEX, "rachel").isEmpty());
+
+        storage.deleteField(Type.USERINDEX, "ctdean", "job_1");
+        assertEquals("2", storage.getField(Type.USERINDEX, "ctdean", "job_2"));
+        assertEquals(1, storage.getFields(Type.USERINDEX, "ctdean").size());
+    }
+
+    @Test
+    public void testCreateDelete() throws Exception {
+        String id = "job_201210180000_0003";
+        storage.create(Type.JOB, id);
+        storage.create(Type.JOB, id);
+        ZooKeeper zk = zk();
+        try {
+            // A second create leaves no extra tracking node.
+            assertEquals(1, zk.getChildren("/templeton-test"
+                                           + ZooKeeperStorage.TRACKINGDIR,
+                                           false).size());
+        } finally {
+            zk.close();
+        }
+
+        assertTrue(storage.delete(Type.JOB, id));
+        try {
+            storage.delete(Type.JOB, id);
+            fail("deleted twice");
+        } catch (NotFoundException e) {
+            // expected
+        }
+
+        storage.saveField(Type.USERINDEX, "ctdean", "job_1", "1");
+        storage.saveField(Type.USERINDEX, "ctdean", "job_2", "2");
+        assertTrue(storage.delete(Type.USERINDEX, "ctdean"));
+        assertTrue(storage.getFields(Type.USERINDEX, "ctdean").isEmpty());
+    }
+
+    @Test
+    public void testDeleteMissing() throws Exception {
+        String id = "job_201210180000_0008";
+        storage.deleteField(Type.JOB, id, "callback");
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("completed", null);
+        vals.put("notified", null);
+        storage.saveFields(Type.JOB, id, vals);
+        storage.saveFieldsAsync(Type.JOB, id, vals).get();
+
+        // Nothing was created, not even a tracking node.
+        assertTrue(storage.getFields(Type.JOB, id).isEmpty());
+        assertFalse(storage.getAllForType(Type.JOB).contains(id));
+        ZooKeeper zk = zk();
+        try {
+            String tracking = "/templeton-test" + ZooKeeperStorage.TRACKINGDIR;
+            assertTrue(zk.exists(tracking, false) == null
+                       || zk.getChildren(tracking, false).isEmpty());
+        } finally {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testSaveFields() throws Exception {
+        String id = "job_201210180000_0007";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("exitValue", "0");
+        vals.put("completed", "done");
+        storage.saveFields(Type.JOB, id, vals);
+        assertEquals("done", storage.getField(Type.JOB, id, "completed"));
+        assertEquals("0", storage.getField(Type.JOB, id, "exitValue"));
+
+        vals.clear();
+        vals.put("completed", null);
+        vals.put("notified", "1");
+        storage.saveFields(Type.JOB, id, vals);
+        Map<String, String> all = storage.getFields(Type.JOB, id);
+        assertNull(all.get("completed"));
+        assertEquals("1", all.get("notified"));
+        assertEquals("0", all.get("exitValue"));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        String id = "job_201210180000_0004";
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put("user", "ctdean");
+        changes.put("percentComplete", "10% complete");
+        storage.saveFieldsAsync(Type.JOB, id, changes).get();
+
+        changes.clear();
+        changes.put("percentComplete", "20% complete");
+        changes.put("user", null);
+        storage.saveFieldsAsync(Type.JOB, id, changes).get();
+
+        Map<String, String> all = storage.getFieldsAsync(Type.JOB, id).get();
+        assertEquals("20% complete", all.get("percentComplete"));
+        assertNull(all.get("user"));
+        assertNotNull(all.get("created"));
+
+        storage.saveField(Type.JOB, "job_201210180000_0005", "user", "rachel");
+        Map<String, Map<String, String>> many
+            = storage.multiGet(Type.JOB, Arrays.asList(id, "job_201210180000_0005",
+                                                       "job_201210180000_0006"));
+        assertEquals(3, many.size());
+        assertEquals("20% complete", many.get(id).get("percentComplete"));
+        assertEquals("rachel", many.get("job_201210180000_0005").get("user"));
+        assertTrue(many.get("job_201210180000_0006").isEmpty());
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+        String a = "job_201210180000_0010";
+        String b = "job_201210180000_0011";
+        Map<String, String> vals = new HashMap<String, String>();
+        vals.put("user", "ctdean");
+        vals.put("callback", "http://example.com");
+        storage.saveFields(Type.JOB, a, vals);
+        storage.saveField(Type.JOB, b, "user", "ctdean");
+        assertEquals(Arrays.asList(a, b), sorted(
+                         storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean")));
+
+        vals.clear();
+        vals.put("exitValue", "0");
+        vals.put("completed", "done");
+        storage.saveFields(Type.JOB, a, vals);
+        storage.saveFields(Type.JOB, b, vals);
+        assertEquals(2, storage.getAllForTypeAndKey(Type.JOB, "completed", "done").size());
+        assertEquals(Arrays.asList(a), storage.getAllForTypeAndKey(
+                         Type.JOB, JobIndexes.CALLBACK_PENDING, "true"));
+
+        storage.saveField(Type.JOB, a, "notified", "1");
+        assertTrue(storage.getAllForTypeAndKey(
+                       Type.JOB, JobIndexes.CALLBACK_PENDING, "true").isEmpty());
+
+        // Not indexed
+        assertEquals(2, storage.getAllForTypeAndKey(Type.JOB, "exitValue", "0").size());
+
+        storage.delete(Type.JOB, a);
+        assertEquals(Arrays.asList(b),
+                     storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean"));
+        assertEquals(Arrays.asList(b),
+                     storage.getAllForTypeAndKey(Type.JOB, "completed", "done"));
+    }
+
+    @Test
+    public void testConnectionShared() throws Exception {
+        Configuration c = connectionConf(0);
+        ZooKeeperConnection a = ZooKeeperConnection.acquire(c);
+        ZooKeeperConnection b = ZooKeeperConnection.acquire(c);
+        assertSame(a, b);
+        ZooKeeper zk = a.getZooKeeper();
+        assertSame(zk, b.getZooKeeper());
+        assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+
+        // Still held by the second acquire.
+        a.release();
+        assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+
+        // The last release closes it at once without a linger.
+        b.release();
+        assertEquals(ZooKeeper.States.CLOSED, zk.getState());
+        ZooKeeperConnection d = ZooKeeperConnection.acquire(c);
+        try {
+            assertNotSame(a, d);
+            assertEquals(ZooKeeper.States.CONNECTED, d.getZooKeeper().getState());
+        } finally {
+            d.release();
+        }
+    }
+
+    @Test
+    public void testConnectionLinger() throws Exception {
+        Configuration c = connectionConf(300);
+        ZooKeeperConnection a = ZooKeeperConnection.acquire(c);
+        ZooKeeper zk = a.getZooKeeper();
+        a.release();
+        assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+
+        // Acquired again within the linger, so it stays open.
+        ZooKeeperConnection b = ZooKeeperConnection.acquire(c);
+        assertSame(a, b);
+        Thread.sleep(600);
+        assertSame(zk, b.getZooKeeper());
+        assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+        b.release();
+
+        waitFor(zk, ZooKeeper.States.CLOSED);
+        ZooKeeperConnection d = ZooKeeperConnection.acquire(c);
+        try {
+            assertNotSame(a, d);
+        } finally {
+            d.release();
+        }
+    }
+
+    @Test
+    public void testConnectionExpired() throws Exception {
+        Configuration c = connectionConf(0);
+        ZooKeeperConnection a = ZooKeeperConnection.acquire(c);
+        try {
+            ZooKeeper zk = a.getZooKeeper();
+
+            // Closing another handle on the same session expires it.
+            ZooKeeper other = new ZooKeeper(c.get(ZooKeeperStorage.ZK_HOSTS), 10000,
+                                            new Watcher() {
+                                                public void process(WatchedEvent e) {
+                                                }
+                                            },
+                                            zk.getSessionId(), zk.getSessionPasswd());
+            waitFor(other, ZooKeeper.States.CONNECTED);
+            other.close();
+            waitFor(zk, ZooKeeper.States.CLOSED);
+
+            ZooKeeper fresh = a.getZooKeeper();
+            assertNotSame(zk, fresh);
+            assertEquals(ZooKeeper.States.CONNECTED, fresh.getState());
+            assertSame(fresh, a.getZooKeeper());
+        } finally {
+            a.release();
+        }
+    }
+
+    // A config for a connection of its own, apart from the storage's.
+    private Configuration connectionConf(long linger) {
+        Configuration c = new Configuration(conf);
+        c.setInt(ZooKeeperStorage.ZK_SESSION_TIMEOUT, 10000);
+        c.setLong(ZooKeeperConnection.ZK_LINGER, linger);
+        return c;
+    }
+
+    private static void waitFor(ZooKeeper zk, ZooKeeper.States state)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 200 && zk.getState() != state; ++i)
+            Thread.sleep(50);
+        assertEquals(state, zk.getState());
+    }
+
+    @Test
+    public void testLateIndexUpdate() throws Exception {
+        String id = "job_201210180000_0012";
+        storage.saveField(Type.JOB, id, "user", "rachel");
+        storage.saveField(Type.JOB, id, "user", "ctdean");
+
+        // The index update of the first write, finishing last, follows
+        // the record rather than the change it was made for.
+        Map<String, String> first = new HashMap<String, String>();
+        first.put("user", "rachel");
+        JobIndexes.update(storage, id, null, first);
+        assertTrue(storage.getAllForTypeAndKey(Type.JOB, "user", "rachel").isEmpty());
+        assertEquals(Arrays.asList(id),
+                     storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean"));
+    }
+
+    @Test
+    public void testCleanupIndexes() throws Exception {
+        // Left behind by jobs that are gone.
+        storage.saveField(Type.USERINDEX, "ctdean", "job_201210180000_0013", "1");
+        storage.saveField(Type.USERINDEX, "rachel", "job_201210180000_0014", "1");
+        storage.saveField(Type.KEYINDEX, JobIndexes.keyIndexId("completed", "done"),
+                          "job_201210180000_0014", "1");
+        Thread.sleep(100);
+        storage.saveField(Type.USERINDEX, "ctdean", "job_201210180000_0015", "1");
+
+        Configuration c = new Configuration(conf);
+        c.setLong(ZooKeeperCleanup.ZK_CLEANUP_MAX_AGE, 50);
+        ZooKeeper zk = zk();
+        try {
+            ZooKeeperCleanup.getInstance(c).checkIndexes(zk);
+            assertEquals(Arrays.asList("job_201210180000_0015"),
+                         storage.getAllForTypeAndKey(Type.JOB, "user", "ctdean"));
+            assertTrue(storage.getAllForTypeAndKey(Type.JOB, "completed", "done").isEmpty());
+            assertNull(zk.exists("/templeton-test" + ZooKeeperStorage.USERINDEXDIR
+                                 + "/rachel", false));
+        } finally {
+            zk.close();
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+    private ZooKeeper zk() throws Exception {
+        return ZooKeeperStorage.zkOpen(conf);
+    }
+}